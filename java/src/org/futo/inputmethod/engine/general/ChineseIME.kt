@@ -21,16 +21,19 @@ import icu.astronot233.rime.X11Keys.XK_BackSpace
 import icu.astronot233.rime.X11Keys.XK_Linefeed
 import icu.astronot233.rime.X11Keys.XK_Return
 import icu.astronot233.rime.X11Keys.XK_Tab
+import kotlinx.coroutines.CompletableDeferred
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.Job
 import kotlinx.coroutines.SupervisorJob
 import kotlinx.coroutines.cancel
+import kotlinx.coroutines.delay
 import kotlinx.coroutines.ensureActive
 import kotlinx.coroutines.flow.launchIn
 import kotlinx.coroutines.flow.onEach
 import kotlinx.coroutines.launch
-import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.withContext
+import kotlinx.coroutines.withTimeoutOrNull
 import org.futo.inputmethod.engine.ExpandableSuggestionBarConfiguration
 import org.futo.inputmethod.engine.GlobalIMEMessage
 import org.futo.inputmethod.engine.IMEHelper
@@ -65,6 +68,7 @@ import org.futo.inputmethod.latin.utils.ZipFileHelper
 import org.futo.inputmethod.latin.utils.toEnumOrNull
 import org.futo.inputmethod.v2keyboard.KeyboardLayoutSetV2
 import java.io.File
+import java.security.MessageDigest
 import java.util.Locale
 import kotlin.math.max
 import kotlin.math.min
@@ -260,6 +264,9 @@ class ChineseIME(val helper: IMEHelper) : IMEInterface, SuggestionStripViewAcces
     private var editingState = EditingState.NotEditing
 
     companion object {
+        private const val ConfigDebounceMs = 100L
+        private const val DeployTimeoutMs = 3000L
+
         @JvmStatic
         private val StrokeTransformation = mapOf(
             'h' to '⼀',
@@ -285,6 +292,31 @@ class ChineseIME(val helper: IMEHelper) : IMEInterface, SuggestionStripViewAcces
         )
         var localPrevExtractedDictionaryName: String? = null
 
+        // SHA-256 of the dictionary zip that was last extracted
+        val PreviouslyExtractedDictionaryHash = SettingsKey(
+            stringPreferencesKey("ChineseDictionaryExtractedHash"),
+            ""
+        )
+
+        @OptIn(ExperimentalStdlibApi::class)
+        private fun hashFile(file: File): String {
+            val md = MessageDigest.getInstance("SHA-256")
+            file.inputStream().use { inputStream ->
+                val buffer = ByteArray(64 * 1024)
+                var read = inputStream.read(buffer)
+                while(read > 0) {
+                    md.update(buffer, 0, read)
+                    read = inputStream.read(buffer)
+                }
+            }
+            return md.digest().toHexString()
+        }
+
+        /**
+         * Replaces the shared directory with the contents of the imported dictionary, unless it
+         * was already extracted. Does file IO, so must not be called on the main thread.
+         * @return whether the shared directory changed and Rime needs to be deployed
+         */
         fun resetSharedFromResources(context: Context, scope: CoroutineScope): Boolean {
             val pref = FileKind.Dictionary.preferenceKeyFor("zh")
             val namePref = FileKind.Dictionary.namePreferenceKeyFor("zh")
@@ -299,8 +331,23 @@ class ChineseIME(val helper: IMEHelper) : IMEInterface, SuggestionStripViewAcces
                 return false
             }
 
+            val shared = getShared(context)
+
+            // The same dictionary imported again under another name doesn't need extracting
+            val hash = if(filePath.isNotEmpty() && file.exists()) hashFile(file) else ""
+            if(hash.isNotEmpty() && hash == context.getSetting(PreviouslyExtractedDictionaryHash)
+                && shared.list()?.isNotEmpty() == true) {
+                localPrevExtractedDictionaryName = name
+                scope.launch(Dispatchers.IO) {
+                    context.setSetting(PreviouslyExtractedDictionaryName.key, name)
+                }
+                return false
+            }
+
+            // Only set once the dictionary is extracted, since the shared directory is emptied
+            // first and a failed extraction must not be skipped next time
+            var extractedHash = ""
             try {
-                val shared = getShared(context)
                 shared.walkBottomUp()
                     .fold(true) { res, it -> (it == shared || it.delete() || !it.exists()) && res }
 
@@ -311,12 +358,14 @@ class ChineseIME(val helper: IMEHelper) : IMEInterface, SuggestionStripViewAcces
                 if(!file.exists()) return true
 
                 ZipFileHelper.extract(file, shared)
+                extractedHash = hash
 
                 return true
             } finally {
                 localPrevExtractedDictionaryName = name
                 scope.launch(Dispatchers.IO) {
                     context.setSetting(PreviouslyExtractedDictionaryName.key, name)
+                    context.setSetting(PreviouslyExtractedDictionaryHash.key, extractedHash)
                 }
             }
         }
@@ -355,10 +404,14 @@ class ChineseIME(val helper: IMEHelper) : IMEInterface, SuggestionStripViewAcces
 
     private fun subscribeToRimeMessage() = rime.messageFlow.onEach { msg -> when (msg) {
         is RimeMessage.Deploy -> when (msg.value) {
-            DeployStage.Unknown -> Log.e(TAG, "Deploy: Failed")
+            DeployStage.Unknown -> {
+                Log.e(TAG, "Deploy: Failed")
+                deployCompletion?.complete(false)
+            }
             DeployStage.Startup -> Log.i(TAG, "Deploy: Startup")
             DeployStage.Success -> {
                 Log.i(TAG, "Deploy: Success")
+                deployCompletion?.complete(true)
                 coroScope.launch {
                     ChineseIMESettings.schemaList = rime.getSchemata().also {
                         Log.d(TAG, "Schemas: ${it.joinToString { it.toString() }} ")
@@ -530,10 +583,6 @@ class ChineseIME(val helper: IMEHelper) : IMEInterface, SuggestionStripViewAcces
     }
 
     override fun onStartInput() {
-        if(resetSharedFromResources(helper.context, helper.lifecycleScope)) {
-            prevConfiguration = null
-            coroScope.launch { rime.deploy() }
-        }
         updateConfig()
     }
 
@@ -598,86 +647,160 @@ class ChineseIME(val helper: IMEHelper) : IMEInterface, SuggestionStripViewAcces
         }
     }
 
-    private var configSemaphore = Semaphore(1)
-    private fun updateConfig() {
-        coroScope.launch {
-            if(editingState.active) return@launch
-            if(!configSemaphore.tryAcquire()) return@launch
+    // Everything below is only accessed on the main thread
+    private var configWorker: Job? = null
+    private var configUpdateRequested = false
+    private var deployCompletion: CompletableDeferred<Boolean>? = null
+
+    // Keys typed during deployment, sent to Rime in order once it's done
+    private var deploying = false
+    private val pendingKeys = ArrayList<Int>()
+    private var firstPendingKeyTime = 0L
+
+    private var deployCount = 0
+    private var lastDeployMs = 0L
+    private var lastFirstKeyWaitMs = 0L
+
+    private fun computeConfig(): Configuration? {
+        val settings = Settings.getInstance().current
+        val locale = settings.mLocale
+
+        val simplified = isSimplifiedChinese(locale)
+
+        val pinyinScheme = helper.context.getSetting(ChineseIMESettings.PinyinSchemeSetting)
+            .toEnumOrNull<ChineseIMESettings.PinyinScheme>()
+            ?: ChineseIMESettings.PinyinScheme.FullPinyin
+        val schema = when (layoutHint) {
+            "qwerty" -> {
+                when {
+                    pinyinScheme == ChineseIMESettings.PinyinScheme.FullPinyin -> when {
+                        simplified -> "luna_pinyin_simp"
+                        else -> "luna_pinyin"
+                    }
 
-            try {
-                val settings = Settings.getInstance().current
-                val locale = settings.mLocale
-
-                val simplified = isSimplifiedChinese(locale)
-
-                val pinyinScheme = helper.context.getSetting(ChineseIMESettings.PinyinSchemeSetting)
-                    .toEnumOrNull<ChineseIMESettings.PinyinScheme>()
-                    ?: ChineseIMESettings.PinyinScheme.FullPinyin
-                val schema = when (layoutHint) {
-                    "qwerty" -> {
-                        when {
-                            pinyinScheme == ChineseIMESettings.PinyinScheme.FullPinyin -> when {
-                                simplified -> "luna_pinyin_simp"
-                                else -> "luna_pinyin"
-                            }
+                    else -> pinyinScheme.rimeId
+                }
+            }
 
-                            else -> pinyinScheme.rimeId
-                        }
-                    }
+            "stroke" -> {
+                "stroke"
+            }
 
-                    "stroke" -> {
-                        "stroke"
-                    }
+            null -> {
+                return null
+            }
 
-                    null -> {
-                        return@launch
-                    }
+            else -> {
+                throwIfDebug(IllegalStateException("Invalid layout hint '${layoutHint}'"))
+                "luna_pinyin"
+            }
+        }
 
-                    else -> {
-                        throwIfDebug(IllegalStateException("Invalid layout hint '${layoutHint}'"))
-                        "luna_pinyin"
-                    }
+        val fuzzy = ChineseIMESettings.FuzzyPinyinModes.fromCommaString(
+            helper.context.getSetting(ChineseIMESettings.FuzzyPinyinSetting)
+        )
+
+        val autocorrect = settings.mAutoCorrectionEnabledPerUserSettings
+                || settings.isSuggestionsEnabledPerUserSettings
+
+        val learning = settings.isPersonalizationEnabled
+
+        return Configuration(schema, learning, simplified, autocorrect, fuzzy)
+    }
+
+    private suspend fun deployAndWait(): Boolean {
+        val completion = CompletableDeferred<Boolean>()
+        deployCompletion = completion
+        try {
+            rime.deploy()
+            return withTimeoutOrNull(DeployTimeoutMs) { completion.await() } ?: false
+        } finally {
+            deployCompletion = null
+        }
+    }
+
+    private suspend fun applyConfig(config: Configuration) {
+        val startTime = SystemClock.uptimeMillis()
+        deploying = true
+        rimeLoading.value = true
+        try {
+            withContext(Dispatchers.IO) { writeCustomizationFile(config) }
+            if(!deployAndWait()) {
+                Log.w(TAG, "Deployment did not report success in time")
+            }
+
+            var result = false
+            for(i in 0..10) {
+                if(rime.selectSchema(config.schema)) {
+                    result = true
+                    break
                 }
+                delay(300L)
+            }
 
-                val fuzzy = ChineseIMESettings.FuzzyPinyinModes.fromCommaString(
-                    helper.context.getSetting(ChineseIMESettings.FuzzyPinyinSetting)
-                )
+            if(!result) {
+                Log.e(TAG, "Failed to select schema 3s after deployment!")
+            }
 
-                val autocorrect = settings.mAutoCorrectionEnabledPerUserSettings
-                        || settings.isSuggestionsEnabledPerUserSettings
+            rime.setOption("simplification", config.simplification)
+            rime.setOption("traditional", !config.simplification)
+            prevConfiguration = config
 
-                val learning = settings.isPersonalizationEnabled
+            deployCount++
+            lastDeployMs = SystemClock.uptimeMillis() - startTime
+        } finally {
+            deploying = false
+            rimeLoading.value = false
+            flushPendingKeys()
+        }
+    }
 
-                val config = Configuration(schema, learning, simplified, autocorrect, fuzzy)
-                if (config != prevConfiguration) {
-                    rimeLoading.value = true
-                    writeCustomizationFile(config)
-                    rime.deploy()
+    /**
+     * Requests the Rime configuration to be brought up to date. Requests are debounced, and any
+     * that arrive while a deployment is running are coalesced into a single one after it, so a
+     * burst of layout, locale and settings changes deploys at most twice.
+     */
+    private fun updateConfig() {
+        configUpdateRequested = true
+        if(configWorker?.isActive == true) return
 
-                    var result = false
-                    for(i in 0..10) {
-                        if(rime.selectSchema(config.schema)) {
-                            result = true
-                            break
-                        }
-                        Thread.sleep(300L)
-                    }
+        configWorker = coroScope.launch {
+            delay(ConfigDebounceMs)
 
-                    if(!result) {
-                        Log.e(TAG, "Failed to select schema 3s after deployment!")
-                    }
+            while(configUpdateRequested) {
+                configUpdateRequested = false
+                if(editingState.active) return@launch
 
-                    rime.setOption("simplification", simplified)
-                    rime.setOption("traditional", !simplified)
-                    prevConfiguration = config
+                val sharedChanged = withContext(Dispatchers.IO) {
+                    resetSharedFromResources(helper.context, helper.lifecycleScope)
                 }
-            } finally {
-                configSemaphore.release()
-                rimeLoading.value = false
+                if(sharedChanged) prevConfiguration = null
+
+                val config = computeConfig() ?: continue
+                if(config != prevConfiguration) applyConfig(config)
             }
         }
     }
 
+    private fun processKey(x11Code: Int) {
+        if(deploying || pendingKeys.isNotEmpty()) {
+            if(pendingKeys.isEmpty()) firstPendingKeyTime = SystemClock.uptimeMillis()
+            pendingKeys.add(x11Code)
+            return
+        }
+
+        coroScope.launch { rime.processX11Code(x11Code) }
+    }
+
+    private fun flushPendingKeys() {
+        if(pendingKeys.isEmpty()) return
+        lastFirstKeyWaitMs = SystemClock.uptimeMillis() - firstPendingKeyTime
+
+        val keys = pendingKeys.toList()
+        pendingKeys.clear()
+        coroScope.launch { keys.forEach { rime.processX11Code(it) } }
+    }
+
     override fun onLayoutUpdated(layout: KeyboardLayoutSetV2) {
         layoutHint = layout.mainLayout.imeHint
         if(helper.isImeActive(this)) updateConfig()
@@ -685,6 +808,7 @@ class ChineseIME(val helper: IMEHelper) : IMEInterface, SuggestionStripViewAcces
 
     override fun onFinishInput() {
         if(editingState.active) return
+        pendingKeys.clear()
         coroScope.launch {
             waitingToSelect = null
             rawInput.clear()
@@ -767,7 +891,7 @@ class ChineseIME(val helper: IMEHelper) : IMEInterface, SuggestionStripViewAcces
                         rawInput.append(event.mCodePoint)
                     }
 
-                    coroScope.launch { rime.processX11Code(x11Code) }
+                    processKey(x11Code)
                 } else {
                     handlePassByMessage(x11Code, 0)
                 }
@@ -947,5 +1071,5 @@ class ChineseIME(val helper: IMEHelper) : IMEInterface, SuggestionStripViewAcces
 // Non-behavior methods }}
 
     val debugInfo: String
-        get() = "configuration=${prevConfiguration}\nlayoutHint=${layoutHint}\nlocale=${Settings.getInstance().current.mLocale}\nisSimplified=${isSimplifiedChinese(Settings.getInstance().current.mLocale)}\nrawInput=${rawInput.text}"
+        get() = "configuration=${prevConfiguration}\nlayoutHint=${layoutHint}\nlocale=${Settings.getInstance().current.mLocale}\nisSimplified=${isSimplifiedChinese(Settings.getInstance().current.mLocale)}\nrawInput=${rawInput.text}\ndeployments=${deployCount}\nlastDeployMs=${lastDeployMs}\nlastFirstKeyWaitMs=${lastFirstKeyWaitMs}"
 }
\ No newline at end of file
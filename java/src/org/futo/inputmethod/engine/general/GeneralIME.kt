@@ -2,13 +2,17 @@ package org.futo.inputmethod.engine.general
 
 import android.os.Build
 import android.os.Looper
+import android.os.SystemClock
 import android.util.Log
 import android.view.HapticFeedbackConstants
 import androidx.datastore.preferences.core.booleanPreferencesKey
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.Deferred
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.ExperimentalCoroutinesApi
 import kotlinx.coroutines.Job
 import kotlinx.coroutines.NonCancellable
+import kotlinx.coroutines.async
 import kotlinx.coroutines.delay
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.runBlocking
@@ -27,6 +31,7 @@ import org.futo.inputmethod.engine.NonExpandableSuggestionBar
 import org.futo.inputmethod.event.Event
 import org.futo.inputmethod.event.InputTransaction
 import org.futo.inputmethod.keyboard.KeyboardSwitcher
+import org.futo.inputmethod.keyboard.PointerTracker
 import org.futo.inputmethod.latin.BuildConfig
 import org.futo.inputmethod.latin.DictionaryFacilitator
 import org.futo.inputmethod.latin.DictionaryFacilitatorImpl
@@ -48,8 +53,8 @@ import org.futo.inputmethod.latin.uix.SettingsKey
 import org.futo.inputmethod.latin.uix.actions.throwIfDebug
 import org.futo.inputmethod.latin.uix.getSetting
 import org.futo.inputmethod.latin.uix.isDirectBootUnlocked
-import org.futo.inputmethod.latin.utils.AsyncResultHolder
 import org.futo.inputmethod.latin.xlm.LanguageModelFacilitator
+import org.futo.inputmethod.latin.xlm.ModelPaths
 import org.futo.inputmethod.v2keyboard.KeyboardLayoutSetV2
 import java.util.concurrent.atomic.AtomicInteger
 
@@ -217,6 +222,7 @@ class GeneralIME(val helper: IMEHelper) : IMEInterface, WordLearner, SuggestionS
             GlobalIMEMessage.collect { message ->
                 when(message) {
                     IMEMessage.ReloadResources -> withContext(Dispatchers.Main) {
+                        ModelPaths.invalidateModelOptions()
                         resetDictionaryFacilitator(force = true, reloadAllDicts = true)
                     }
                     else -> {}
@@ -316,6 +322,7 @@ class GeneralIME(val helper: IMEHelper) : IMEInterface, WordLearner, SuggestionS
         helper.requestCursorUpdate()
 
         val cursorBefore = inputLogic.mConnection.mExpectedSelStart
+        val wasComposingWord = inputLogic.mWordComposer.isComposingWord
 
         val inputTransaction = when (event.eventType) {
             Event.EVENT_TYPE_INPUT_KEYPRESS,
@@ -383,6 +390,10 @@ class GeneralIME(val helper: IMEHelper) : IMEInterface, WordLearner, SuggestionS
                 helper.keyboardSwitcher.requestUpdatingShiftState(getCurrentAutoCapsState())
         }
 
+        if(wasComposingWord && !inputLogic.mWordComposer.isComposingWord) {
+            languageModelFacilitator.precomputeNextWordPredictions()
+        }
+
         if(inputTransaction?.requiresUpdateSuggestions() == true && !ignoreSuggestionUpdate) {
             val inputStyle = if(inputTransaction.mEvent.isSuggestionStripPress) {
                 SuggestedWords.INPUT_STYLE_NONE
@@ -449,50 +460,122 @@ class GeneralIME(val helper: IMEHelper) : IMEInterface, WordLearner, SuggestionS
 
     var updateSuggestionJob: Job? = null
     var lmUpdateJob: Job? = null
-    private suspend fun updateSuggestionsDictionaryInternal(inputStyle: Int, sequenceNumber: Int) {
+
+    /** Dictionary suggestions that were used before the language model result was in */
+    private class ProvisionalSuggestions(
+        val values: LanguageModelFacilitator.PredictionInputValues,
+        val dictResult: SuggestedWords,
+        val wordComposer: WordComposer,
+        val lmResult: Deferred<ArrayList<SuggestedWordInfo>?>
+    )
+
+    // A request is cancelled once a newer one supersedes it, which counts as no result
+    private suspend fun awaitLanguageModel(
+        lmResult: Deferred<ArrayList<SuggestedWordInfo>?>,
+        timeoutMs: Long
+    ): ArrayList<SuggestedWordInfo>? = withTimeoutOrNull(timeoutMs.coerceAtLeast(0L)) {
+        try {
+            lmResult.await()
+        } catch(e: CancellationException) {
+            if(!lmResult.isCancelled) throw e
+            null
+        }
+    }
+
+    /**
+     * Computes suggestions and shows them. If [waitForLanguageModel] is false, the dictionary
+     * result is shown without waiting for the language model, and returned together with the
+     * language model request that is still running.
+     */
+    private suspend fun updateSuggestionsDictionaryInternal(
+        inputStyle: Int,
+        sequenceNumber: Int,
+        useLanguageModel: Boolean = true,
+        languageModelWaitMs: Long = SuggestionScheduler.MaxLanguageModelWaitMs,
+        waitForLanguageModel: Boolean = true
+    ): ProvisionalSuggestions? {
         // This method returns null for us if LM is disabled
-        val predictionInputValues = languageModelFacilitator.makePredictionInputValues(inputStyle)
+        val predictionInputValues = if(useLanguageModel) {
+            languageModelFacilitator.makePredictionInputValues(inputStyle)
+        } else {
+            null
+        }
 
         var dictResult: SuggestedWords? = null
         var lmResult: ArrayList<SuggestedWordInfo>? = null
         if(predictionInputValues != null) {
-            // This runs asynchronously
-            val lmResultHolder = AsyncResultHolder<ArrayList<SuggestedWordInfo>?>("LMSuggest")
-            lmUpdateJob?.cancel()
-            lmUpdateJob = helper.lifecycleScope.launch(languageModelFacilitator.languageModelScope) {
+            // This runs asynchronously. While a committed word may still be amended, its request
+            // has to be left running
+            if(pendingAmendJob?.isActive != true) {
+                languageModelFacilitator.cancelStaleRequests(predictionInputValues)
+                lmUpdateJob?.cancel()
+            }
+            val lmRequest = helper.lifecycleScope.async(languageModelFacilitator.languageModelScope) {
+                val t0 = SystemClock.uptimeMillis()
                 val result = languageModelFacilitator.getLanguageModelSuggestions(predictionInputValues)
-                lmResultHolder.set(result ?: arrayListOf())
+                scheduler.languageModel.record(SystemClock.uptimeMillis() - t0)
+                result ?: arrayListOf()
             }
+            lmUpdateJob = lmRequest
 
             // This runs synchronously
+            val t0 = SystemClock.uptimeMillis()
             inputLogic.getSuggestedWords(
                 settings.current,
-                helper.keyboardSwitcher.keyboard ?: return,
+                helper.keyboardSwitcher.keyboard ?: return null,
                 helper.keyboardShiftMode,
                 inputStyle,
                 sequenceNumber
             ) { suggestedWords -> dictResult = suggestedWords }
+            scheduler.dictionary.record(SystemClock.uptimeMillis() - t0)
+
+            if(!waitForLanguageModel) {
+                val result = dictResult
+                if(result == null) {
+                    lmRequest.cancel()
+                    setNeutralSuggestionStrip()
+                    return null
+                }
 
-            // Wait for LM to report result
-            lmResult = lmResultHolder.get(null, 350L)
-            if(lmResult == null) languageModelFacilitator.reportTimeout()
+                onGetSuggestedWords(result, inputStyle, sequenceNumber)
+                return ProvisionalSuggestions(
+                    predictionInputValues,
+                    result,
+                    WordComposer(inputLogic.mWordComposer),
+                    lmRequest
+                )
+            }
+
+            // Wait for LM to report result. This suspends rather than blocks, so the dictionary
+            // thread stays free for a commit that can't wait for the language model
+            lmResult = awaitLanguageModel(lmRequest, languageModelWaitMs)
+
+            // A shortened wait is expected to miss sometimes
+            if(lmResult == null && !lmRequest.isCancelled
+                && languageModelWaitMs >= SuggestionScheduler.MaxLanguageModelWaitMs) {
+                languageModelFacilitator.reportTimeout()
+            }
         } else {
+            val t0 = SystemClock.uptimeMillis()
             inputLogic.getSuggestedWords(
                 settings.current,
-                helper.keyboardSwitcher.keyboard ?: return,
+                helper.keyboardSwitcher.keyboard ?: return null,
                 helper.keyboardShiftMode,
                 inputStyle,
                 sequenceNumber
             ) { suggestedWords -> dictResult = suggestedWords }
+            scheduler.dictionary.record(SystemClock.uptimeMillis() - t0)
         }
 
         when {
             !lmResult.isNullOrEmpty() && dictResult != null && predictionInputValues != null -> {
+                val t0 = SystemClock.uptimeMillis()
                 val processed = languageModelFacilitator.processAndMergeSuggestions(
                     predictionInputValues,
                     dictResult,
                     lmResult
                 )
+                scheduler.merge.record(SystemClock.uptimeMillis() - t0)
                 if(processed != null) {
                     onGetSuggestedWords(processed, inputStyle, sequenceNumber)
                 } else {
@@ -513,13 +596,62 @@ class GeneralIME(val helper: IMEHelper) : IMEInterface, WordLearner, SuggestionS
                 setNeutralSuggestionStrip()
             }
         }
+
+        return null
+    }
+
+    @Volatile
+    private var pendingAmendJob: Job? = null
+
+    /**
+     * Once the word committed with [provisional] suggestions is in the text field, waits for the
+     * language model result for it, and amends the word if the merged result decides differently.
+     */
+    private fun amendWhenLanguageModelArrives(provisional: ProvisionalSuggestions) {
+        pendingAmendJob?.cancel()
+        // Dispatched rather than immediate, to run after the commit
+        pendingAmendJob = helper.lifecycleScope.launch(Dispatchers.Main) {
+            val committed = inputLogic.mLastComposedWord
+            val typedWord = provisional.wordComposer.typedWord
+            if(committed.mTypedWord != typedWord) {
+                provisional.lmResult.cancel()
+                return@launch
+            }
+
+            val deadline = provisional.values.createdAt + SuggestionScheduler.MaxLanguageModelWaitMs
+            val lmResult = awaitLanguageModel(provisional.lmResult, deadline - SystemClock.uptimeMillis())
+            if(lmResult.isNullOrEmpty()) {
+                provisional.lmResult.cancel()
+                return@launch
+            }
+
+            val merged = withContext(dictionaryScope) {
+                languageModelFacilitator.processAndMergeSuggestions(
+                    provisional.values,
+                    provisional.dictResult,
+                    lmResult,
+                    provisional.wordComposer
+                )
+            }?.let { blacklist.filterBlacklistedSuggestions(it) } ?: return@launch
+
+            val decidedWord = if(merged.mWillAutoCorrect) {
+                merged.getInfo(SuggestedWords.INDEX_OF_AUTO_CORRECTION).mWord
+            } else {
+                typedWord
+            }
+
+            if(inputLogic.amendLastAutoCorrection(settings.current, committed, decidedWord)) {
+                amendedCommitCount++
+                if(BuildConfig.DEBUG) Log.d(TAG, "Amended committed word ${committed.mCommittedWord} to $decidedWord")
+            }
+        }
     }
 
 
     private var sequenceId = AtomicInteger(0)
     private val sequenceIdCompleted = AtomicInteger(0)
     private val computationMutex = Mutex()
-    private var timeTakenToUpdate = 40L
+    private val scheduler = SuggestionScheduler()
     fun updateSuggestions(inputStyle: Int) {
         updateSuggestionJob?.cancel()
 
@@ -540,36 +672,58 @@ class GeneralIME(val helper: IMEHelper) : IMEInterface, WordLearner, SuggestionS
 
         val seqId = sequenceId.incrementAndGet()
 
-        val delayTime = when {
-            // With transformer off keep 40ms static delay for legacy reasons (less battery use)
-            languageModelFacilitator.shouldPassThroughToLegacy() -> 40L
-
-            // On fast devices, prefer to wait less to improve responsiveness
-            else -> 40L.coerceAtMost(timeTakenToUpdate / 2).coerceAtLeast(16L)
-        }
+        val isTyping = inputStyle == SuggestedWords.INPUT_STYLE_TYPING
+        val schedule = scheduler.schedule(
+            typingIntervalMs = if(isTyping) PointerTracker.getTypingInterval(SystemClock.uptimeMillis()) else 0L,
+            useLanguageModel = !languageModelFacilitator.shouldPassThroughToLegacy()
+        )
 
         updateSuggestionJob = helper.lifecycleScope.launch {
-            when(inputStyle) {
-                SuggestedWords.INPUT_STYLE_TYPING -> delay(delayTime)
-            }
-            withContext(NonCancellable + dictionaryScope) {
-                computationMutex.withLock {
-                    // double check in case sequence id incremented after we acquired scope
-                    if (sequenceId.get() > seqId) return@withContext
+            if(isTyping) delay(schedule.debounceMs)
 
-                    val t0 = System.currentTimeMillis()
-                    updateSuggestionsDictionaryInternal(inputStyle, seqId)
-                    val t1 = System.currentTimeMillis()
-                    timeTakenToUpdate = (timeTakenToUpdate + (t1 - t0)) / 2
+            if(schedule.plan == LanguageModelPlan.Deferred) {
+                // Not marked as completed, a commit still gets the language model result
+                computeSuggestions(inputStyle, seqId, useLanguageModel = false, markCompleted = false)
 
-                    if(BuildConfig.DEBUG) Log.d(TAG, "Time taken for suggestions update = ${t1-t0} ms (avg $timeTakenToUpdate ms)")
-
-                    sequenceIdCompleted.set(seqId)
-                }
+                // If another key is typed in the meantime, this job gets cancelled
+                delay(schedule.deferMs)
             }
+
+            computeSuggestions(inputStyle, seqId, languageModelWaitMs = schedule.languageModelWaitMs)
+        }
+    }
+
+    private suspend fun computeSuggestions(
+        inputStyle: Int,
+        seqId: Int,
+        useLanguageModel: Boolean = true,
+        languageModelWaitMs: Long = SuggestionScheduler.MaxLanguageModelWaitMs,
+        markCompleted: Boolean = true
+    ) = withContext(NonCancellable + dictionaryScope) {
+        computationMutex.withLock {
+            // double check in case sequence id incremented after we acquired scope
+            if (sequenceId.get() > seqId) return@withContext
+
+            val t0 = SystemClock.uptimeMillis()
+            updateSuggestionsDictionaryInternal(inputStyle, seqId, useLanguageModel, languageModelWaitMs)
+            val t1 = SystemClock.uptimeMillis()
+
+            if(BuildConfig.DEBUG) Log.d(TAG, "Time taken for suggestions update = ${t1-t0} ms")
+
+            if(markCompleted) sequenceIdCompleted.set(seqId)
         }
     }
 
+    private var commitWaitCount = 0
+    private var commitWaitTotalMs = 0L
+    private var commitWaitMaxMs = 0L
+    private var amendedCommitCount = 0
+
+    /**
+     * Makes sure the word about to be committed has suggestions, so the same auto-correction is
+     * applied no matter how fast the separator was typed. Only the dictionary result is waited
+     * for, the language model result may amend the committed word later.
+     */
     fun ensureSuggestionsCompleted(): Boolean {
         val currJob = updateSuggestionJob
 
@@ -577,21 +731,36 @@ class GeneralIME(val helper: IMEHelper) : IMEInterface, WordLearner, SuggestionS
         if(sequenceIdCompleted.get() < seqId) {
             currJob?.cancel()
 
+            var provisional: ProvisionalSuggestions? = null
             val newJob = helper.lifecycleScope.launch(NonCancellable + dictionaryScope) {
                 if(sequenceIdCompleted.get() < seqId) {
-                    updateSuggestionsDictionaryInternal(SuggestedWords.INPUT_STYLE_TYPING, seqId)
+                    provisional = updateSuggestionsDictionaryInternal(
+                        SuggestedWords.INPUT_STYLE_TYPING,
+                        seqId,
+                        waitForLanguageModel = false
+                    )
                     sequenceIdCompleted.set(seqId)
                 }
             }
 
             updateSuggestionJob = newJob
 
-            return runBlocking {
-                (withTimeoutOrNull(450L) {
+            val t0 = SystemClock.uptimeMillis()
+            val completed = runBlocking {
+                (withTimeoutOrNull(DictionaryCommitWaitMs) {
                     newJob.join()
                     true
                 } == true)
             }
+            val waitMs = SystemClock.uptimeMillis() - t0
+
+            commitWaitCount++
+            commitWaitTotalMs += waitMs
+            commitWaitMaxMs = maxOf(commitWaitMaxMs, waitMs)
+            if(BuildConfig.DEBUG) Log.d(TAG, "Waited $waitMs ms for suggestions before commit")
+
+            if(completed) provisional?.let { amendWhenLanguageModelArrives(it) }
+            return completed
         }
         return true
     }
@@ -784,10 +953,17 @@ class GeneralIME(val helper: IMEHelper) : IMEInterface, WordLearner, SuggestionS
             add("committedTextBeforeComposingText = ${inputLogic.mConnection.committedTextBeforeComposingTextForDebug}")
         }
         add("LM.shouldPassThroughToLegacy = ${languageModelFacilitator.shouldPassThroughToLegacy()}")
-        add("LM.isTransformerDisabledDueToTimeout = ${languageModelFacilitator.isTransformerDisabled()}")
+        add("LM.isTransformerDisabled = ${languageModelFacilitator.isTransformerDisabled()}")
+        languageModelFacilitator.getModelMemoryStats()?.let {
+            add("LM.model = ${it.name} (${it.locale}), loaded in ${it.loadTimeMs}ms, ${it.mappedBytes / 1024 / 1024}MB mapped, ${it.privateBytes / 1024 / 1024}MB private")
+        }
         add("expected cursor = ${inputLogic.mConnection.mExpectedSelStart}:${inputLogic.mConnection.mExpectedSelEnd}")
         add("dictionary loaded = ${dictionaryFacilitator.hasAtLeastOneInitializedMainDictionary()}, ${!dictionaryFacilitator.hasAtLeastOneUninitializedMainDictionary()}")
         add("autoCapsFlags = ${getCurrentAutoCapsState()}")
+        if(BuildConfig.DEBUG) addAll(scheduler.debugInfo())
+        if(commitWaitCount > 0) {
+            add("commit wait = ${commitWaitTotalMs / commitWaitCount}ms avg, ${commitWaitMaxMs}ms max over $commitWaitCount commits, $amendedCommitCount amended")
+        }
     }
 
     fun debugInfoS() = debugInfo().joinToString("\n")
@@ -811,6 +987,9 @@ class GeneralIME(val helper: IMEHelper) : IMEInterface, WordLearner, SuggestionS
                 || inputLogic.mWordComposer.isComposingWord
 
     companion object {
+        // How long a commit may block the main thread waiting for dictionary suggestions
+        private const val DictionaryCommitWaitMs = 450L
+
         @OptIn(ExperimentalCoroutinesApi::class)
         val dictionaryScope = Dispatchers.Default.limitedParallelism(1)
     }
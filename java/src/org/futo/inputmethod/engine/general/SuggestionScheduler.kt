@@ -0,0 +1,157 @@
+package org.futo.inputmethod.engine.general
+
+import android.util.Log
+import org.futo.inputmethod.latin.BuildConfig
+import kotlin.math.ceil
+
+/**
+ * Latencies in milliseconds, bucketed by powers of two. Old samples fade out, so the histogram
+ * follows changes such as switching to a different language model.
+ */
+class LatencyHistogram {
+    private val counts = IntArray(NumBuckets)
+    private var total = 0
+
+    @Synchronized
+    fun record(ms: Long) {
+        // Bucket i holds latencies in (2^(i-1), 2^i]
+        val bucket = if(ms <= 1L) 0 else (64 - java.lang.Long.numberOfLeadingZeros(ms - 1L))
+        counts[bucket.coerceAtMost(NumBuckets - 1)]++
+        total++
+
+        if(total >= MaxSamples) {
+            total = 0
+            for(i in counts.indices) {
+                counts[i] /= 2
+                total += counts[i]
+            }
+        }
+    }
+
+    /** Upper bound of the bucket that the given percentile (0 to 1) falls in, or null if empty */
+    @Synchronized
+    fun percentile(p: Float): Long? {
+        if(total == 0) return null
+
+        val target = ceil(total * p).toInt().coerceAtLeast(1)
+        var seen = 0
+        for(i in counts.indices) {
+            seen += counts[i]
+            if(seen >= target) return 1L shl i
+        }
+        return 1L shl (NumBuckets - 1)
+    }
+
+    override fun toString(): String =
+        "p50=${percentile(0.5f) ?: "-"}ms p90=${percentile(0.9f) ?: "-"}ms"
+
+    companion object {
+        private const val NumBuckets = 12
+        private const val MaxSamples = 256
+    }
+}
+
+enum class LanguageModelPlan {
+    /** Wait for the language model for as long as usual */
+    Full,
+
+    /** Wait only until the next key is expected, then show the dictionary result */
+    Shortened,
+
+    /**
+     * The language model wouldn't finish before the next key. Show the dictionary result, and only
+     * run the language model if no key was typed within the typing interval.
+     */
+    Deferred
+}
+
+data class SuggestionSchedule(
+    val debounceMs: Long,
+    val plan: LanguageModelPlan,
+    val languageModelWaitMs: Long,
+    val deferMs: Long = 0L
+)
+
+/**
+ * Decides how long suggestion updates are debounced and how long they wait for the language
+ * model, from the measured latency of each stage and the user's typing speed.
+ */
+class SuggestionScheduler {
+    private val TAG = "SuggestionScheduler"
+
+    val dictionary = LatencyHistogram()
+    val languageModel = LatencyHistogram()
+    val merge = LatencyHistogram()
+
+    private val planCounts = IntArray(LanguageModelPlan.entries.size)
+
+    @Volatile
+    var lastSchedule: SuggestionSchedule? = null
+        private set
+
+    /**
+     * @param typingIntervalMs the recent average time between keys, or 0 if the user isn't typing
+     * @param useLanguageModel whether the language model is used at all
+     */
+    fun schedule(typingIntervalMs: Long, useLanguageModel: Boolean): SuggestionSchedule {
+        // With transformer off keep 40ms static delay for legacy reasons (less battery use)
+        if(!useLanguageModel) {
+            return SuggestionSchedule(MaxDebounceMs, LanguageModelPlan.Full, 0L)
+        }
+
+        val dictionaryMs = dictionary.percentile(0.5f)
+        val languageModelMs = languageModel.percentile(0.5f)
+        val languageModelSlowMs = languageModel.percentile(0.9f)
+
+        // On fast devices, prefer to wait less to improve responsiveness
+        val debounceMs = if(dictionaryMs == null || languageModelMs == null) {
+            MaxDebounceMs
+        } else {
+            ((dictionaryMs + languageModelMs + (merge.percentile(0.5f) ?: 0L)) / 2)
+                .coerceIn(MinDebounceMs, MaxDebounceMs)
+        }
+
+        // The language model request starts once the debounce is over
+        val availableMs = typingIntervalMs - debounceMs
+        val schedule = when {
+            typingIntervalMs <= 0L || languageModelMs == null || languageModelSlowMs == null ->
+                SuggestionSchedule(debounceMs, LanguageModelPlan.Full, MaxLanguageModelWaitMs)
+
+            languageModelSlowMs <= availableMs ->
+                SuggestionSchedule(debounceMs, LanguageModelPlan.Full, MaxLanguageModelWaitMs)
+
+            languageModelMs <= availableMs ->
+                SuggestionSchedule(debounceMs, LanguageModelPlan.Shortened,
+                    availableMs.coerceIn(MinLanguageModelWaitMs, MaxLanguageModelWaitMs))
+
+            else ->
+                SuggestionSchedule(debounceMs, LanguageModelPlan.Deferred, MaxLanguageModelWaitMs,
+                    deferMs = typingIntervalMs * 3 / 2)
+        }
+
+        synchronized(planCounts) { planCounts[schedule.plan.ordinal]++ }
+        lastSchedule = schedule
+        if(BuildConfig.DEBUG) {
+            Log.d(TAG, "Typing interval ${typingIntervalMs}ms, dictionary $dictionary, LM $languageModel -> $schedule")
+        }
+
+        return schedule
+    }
+
+    fun debugInfo(): List<String> = buildList {
+        add("scheduler.dictionary = $dictionary")
+        add("scheduler.languageModel = $languageModel")
+        add("scheduler.merge = $merge")
+        synchronized(planCounts) {
+            add("scheduler.plans = " + LanguageModelPlan.entries.joinToString { "$it: ${planCounts[it.ordinal]}" })
+        }
+        add("scheduler.last = $lastSchedule")
+    }
+
+    companion object {
+        const val MaxLanguageModelWaitMs = 350L
+        private const val MinLanguageModelWaitMs = 30L
+        private const val MinDebounceMs = 16L
+        private const val MaxDebounceMs = 40L
+    }
+}
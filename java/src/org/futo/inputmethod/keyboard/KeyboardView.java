@@ -34,6 +34,7 @@ import android.util.AttributeSet;
 import android.view.View;
 
 import org.futo.inputmethod.keyboard.internal.KeyDrawParams;
+import org.futo.inputmethod.keyboard.internal.KeyRenderNodes;
 import org.futo.inputmethod.keyboard.internal.KeyVisualAttributes;
 import org.futo.inputmethod.latin.uix.DynamicThemeProvider;
 import org.futo.inputmethod.latin.R;
@@ -121,6 +122,10 @@ public class KeyboardView extends View {
     /** The canvas for the above mutable keyboard bitmap */
     @Nonnull
     private final Canvas mOffscreenCanvas = new Canvas();
+    // Per-key display lists, used instead of the offscreen buffer when hardware accelerated
+    @Nullable
+    private final KeyRenderNodes mKeyRenderNodes =
+            Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q ? new KeyRenderNodes() : null;
     @Nonnull
     private final Paint mPaint = new Paint();
     private final Paint.FontMetrics mFontMetrics = new Paint.FontMetrics();
@@ -260,7 +265,11 @@ public class KeyboardView extends View {
         mKeyboardBackground.draw(canvas);
 
         if (canvas.isHardwareAccelerated()) {
-            onDrawKeyboard(canvas);
+            if (mKeyRenderNodes != null && KeyRenderNodes.canDrawOn(canvas)) {
+                onDrawKeyboardRenderNodes(canvas);
+            } else {
+                onDrawKeyboard(canvas);
+            }
             return;
         }
 
@@ -294,6 +303,10 @@ public class KeyboardView extends View {
     private void freeOffscreenBuffer() {
         setLayerType(LAYER_TYPE_NONE, null);
 
+        if (mKeyRenderNodes != null) {
+            mKeyRenderNodes.clear();
+        }
+
         mOffscreenCanvas.setBitmap(null);
         mOffscreenCanvas.setMatrix(null);
         if (mOffscreenBuffer != null) {
@@ -314,7 +327,7 @@ public class KeyboardView extends View {
         final boolean drawAllKeys = mInvalidateAllKeys || mInvalidatedKeys.isEmpty();
         final boolean isHardwareAccelerated = canvas.isHardwareAccelerated();
         final List<Integer> layers = mDrawableProvider.getLayers();
-        if (drawAllKeys || isHardwareAccelerated || layers.size() > 1) {
+        if (drawAllKeys || isHardwareAccelerated) {
             if (!isHardwareAccelerated && background != null) {
                 // Need to draw keyboard background on {@link #mOffscreenBuffer}.
                 canvas.drawColor(Color.BLACK, PorterDuff.Mode.CLEAR);
@@ -332,18 +345,27 @@ public class KeyboardView extends View {
                 if (!keyboard.hasKey(key)) {
                     continue;
                 }
+                final int x = key.getX() + getPaddingLeft();
+                final int y = key.getY() + getPaddingTop();
+                mClipRect.set(x, y, x + key.getWidth(), y + key.getHeight());
+                canvas.save();
+                canvas.clipRect(mClipRect);
                 if (background != null) {
                     // Need to redraw key's background on {@link #mOffscreenBuffer}.
-                    final int x = key.getX() + getPaddingLeft();
-                    final int y = key.getY() + getPaddingTop();
-                    mClipRect.set(x, y, x + key.getWidth(), y + key.getHeight());
-                    canvas.save();
-                    canvas.clipRect(mClipRect);
                     canvas.drawColor(Color.BLACK, PorterDuff.Mode.CLEAR);
                     background.draw(canvas);
-                    canvas.restore();
                 }
-                onDrawKey(key, canvas, paint, 0);
+                // Neighboring keys and lower layers may draw into this key's area, so redraw
+                // everything that overlaps it, in the same order as when drawing all keys.
+                for (int i = 0; i < layers.size(); i++) {
+                    final int layer = layers.get(i);
+                    for (final Key other : keyboard.getSortedKeys()) {
+                        if (overlapsClipRect(other)) {
+                            onDrawKey(other, canvas, paint, layer);
+                        }
+                    }
+                }
+                canvas.restore();
             }
         }
 
@@ -351,6 +373,28 @@ public class KeyboardView extends View {
         mInvalidateAllKeys = false;
     }
 
+    private boolean overlapsClipRect(@Nonnull final Key key) {
+        final int x = key.getX() + getPaddingLeft();
+        final int y = key.getY() + getPaddingTop();
+        return mClipRect.intersects(x, y, x + key.getWidth(), y + key.getHeight());
+    }
+
+    private final KeyRenderNodes.KeyDrawer mKeyDrawer =
+            (key, canvas, layer) -> onDrawKey(key, canvas, mPaint, layer);
+
+    private void onDrawKeyboardRenderNodes(@Nonnull final Canvas canvas) {
+        final Keyboard keyboard = getKeyboard();
+        if (keyboard == null) {
+            return;
+        }
+
+        mKeyRenderNodes.draw(canvas, keyboard, mDrawableProvider.getLayers(), getWidth(),
+                getHeight(), mInvalidateAllKeys, mInvalidatedKeys, mKeyDrawer);
+
+        mInvalidatedKeys.clear();
+        mInvalidateAllKeys = false;
+    }
+
     private Rect getKeyDrawOffsetAndSize(final Key key, final KeyDrawingConfiguration cfg) {
         float keyDrawX = key.getDrawX() + getPaddingLeft();
         float keyDrawY = key.getY() + getPaddingTop();
@@ -442,6 +442,15 @@ public final class PointerTracker implements PointerTrackerQueue.Element,
         }
     }
 
+    /**
+     * Returns the recent average time between typed keys in msec, or 0 if the user isn't typing.
+     * @see TypingTimeRecorder#getTypingInterval(long)
+     */
+    public static long getTypingInterval(final long eventTime) {
+        if (sTypingTimeRecorder == null) return 0;
+        return sTypingTimeRecorder.getTypingInterval(eventTime);
+    }
+
     private static boolean needsToSuppressKeyPreviewPopup(final long eventTime) {
         if (!sGestureEnabler.shouldHandleGesture()) return false;
         return sTypingTimeRecorder.needsToSuppressKeyPreviewPopup(eventTime);
@@ -0,0 +1,109 @@
+package org.futo.inputmethod.keyboard.internal;
+
+import android.annotation.TargetApi;
+import android.graphics.Canvas;
+import android.graphics.RecordingCanvas;
+import android.graphics.RenderNode;
+import android.os.Build;
+
+import org.futo.inputmethod.keyboard.Key;
+import org.futo.inputmethod.keyboard.Keyboard;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Display lists of individual keys for hardware accelerated drawing. Hardware accelerated views
+ * record their entire onDraw again on every invalidation, no matter how small the dirty region,
+ * so keeping one {@link RenderNode} per key and layer means that pressing a key only records
+ * that key again, and every other key is replayed from its existing display list.
+ */
+@TargetApi(Build.VERSION_CODES.Q)
+public final class KeyRenderNodes {
+    public interface KeyDrawer {
+        void drawKey(@Nonnull Key key, @Nonnull Canvas canvas, int layer);
+    }
+
+    // Key is a data class, hashing it walks every property and equal keys must not share nodes
+    private final IdentityHashMap<Key, RenderNode[]> mNodes = new IdentityHashMap<>();
+    private final ArrayList<Integer> mLayers = new ArrayList<>();
+    private int mWidth;
+    private int mHeight;
+
+    public static boolean canDrawOn(@Nonnull final Canvas canvas) {
+        return canvas instanceof RecordingCanvas;
+    }
+
+    public void clear() {
+        for (final RenderNode[] nodes : mNodes.values()) {
+            for (final RenderNode node : nodes) {
+                if (node != null) {
+                    node.discardDisplayList();
+                }
+            }
+        }
+        mNodes.clear();
+    }
+
+    /**
+     * Draws every key of the keyboard. Keys in {@code invalidatedKeys}, or all of them if
+     * {@code drawAllKeys} is set, are recorded again first.
+     */
+    public void draw(@Nonnull final Canvas canvas, @Nonnull final Keyboard keyboard,
+            @Nonnull final List<Integer> layers, final int width, final int height,
+            final boolean drawAllKeys, @Nonnull final Collection<Key> invalidatedKeys,
+            @Nonnull final KeyDrawer drawer) {
+        if (drawAllKeys || !layers.equals(mLayers) || width != mWidth || height != mHeight) {
+            clear();
+            mLayers.clear();
+            mLayers.addAll(layers);
+            mWidth = width;
+            mHeight = height;
+        } else {
+            for (final Key key : invalidatedKeys) {
+                final RenderNode[] nodes = mNodes.get(key);
+                if (nodes == null) continue;
+                for (final RenderNode node : nodes) {
+                    if (node != null) {
+                        node.discardDisplayList();
+                    }
+                }
+            }
+        }
+
+        final RecordingCanvas recordingCanvas = (RecordingCanvas) canvas;
+        final int numLayers = layers.size();
+        for (int i = 0; i < numLayers; i++) {
+            final int layer = layers.get(i);
+            for (final Key key : keyboard.getSortedKeys()) {
+                RenderNode[] nodes = mNodes.get(key);
+                if (nodes == null) {
+                    nodes = new RenderNode[numLayers];
+                    mNodes.put(key, nodes);
+                }
+
+                RenderNode node = nodes[i];
+                if (node == null) {
+                    node = new RenderNode(null);
+                    node.setPosition(0, 0, width, height);
+                    nodes[i] = node;
+                }
+
+                if (!node.hasDisplayList()) {
+                    final RecordingCanvas keyCanvas = node.beginRecording(width, height);
+                    try {
+                        drawer.drawKey(key, keyCanvas, layer);
+                    } finally {
+                        node.endRecording();
+                    }
+                }
+
+                recordingCanvas.drawRenderNode(node);
+            }
+        }
+    }
+}
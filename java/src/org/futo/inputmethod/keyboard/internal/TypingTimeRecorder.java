@@ -17,11 +17,15 @@
 package org.futo.inputmethod.keyboard.internal;
 
 public final class TypingTimeRecorder {
+    // Longer gaps between keys are pauses, which don't count towards the typing speed
+    private static final long MAX_TYPING_INTERVAL = 1000; // msec
+
     private final int mStaticTimeThresholdAfterFastTyping; // msec
     private final int mSuppressKeyPreviewAfterBatchInputDuration;
     private long mLastTypingTime;
     private long mLastLetterTypingTime;
     private long mLastBatchInputTime;
+    private long mAverageTypingInterval; // msec
 
     public TypingTimeRecorder(final int staticTimeThresholdAfterFastTyping,
             final int suppressKeyPreviewAfterBatchInputDuration) {
@@ -54,6 +58,11 @@ public final class TypingTimeRecorder {
                 mLastLetterTypingTime = eventTime;
             }
         }
+        final long interval = eventTime - mLastTypingTime;
+        if (mLastTypingTime > 0 && interval > 0 && interval < MAX_TYPING_INTERVAL) {
+            mAverageTypingInterval = mAverageTypingInterval == 0 ? interval
+                    : (mAverageTypingInterval * 3 + interval) / 4;
+        }
         mLastTypingTime = eventTime;
     }
 
@@ -61,6 +70,15 @@ public final class TypingTimeRecorder {
         mLastBatchInputTime = eventTime;
     }
 
+    /**
+     * Returns the recent average time between typed keys in msec, or 0 if the user has paused
+     * typing or the typing speed is unknown.
+     */
+    public long getTypingInterval(final long eventTime) {
+        if (eventTime - mLastTypingTime >= MAX_TYPING_INTERVAL) return 0;
+        return mAverageTypingInterval;
+    }
+
     public long getLastLetterTypingTime() {
         return mLastLetterTypingTime;
     }
@@ -43,8 +43,10 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 /**
  * Implements a static, compacted, binary dictionary of standard words.
@@ -53,9 +55,12 @@ import javax.annotation.Nonnull;
 public final class BinaryDictionary extends Dictionary {
     private static final String TAG = BinaryDictionary.class.getSimpleName();
 
-    // To prevent free-during-use by external libraries referencing the dictionary handle
-    // (swipe integration)
-    public static Object sTrieUsageLock = new Object();
+    // To prevent free-during-use by external libraries referencing this dictionary's ITrie
+    // (swipe integration). Users hold the read lock via ITrieHandle, closing and rebuilding the
+    // ITrie take the write lock.
+    private final ReentrantReadWriteLock mTrieLock = new ReentrantReadWriteLock();
+    // Incremented whenever the ITrie is rebuilt or freed, invalidating earlier ITrieHandles
+    private volatile long mTrieGeneration = 0;
 
     // The cutoff returned by native for auto-commit confidence.
     // Must be equal to CONFIDENCE_TO_AUTO_COMMIT in native/jni/src/defines.h
@@ -657,12 +662,39 @@ public final class BinaryDictionary extends Dictionary {
         }
     }
 
-    public long getITrie(final String letters, boolean allowBadWords) {
+    @Nullable
+    public ITrieHandle getITrie(final String letters, boolean allowBadWords) {
         if (!isValidDictionary()) {
-            return 0;
+            return null;
+        }
+
+        // The native dictionary has a single ITrie which is repopulated here, so any handle that
+        // is still in use has to be released first
+        lockTrieForWriting();
+        try {
+            mTrieGeneration++;
+            final long handle = getITrieHandleNative(mNativeDict, letters, allowBadWords);
+            if (handle == 0) {
+                return null;
+            }
+            return new ITrieHandle(this, handle, mTrieGeneration);
+        } finally {
+            mTrieLock.writeLock().unlock();
         }
+    }
+
+    ReentrantReadWriteLock getTrieLock() {
+        return mTrieLock;
+    }
 
-        return getITrieHandleNative(mNativeDict, letters, allowBadWords);
+    long getTrieGeneration() {
+        return mTrieGeneration;
+    }
+
+    private void lockTrieForWriting() {
+        final long startTime = System.nanoTime();
+        mTrieLock.writeLock().lock();
+        ITrieHandle.recordWaitTime(System.nanoTime() - startTime);
     }
 
     @UsedForTesting
@@ -694,12 +726,16 @@ public final class BinaryDictionary extends Dictionary {
     }
 
     private synchronized void closeInternalLocked() {
-        synchronized (sTrieUsageLock) {
+        lockTrieForWriting();
+        try {
             if (mNativeDict != 0) {
-                DictionaryFacilitatorImpl.onAnyBinaryDictionaryClosed();
+                mTrieGeneration++;
+                DictionaryFacilitatorImpl.onAnyBinaryDictionaryClosed(this);
                 closeNative(mNativeDict);
                 mNativeDict = 0;
             }
+        } finally {
+            mTrieLock.writeLock().unlock();
         }
     }
 
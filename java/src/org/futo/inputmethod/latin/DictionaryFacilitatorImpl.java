@@ -18,6 +18,7 @@ package org.futo.inputmethod.latin;
 
 import android.Manifest;
 import android.content.Context;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 import android.util.LruCache;
@@ -28,10 +29,12 @@ import org.futo.inputmethod.annotations.UsedForTesting;
 import org.futo.inputmethod.keyboard.Keyboard;
 import org.futo.inputmethod.keyboard.KeyboardId;
 import org.futo.inputmethod.keyboard.KeyboardLayout;
+import org.futo.inputmethod.keyboard.ProximityInfo;
 import org.futo.inputmethod.latin.NgramContext.WordInfo;
 import org.futo.inputmethod.latin.SuggestedWords.SuggestedWordInfo;
 import org.futo.inputmethod.latin.common.ComposedData;
 import org.futo.inputmethod.latin.common.Constants;
+import org.futo.inputmethod.latin.common.InputPointers;
 import org.futo.inputmethod.latin.common.StringUtils;
 import org.futo.inputmethod.latin.permissions.PermissionsUtil;
 import org.futo.inputmethod.latin.personalization.UserHistoryDictionary;
@@ -51,9 +54,16 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -97,13 +107,22 @@ public class DictionaryFacilitatorImpl implements DictionaryFacilitator {
 
     public static SwipeDecoderDictionary swipeDecoderDictionary = null;
 
+    // How long to wait for the lookups of secondary locales, counted from the end of the first
+    // lookup. Lookups of the primary locale are always waited for.
+    private static final long SECONDARY_LOOKUP_DEADLINE_MS = 100;
+    // Lookups that are still running, keyed by the dictionary they run on.
+    private final ConcurrentHashMap<Dictionary, DictionaryLookup> mPendingLookups =
+            new ConcurrentHashMap<>();
+
     private LruCache<String, Boolean> mValidSpellingWordReadCache;
     private LruCache<String, Boolean> mValidSpellingWordWriteCache;
 
     private static boolean sTriesAreInvalid = false;
-    public static void onAnyBinaryDictionaryClosed() {
+    public static void onAnyBinaryDictionaryClosed(final BinaryDictionary dictionary) {
         sTriesAreInvalid = true;
-        swipeDecoderDictionary.invalidateTries();
+        if (swipeDecoderDictionary != null) {
+            swipeDecoderDictionary.invalidateTriesOf(dictionary);
+        }
     }
 
     @Override
@@ -410,6 +429,8 @@ public class DictionaryFacilitatorImpl implements DictionaryFacilitator {
         }
 
         mTrieCorrespondingGroups = null;
+        mTrieHandles = null;
+        mDictionaryGeneration++;
         ArrayList<DictionaryGroup> newDictionaryGroups = new ArrayList<>();
         for(Locale newLocale : newLocales) {
             final DictionaryGroup dictionaryGroupForLocale =
@@ -557,6 +578,7 @@ public class DictionaryFacilitatorImpl implements DictionaryFacilitator {
         }
         mDictionaryGroups = new ArrayList<>();
         mDictionaryGroups.add(new DictionaryGroup(locale, mainDictionary, account, subDicts));
+        mDictionaryGeneration++;
     }
 
     public void closeDictionaries() {
@@ -900,6 +922,14 @@ public class DictionaryFacilitatorImpl implements DictionaryFacilitator {
             }
         }
 
+        // In multilingual mode, look up each dictionary concurrently instead of one after another
+        if (mDictionaryGroups.size() > 1) {
+            addSuggestionResultsConcurrently(suggestionResults, composedData, ngramContext,
+                    keyboard.getProximityInfo(), settingsValuesForSuggestion, sessionId,
+                    weightOfLangModelVsSpatialModel);
+            return suggestionResults;
+        }
+
         for(DictionaryGroup dictionaryGroup : mDictionaryGroups) {
             for (final String dictType : ALL_DICTIONARY_TYPES) {
                 final Dictionary dictionary = dictionaryGroup.getDict(dictType);
@@ -921,6 +951,172 @@ public class DictionaryFacilitatorImpl implements DictionaryFacilitator {
         return suggestionResults;
     }
 
+    /**
+     * A lookup into one dictionary, see {@link #addSuggestionResultsConcurrently}. It stays in
+     * {@link #mPendingLookups} until it is done, which also keeps the proximity info and with it
+     * the native proximity info alive while it runs.
+     */
+    private final class DictionaryLookup extends FutureTask<ArrayList<SuggestedWordInfo>> {
+        private final Dictionary mDictionary;
+        private final ProximityInfo mProximityInfo;
+        public final boolean mIsPrimary;
+
+        DictionaryLookup(final Callable<ArrayList<SuggestedWordInfo>> callable,
+                final Dictionary dictionary, final ProximityInfo proximityInfo,
+                final boolean isPrimary) {
+            super(callable);
+            mDictionary = dictionary;
+            mProximityInfo = proximityInfo;
+            mIsPrimary = isPrimary;
+        }
+
+        @Override
+        protected void done() {
+            mPendingLookups.remove(mDictionary, this);
+        }
+    }
+
+    private static void startLookup(final ExecutorService executor, final DictionaryLookup lookup) {
+        try {
+            executor.execute(lookup);
+        } catch (final RejectedExecutionException e) {
+            // Fall back to looking up on this thread
+            lookup.run();
+        }
+    }
+
+    /**
+     * Same as the sequential lookup loop in {@link #getSuggestionResults}, except that the
+     * lookups of each dictionary run on {@link ExecutorUtils#LOOKUP}. Every dictionary keeps its
+     * own {@link DicTraverseSession} per session id, so lookups into different dictionaries don't
+     * share native state. Results are merged in group and dictionary type order regardless of
+     * which lookup finishes first.
+     *
+     * The lookups of the primary locale are always waited for. Those of secondary locales get
+     * {@link #SECONDARY_LOOKUP_DEADLINE_MS} after the first lookup, and the ones that miss it
+     * keep running on their own copy of the input. A dictionary whose previous lookup is still
+     * running is looked up once that one is done, within the same deadline, so that two lookups
+     * never share a traverse session.
+     */
+    private void addSuggestionResultsConcurrently(final SuggestionResults suggestionResults,
+            final ComposedData composedData, final NgramContext ngramContext,
+            final ProximityInfo proximityInfo,
+            final SettingsValuesForSuggestion settingsValuesForSuggestion, final int sessionId,
+            final float[] weightOfLangModelVsSpatialModel) {
+        final ExecutorService executor =
+                ExecutorUtils.getBackgroundExecutor(ExecutorUtils.LOOKUP);
+        final long proximityInfoHandle = proximityInfo.getNativeProximityInfo();
+
+        // The word composer keeps changing its input pointers, which lookups that outlive this
+        // call must not see
+        final InputPointers inputPointers =
+                new InputPointers(composedData.mInputPointers.getPointerSize());
+        inputPointers.copy(composedData.mInputPointers);
+        final ComposedData composedDataCopy = new ComposedData(inputPointers,
+                composedData.mIsBatchMode, composedData.mTypedWord);
+
+        final ArrayList<DictionaryLookup> lookups = new ArrayList<>();
+        final HashMap<DictionaryLookup, DictionaryLookup> blockedLookups = new HashMap<>();
+
+        boolean isFirstLookup = true;
+        for(DictionaryGroup dictionaryGroup : mDictionaryGroups) {
+            final boolean isPrimary = dictionaryGroup == mDictionaryGroups.get(0);
+            for (final String dictType : ALL_DICTIONARY_TYPES) {
+                final Dictionary dictionary = dictionaryGroup.getDict(dictType);
+                if (null == dictionary) continue;
+                final float weightForLocale = composedData.mIsBatchMode
+                        ? dictionaryGroup.mWeightForGesturingInLocale
+                        : dictionaryGroup.mWeightForTypingInLocale;
+
+                // The first lookup computes the weight of the language model vs the spatial
+                // model which all following lookups reuse, so it runs ahead on this thread and
+                // every other lookup gets its own copy of the result.
+                final float[] weight = isFirstLookup ? weightOfLangModelVsSpatialModel
+                        : new float[] { weightOfLangModelVsSpatialModel[0] };
+
+                final DictionaryLookup lookup = new DictionaryLookup(() ->
+                        dictionary.getSuggestions(composedDataCopy, ngramContext,
+                                proximityInfoHandle, settingsValuesForSuggestion, sessionId,
+                                weightForLocale, weight),
+                        dictionary, proximityInfo, isPrimary);
+                lookups.add(lookup);
+
+                final DictionaryLookup previous = mPendingLookups.putIfAbsent(dictionary, lookup);
+                if (previous != null) {
+                    blockedLookups.put(lookup, previous);
+                } else if (isFirstLookup) {
+                    lookup.run();
+                } else {
+                    startLookup(executor, lookup);
+                }
+                isFirstLookup = false;
+            }
+        }
+
+        final long deadline = SystemClock.uptimeMillis() + SECONDARY_LOOKUP_DEADLINE_MS;
+        boolean interrupted = false;
+
+        for (final Map.Entry<DictionaryLookup, DictionaryLookup> entry
+                : blockedLookups.entrySet()) {
+            final DictionaryLookup lookup = entry.getKey();
+            if (!interrupted) {
+                try {
+                    entry.getValue().get(Math.max(0, deadline - SystemClock.uptimeMillis()),
+                            TimeUnit.MILLISECONDS);
+                } catch (final ExecutionException | CancellationException e) {
+                    // Only its completion matters here
+                } catch (final TimeoutException e) {
+                    Log.w(TAG, "Skipping " + lookup.mDictionary.mDictType
+                            + " lookup, previous lookup still running");
+                } catch (final InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (entry.getValue().isDone()
+                    && mPendingLookups.putIfAbsent(lookup.mDictionary, lookup) == null) {
+                startLookup(executor, lookup);
+            } else {
+                lookup.cancel(false);
+            }
+        }
+
+        for (final DictionaryLookup lookup : lookups) {
+            ArrayList<SuggestedWordInfo> dictionarySuggestions = null;
+            while (true) {
+                try {
+                    if (lookup.mIsPrimary) {
+                        dictionarySuggestions = lookup.get();
+                    } else if (!interrupted) {
+                        dictionarySuggestions = lookup.get(
+                                Math.max(0, deadline - SystemClock.uptimeMillis()),
+                                TimeUnit.MILLISECONDS);
+                    }
+                    break;
+                } catch (final CancellationException e) {
+                    break;
+                } catch (final TimeoutException e) {
+                    Log.w(TAG, lookup.mDictionary.mDictType
+                            + " lookup missed the deadline, dropping its suggestions");
+                    break;
+                } catch (final ExecutionException e) {
+                    Log.e(TAG, "Dictionary lookup failed", e.getCause());
+                    break;
+                } catch (final InterruptedException e) {
+                    // Keep waiting for the primary locale, but not for the others
+                    interrupted = true;
+                }
+            }
+            if (null == dictionarySuggestions) continue;
+            suggestionResults.addAll(dictionarySuggestions);
+            if (null != suggestionResults.mRawSuggestions) {
+                suggestionResults.mRawSuggestions.addAll(dictionarySuggestions);
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     private void addEmojiSuggestionsForSwipe(SuggestionResults results, SuggestedWordInfo topWord) {
         for (DictionaryGroup dictionaryGroup : mDictionaryGroups) {
             final Dictionary emojiDict = dictionaryGroup.getDict(Dictionary.TYPE_EMOJI);
@@ -1058,10 +1254,10 @@ public class DictionaryFacilitatorImpl implements DictionaryFacilitator {
         }
     }
 
-    private void addDictionaryTries(List<Dictionary> dictList, String letters, ArrayList<Long> tries,
+    private void addDictionaryTries(List<Dictionary> dictList, String letters, ArrayList<ITrieHandle> tries,
                                     boolean allowBadWords) {
         for(Dictionary dict : dictList) {
-            long handle = 0;
+            ITrieHandle handle = null;
             if(dict instanceof BinaryDictionary) {
                 handle = ((BinaryDictionary) dict).getITrie(letters, allowBadWords);
             } else if(dict instanceof ReadOnlyBinaryDictionary) {
@@ -1072,7 +1268,7 @@ public class DictionaryFacilitatorImpl implements DictionaryFacilitator {
                 addDictionaryTries(((DictionaryCollection) dict).getDictionaries(), letters, tries, allowBadWords);
             }
 
-            if(handle == 0) continue;
+            if(handle == null) continue;
             tries.add(handle);
         }
     }
@@ -1081,6 +1277,27 @@ public class DictionaryFacilitatorImpl implements DictionaryFacilitator {
     private Keyboard mPrevKeyboard = null;
     private ArrayList<DictionaryGroup> mTrieCorrespondingGroups;
 
+    // Each dictionary has a single native ITrie built for one set of letters, so only the most
+    // recently built set of tries can still be valid. It is reused as long as the letters, the
+    // bad word setting and the dictionaries are unchanged and none of the ITries were rebuilt.
+    private int mDictionaryGeneration = 0;
+    private ArrayList<ITrieHandle> mTrieHandles;
+    private String mTrieLetters;
+    private boolean mTrieBadWordsAllowed;
+    private int mTrieDictionaryGeneration = -1;
+
+    private boolean canReuseTries(final String letters, final boolean allowBadWords) {
+        if (mTrieHandles == null || mTrieCorrespondingGroups == null) return false;
+        if (mTrieDictionaryGeneration != mDictionaryGeneration) return false;
+        if (mTrieBadWordsAllowed != allowBadWords || !letters.equals(mTrieLetters)) return false;
+        if (mTrieHandles.isEmpty()) return false;
+
+        for (final ITrieHandle handle : mTrieHandles) {
+            if (!handle.isCurrent()) return false;
+        }
+        return true;
+    }
+
     private float[] getTrieWeights() {
         if(mTrieCorrespondingGroups == null) return new float[0];
 
@@ -1102,9 +1319,8 @@ public class DictionaryFacilitatorImpl implements DictionaryFacilitator {
     public void updateSwipeLayoutAndDictsIfNeeded(SettingsValues values, Keyboard keyboard) {
         if(swipeDecoderDictionary == null) return;
 
-        // TODO: This could be more optimized by avoiding unnecessary recreations when
-        //  isMultiLine is changed, or something else trivial has changed. Maybe also cache the
-        //  resulting LayoutInfos
+        // A new Keyboard may still be identical for swiping purposes, in which case the cached
+        // layout info and tries are reused below
         boolean needsToRecreate = keyboard != mPrevKeyboard;
         if(sTriesAreInvalid) {
             needsToRecreate = true;
@@ -1123,12 +1339,18 @@ public class DictionaryFacilitatorImpl implements DictionaryFacilitator {
         if(layout == null) return;
 
         mPrevKeyboard = keyboard;
-        final LayoutInfoForModel info = LayoutInfoForModel.buildLayoutInfo(swipeDecoderDictionary.getContext(), keyboard, values);
+        final LayoutInfoForModel info = LayoutInfoForModel.getOrBuildLayoutInfo(swipeDecoderDictionary.getContext(), keyboard, values);
         // Log.d("DictionaryFacilitatorImpl", "Keyboard updated... New info: " + info);
 
+        if(info != null && !sTriesAreInvalid && canReuseTries(info.getLetters(), allowBadWords)) {
+            mPrevBadWordsAllowed = allowBadWords;
+            swipeDecoderDictionary.updateKeyboard(new SwipeDecoderDictionary.PendingLayoutInfo(info, mTrieHandles));
+            return;
+        }
+
         if(info != null) {
             // Make sure to update tries
-            ArrayList<Long> trieArray = new ArrayList<>();
+            ArrayList<ITrieHandle> trieArray = new ArrayList<>();
 
             mTrieCorrespondingGroups = new ArrayList<>();
 
@@ -1148,6 +1370,10 @@ public class DictionaryFacilitatorImpl implements DictionaryFacilitator {
             }
 
             mPrevBadWordsAllowed = allowBadWords;
+            mTrieHandles = trieArray;
+            mTrieLetters = info.getLetters();
+            mTrieBadWordsAllowed = allowBadWords;
+            mTrieDictionaryGeneration = mDictionaryGeneration;
             swipeDecoderDictionary.updateKeyboard(new SwipeDecoderDictionary.PendingLayoutInfo(info, trieArray));
             sTriesAreInvalid = trieArray.isEmpty();
         }
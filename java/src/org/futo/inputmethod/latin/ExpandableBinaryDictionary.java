@@ -17,6 +17,7 @@
 package org.futo.inputmethod.latin;
 
 import android.content.Context;
+import android.os.SystemClock;
 import android.util.Log;
 
 import org.futo.inputmethod.annotations.UsedForTesting;
@@ -42,6 +43,7 @@ import java.util.Map;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -66,6 +68,8 @@ abstract public class ExpandableBinaryDictionary extends Dictionary {
     private static final boolean DBG_STRESS_TEST = false;
 
     private static final int TIMEOUT_FOR_READ_OPS_IN_MILLISECONDS = 100;
+    // How often a read that waits for a write checks whether a long task took over the lock
+    private static final int READ_LOCK_POLL_INTERVAL_IN_MILLISECONDS = 5;
 
     /**
      * The maximum length of a word in this dictionary.
@@ -104,6 +108,28 @@ abstract public class ExpandableBinaryDictionary extends Dictionary {
 
     private final ReentrantReadWriteLock mLock;
 
+    /**
+     * A read-only copy of the dictionary as of its last flush to {@link #mDictFile}. Reads that
+     * find {@link #mLock} held by a GC, a flush or a reload are answered from it right away
+     * instead of waiting. It lacks updates made since that flush, so reads wait for other writes.
+     */
+    private volatile BinaryDictionary mSnapshotDictionary;
+    /** Modification time of the dictionary file the snapshot was opened from, or 0 if none */
+    private long mSnapshotFileTime;
+    /** Only held for writing while the snapshot is being swapped */
+    private final ReentrantReadWriteLock mSnapshotLock;
+
+    /** Whether a GC, flush or reload holds {@link #mLock}, see {@link #runLongTaskLocked} */
+    private volatile boolean mIsRunningLongTask;
+
+    private static final AtomicLong sLongTaskReadCount = new AtomicLong();
+    private static final AtomicLong sSnapshotReadCount = new AtomicLong();
+    private static final AtomicLong sWriteWaitReadCount = new AtomicLong();
+
+    private interface SnapshotRead<T> {
+        T read(@Nonnull BinaryDictionary snapshot);
+    }
+
     private Map<String, String> mAdditionalAttributeMap = null;
 
     /* A extension for a binary dictionary file. */
@@ -149,6 +175,7 @@ abstract public class ExpandableBinaryDictionary extends Dictionary {
         mIsReloading = new AtomicBoolean();
         mNeedsToRecreate = false;
         mLock = new ReentrantReadWriteLock();
+        mSnapshotLock = new ReentrantReadWriteLock();
     }
 
     public static File getDictFile(final Context context, final String dictName,
@@ -162,12 +189,166 @@ abstract public class ExpandableBinaryDictionary extends Dictionary {
         return dictFile != null ? dictFile.getName() : name + "." + locale.toString();
     }
 
-    private void asyncExecuteTaskWithWriteLock(final Runnable task) {
-        asyncExecuteTaskWithLock(mLock.writeLock(), task);
+    private void asyncExecuteTaskWithWriteLock(final int priority, final Runnable task) {
+        asyncExecuteTaskWithLock(mLock.writeLock(), priority, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } finally {
+                    updateSnapshotLocked();
+                }
+            }
+        });
     }
 
-    private static void asyncExecuteTaskWithLock(final Lock lock, final Runnable task) {
-        ExecutorUtils.getBackgroundExecutor(ExecutorUtils.KEYBOARD).execute(new Runnable() {
+    /** For GC, flushing and reloading, during which reads are answered from the snapshot */
+    private void asyncExecuteLongTaskWithWriteLock(final Runnable task) {
+        asyncExecuteTaskWithWriteLock(ExecutorUtils.PRIORITY_BULK, new Runnable() {
+            @Override
+            public void run() {
+                runLongTaskLocked(task);
+            }
+        });
+    }
+
+    /**
+     * Runs a task that holds the write lock for long, such as GC. Reads that come in meanwhile
+     * go to the snapshot instead of waiting. The snapshot is also updated as part of the task,
+     * since that opens the file that was just written.
+     */
+    private void runLongTaskLocked(final Runnable task) {
+        if (mIsRunningLongTask) {
+            task.run();
+            return;
+        }
+        mIsRunningLongTask = true;
+        try {
+            task.run();
+            updateSnapshotLocked();
+        } finally {
+            mIsRunningLongTask = false;
+        }
+    }
+
+    /**
+     * Reopens the snapshot if the dictionary file changed, or drops it if the dictionary was
+     * closed or removed. Must be called with the write lock held, so that the file isn't being
+     * written at the same time.
+     */
+    private void updateSnapshotLocked() {
+        final long fileTime = (mBinaryDictionary != null && mDictFile.exists())
+                ? mDictFile.lastModified() : 0;
+        if (fileTime == mSnapshotFileTime) {
+            return;
+        }
+
+        BinaryDictionary snapshot = null;
+        if (fileTime != 0) {
+            snapshot = new BinaryDictionary(
+                    mDictFile.getAbsolutePath(), 0 /* offset */, mDictFile.length(),
+                    true /* useFullEditDistance */, mLocale, mDictType, false /* isUpdatable */);
+            if (!snapshot.isValidDictionary()) {
+                snapshot.close();
+                snapshot = null;
+            }
+        }
+        replaceSnapshotLocked(snapshot, fileTime);
+    }
+
+    /**
+     * Drops the snapshot until the dictionary file is written again, for when the snapshot must
+     * not return something that was just removed.
+     */
+    private void dropSnapshotLocked() {
+        replaceSnapshotLocked(null, mDictFile.exists() ? mDictFile.lastModified() : 0);
+    }
+
+    private void replaceSnapshotLocked(@Nullable final BinaryDictionary snapshot,
+            final long fileTime) {
+        final BinaryDictionary oldSnapshot;
+        mSnapshotLock.writeLock().lock();
+        try {
+            oldSnapshot = mSnapshotDictionary;
+            mSnapshotDictionary = snapshot;
+            mSnapshotFileTime = fileTime;
+        } finally {
+            mSnapshotLock.writeLock().unlock();
+        }
+        if (oldSnapshot != null) {
+            oldSnapshot.close();
+        }
+    }
+
+    /**
+     * Takes the read lock for a read that can fall back to the snapshot. Reads wait up to the
+     * usual timeout for short writes, which the snapshot doesn't have yet, such as words learned
+     * this session. They only go to the snapshot right away while a long task is running.
+     * @return false if the read should be answered by {@link #readFromSnapshot} instead
+     */
+    private boolean tryLockForRead() throws InterruptedException {
+        if (mLock.readLock().tryLock()) {
+            return true;
+        }
+
+        boolean countedWait = false;
+        final long deadline = SystemClock.uptimeMillis() + TIMEOUT_FOR_READ_OPS_IN_MILLISECONDS;
+        do {
+            if (mIsRunningLongTask && mSnapshotDictionary != null) {
+                sLongTaskReadCount.incrementAndGet();
+                return false;
+            }
+            if (!countedWait) {
+                sWriteWaitReadCount.incrementAndGet();
+                countedWait = true;
+            }
+            if (mLock.readLock().tryLock(
+                    READ_LOCK_POLL_INTERVAL_IN_MILLISECONDS, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+        } while (SystemClock.uptimeMillis() < deadline);
+        return false;
+    }
+
+    /** Called after a read couldn't take the lock */
+    private <T> T readFromSnapshot(@Nonnull final SnapshotRead<T> read, final T defaultValue) {
+        if (!mSnapshotLock.readLock().tryLock()) {
+            return defaultValue;
+        }
+        try {
+            final BinaryDictionary snapshot = mSnapshotDictionary;
+            if (snapshot == null) {
+                return defaultValue;
+            }
+            sSnapshotReadCount.incrementAndGet();
+            return read.read(snapshot);
+        } finally {
+            mSnapshotLock.readLock().unlock();
+        }
+    }
+
+    /** Number of reads that found a GC, flush or reload running, in any dictionary */
+    public static long getLongTaskReadCount() {
+        return sLongTaskReadCount.get();
+    }
+
+    /** Number of reads that couldn't take the lock and were answered from a snapshot instead */
+    public static long getSnapshotReadCount() {
+        return sSnapshotReadCount.get();
+    }
+
+    /** Number of reads that waited for a short write, such as learning a word, to finish */
+    public static long getWriteWaitReadCount() {
+        return sWriteWaitReadCount.get();
+    }
+
+    /**
+     * Runs a task on this dictionary file's serial queue, so tasks run in order even across
+     * instances for the same file, but don't wait behind work on other dictionaries.
+     */
+    private void asyncExecuteTaskWithLock(final Lock lock, final int priority,
+            final Runnable task) {
+        ExecutorUtils.getSerialExecutor(mDictFile.getAbsolutePath()).execute(new Runnable() {
             @Override
             public void run() {
                 lock.lock();
@@ -177,7 +358,7 @@ abstract public class ExpandableBinaryDictionary extends Dictionary {
                     lock.unlock();
                 }
             }
-        });
+        }, priority);
     }
 
     @Nullable
@@ -185,9 +366,10 @@ abstract public class ExpandableBinaryDictionary extends Dictionary {
         return mBinaryDictionary;
     }
 
-    public long getITrie(final String letters, boolean allowBadWords) {
+    @Nullable
+    public ITrieHandle getITrie(final String letters, boolean allowBadWords) {
         if (mBinaryDictionary == null || !mBinaryDictionary.isValidDictionary()) {
-            return 0;
+            return null;
         }
 
         return mBinaryDictionary.getITrie(letters, allowBadWords);
@@ -205,7 +387,7 @@ abstract public class ExpandableBinaryDictionary extends Dictionary {
      */
     @Override
     public void close() {
-        asyncExecuteTaskWithWriteLock(new Runnable() {
+        asyncExecuteTaskWithWriteLock(ExecutorUtils.PRIORITY_BULK, new Runnable() {
             @Override
             public void run() {
                 closeBinaryDictionary();
@@ -226,7 +408,7 @@ abstract public class ExpandableBinaryDictionary extends Dictionary {
     }
 
     private void removeBinaryDictionary() {
-        asyncExecuteTaskWithWriteLock(new Runnable() {
+        asyncExecuteTaskWithWriteLock(ExecutorUtils.PRIORITY_BULK, new Runnable() {
             @Override
             public void run() {
                 removeBinaryDictionaryLocked();
@@ -254,7 +436,7 @@ abstract public class ExpandableBinaryDictionary extends Dictionary {
     }
 
     public void clear() {
-        asyncExecuteTaskWithWriteLock(new Runnable() {
+        asyncExecuteTaskWithWriteLock(ExecutorUtils.PRIORITY_BULK, new Runnable() {
             @Override
             public void run() {
                 removeBinaryDictionaryLocked();
@@ -267,7 +449,7 @@ abstract public class ExpandableBinaryDictionary extends Dictionary {
      * Check whether GC is needed and run GC if required.
      */
     public void runGCIfRequired(final boolean mindsBlockByGC) {
-        asyncExecuteTaskWithWriteLock(new Runnable() {
+        asyncExecuteLongTaskWithWriteLock(new Runnable() {
             @Override
             public void run() {
                 if (getBinaryDictionary() == null) {
@@ -280,7 +462,12 @@ abstract public class ExpandableBinaryDictionary extends Dictionary {
 
     protected void runGCIfRequiredLocked(final boolean mindsBlockByGC) {
         if (mBinaryDictionary.needsToRunGC(mindsBlockByGC)) {
-            mBinaryDictionary.flushWithGC();
+            runLongTaskLocked(new Runnable() {
+                @Override
+                public void run() {
+                    mBinaryDictionary.flushWithGC();
+                }
+            });
         }
     }
 
@@ -296,7 +483,7 @@ abstract public class ExpandableBinaryDictionary extends Dictionary {
                 updateTask.run();
             }
         };
-        asyncExecuteTaskWithWriteLock(task);
+        asyncExecuteTaskWithWriteLock(ExecutorUtils.PRIORITY_LATENCY_CRITICAL, task);
     }
 
     /**
@@ -328,7 +515,7 @@ abstract public class ExpandableBinaryDictionary extends Dictionary {
      */
     public void removeUnigramEntryDynamically(final String word) {
         reloadDictionaryIfRequired();
-        asyncExecuteTaskWithWriteLock(new Runnable() {
+        asyncExecuteTaskWithWriteLock(ExecutorUtils.PRIORITY_LATENCY_CRITICAL, new Runnable() {
             @Override
             public void run() {
                 final BinaryDictionary binaryDictionary = getBinaryDictionary();
@@ -341,6 +528,7 @@ abstract public class ExpandableBinaryDictionary extends Dictionary {
                         Log.i(TAG, "Cannot remove unigram entry: " + word);
                     }
                 }
+                dropSnapshotLocked();
             }
         });
     }
@@ -351,7 +539,7 @@ abstract public class ExpandableBinaryDictionary extends Dictionary {
     public void addNgramEntry(@Nonnull final NgramContext ngramContext, final String word,
             final int frequency, final int timestamp) {
         reloadDictionaryIfRequired();
-        asyncExecuteTaskWithWriteLock(new Runnable() {
+        asyncExecuteTaskWithWriteLock(ExecutorUtils.PRIORITY_LATENCY_CRITICAL, new Runnable() {
             @Override
             public void run() {
                 if (getBinaryDictionary() == null) {
@@ -416,7 +604,7 @@ abstract public class ExpandableBinaryDictionary extends Dictionary {
             @Nonnull final ArrayList<WordInputEventForPersonalization> inputEvents,
             final UpdateEntriesForInputEventsCallback callback) {
         reloadDictionaryIfRequired();
-        asyncExecuteTaskWithWriteLock(new Runnable() {
+        asyncExecuteTaskWithWriteLock(ExecutorUtils.PRIORITY_LATENCY_CRITICAL, new Runnable() {
             @Override
             public void run() {
                 try {
@@ -475,8 +663,7 @@ abstract public class ExpandableBinaryDictionary extends Dictionary {
         reloadDictionaryIfRequired();
         boolean lockAcquired = false;
         try {
-            lockAcquired = mLock.readLock().tryLock(
-                    TIMEOUT_FOR_READ_OPS_IN_MILLISECONDS, TimeUnit.MILLISECONDS);
+            lockAcquired = tryLockForRead();
             if (lockAcquired) {
                 if (mBinaryDictionary == null) {
                     return null;
@@ -492,6 +679,9 @@ abstract public class ExpandableBinaryDictionary extends Dictionary {
                 }
                 return suggestions;
             }
+            return readFromSnapshot(snapshot -> snapshot.getSuggestions(composedData,
+                    ngramContext, proximityInfoHandle, settingsValuesForSuggestion, sessionId,
+                    weightForLocale, inOutWeightOfLangModelVsSpatialModel), null);
         } catch (final InterruptedException e) {
             Log.e(TAG, "Interrupted tryLock() in getSuggestionsWithSessionId().", e);
         } finally {
@@ -507,14 +697,14 @@ abstract public class ExpandableBinaryDictionary extends Dictionary {
         reloadDictionaryIfRequired();
         boolean lockAcquired = false;
         try {
-            lockAcquired = mLock.readLock().tryLock(
-                    TIMEOUT_FOR_READ_OPS_IN_MILLISECONDS, TimeUnit.MILLISECONDS);
+            lockAcquired = tryLockForRead();
             if (lockAcquired) {
                 if (mBinaryDictionary == null) {
                     return false;
                 }
                 return isInDictionaryLocked(word);
             }
+            return readFromSnapshot(snapshot -> snapshot.isInDictionary(word), false);
         } catch (final InterruptedException e) {
             Log.e(TAG, "Interrupted tryLock() in isInDictionary().", e);
         } finally {
@@ -535,14 +725,15 @@ abstract public class ExpandableBinaryDictionary extends Dictionary {
         reloadDictionaryIfRequired();
         boolean lockAcquired = false;
         try {
-            lockAcquired = mLock.readLock().tryLock(
-                    TIMEOUT_FOR_READ_OPS_IN_MILLISECONDS, TimeUnit.MILLISECONDS);
+            lockAcquired = tryLockForRead();
             if (lockAcquired) {
                 if (mBinaryDictionary == null) {
                     return NOT_A_PROBABILITY;
                 }
                 return mBinaryDictionary.getMaxFrequencyOfExactMatches(word);
             }
+            return readFromSnapshot(
+                    snapshot -> snapshot.getMaxFrequencyOfExactMatches(word), NOT_A_PROBABILITY);
         } catch (final InterruptedException e) {
             Log.e(TAG, "Interrupted tryLock() in getMaxFrequencyOfExactMatches().", e);
         } finally {
@@ -638,7 +829,7 @@ abstract public class ExpandableBinaryDictionary extends Dictionary {
             return;
         }
         final File dictFile = mDictFile;
-        asyncExecuteTaskWithWriteLock(new Runnable() {
+        asyncExecuteLongTaskWithWriteLock(new Runnable() {
             @Override
             public void run() {
                 try {
@@ -672,7 +863,7 @@ abstract public class ExpandableBinaryDictionary extends Dictionary {
      * Flush binary dictionary to dictionary file.
      */
     public void asyncFlushBinaryDictionary() {
-        asyncExecuteTaskWithWriteLock(new Runnable() {
+        asyncExecuteLongTaskWithWriteLock(new Runnable() {
             @Override
             public void run() {
                 final BinaryDictionary binaryDictionary = getBinaryDictionary();
@@ -694,7 +885,8 @@ abstract public class ExpandableBinaryDictionary extends Dictionary {
         final File dictFile = mDictFile;
         final AsyncResultHolder<DictionaryStats> result =
                 new AsyncResultHolder<>("DictionaryStats");
-        asyncExecuteTaskWithLock(mLock.readLock(), new Runnable() {
+        asyncExecuteTaskWithLock(mLock.readLock(), ExecutorUtils.PRIORITY_LATENCY_CRITICAL,
+                new Runnable() {
             @Override
             public void run() {
                 result.set(new DictionaryStats(mLocale, dictName, dictName, dictFile, 0));
@@ -706,7 +898,7 @@ abstract public class ExpandableBinaryDictionary extends Dictionary {
     @UsedForTesting
     public void waitAllTasksForTests() {
         final CountDownLatch countDownLatch = new CountDownLatch(1);
-        asyncExecuteTaskWithWriteLock(new Runnable() {
+        asyncExecuteTaskWithWriteLock(ExecutorUtils.PRIORITY_BULK, new Runnable() {
             @Override
             public void run() {
                 countDownLatch.countDown();
@@ -730,7 +922,8 @@ abstract public class ExpandableBinaryDictionary extends Dictionary {
         reloadDictionaryIfRequired();
         final String tag = TAG;
         final String dictName = mDictName;
-        asyncExecuteTaskWithLock(mLock.readLock(), new Runnable() {
+        asyncExecuteTaskWithLock(mLock.readLock(), ExecutorUtils.PRIORITY_BULK,
+                new Runnable() {
             @Override
             public void run() {
                 Log.d(tag, "Dump dictionary: " + dictName + " for " + mLocale);
@@ -769,7 +962,8 @@ abstract public class ExpandableBinaryDictionary extends Dictionary {
         reloadDictionaryIfRequired();
         final AsyncResultHolder<WordProperty[]> result =
                 new AsyncResultHolder<>("WordPropertiesForSync");
-        asyncExecuteTaskWithLock(mLock.readLock(), new Runnable() {
+        asyncExecuteTaskWithLock(mLock.readLock(), ExecutorUtils.PRIORITY_LATENCY_CRITICAL,
+                new Runnable() {
             @Override
             public void run() {
                 final ArrayList<WordProperty> wordPropertyList = new ArrayList<>();
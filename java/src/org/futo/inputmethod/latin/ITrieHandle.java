@@ -0,0 +1,92 @@
+package org.futo.inputmethod.latin;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * A reference to the native ITrie of a single {@link BinaryDictionary}, for use by external
+ * libraries such as the swipe decoder.
+ *
+ * While a handle is acquired, its dictionary can't be closed or have its ITrie rebuilt. Any number
+ * of handles may be acquired at the same time, so decoding against one dictionary doesn't hold up
+ * closing, flushing or reloading any other dictionary.
+ */
+public final class ITrieHandle {
+    private static final AtomicLong sAcquireCount = new AtomicLong();
+    private static final AtomicLong sTotalWaitNanos = new AtomicLong();
+    private static final AtomicLong sMaxWaitNanos = new AtomicLong();
+
+    private final BinaryDictionary mDictionary;
+    private final long mNativeHandle;
+    private final long mGeneration;
+
+    ITrieHandle(final BinaryDictionary dictionary, final long nativeHandle,
+            final long generation) {
+        mDictionary = dictionary;
+        mNativeHandle = nativeHandle;
+        mGeneration = generation;
+    }
+
+    public long getNativeHandle() {
+        return mNativeHandle;
+    }
+
+    public boolean belongsTo(final BinaryDictionary dictionary) {
+        return mDictionary == dictionary;
+    }
+
+    /**
+     * Whether the ITrie is still the one this handle was created for. This doesn't take the lock,
+     * so the handle may still become stale before it's acquired.
+     */
+    public boolean isCurrent() {
+        return mDictionary.getTrieGeneration() == mGeneration;
+    }
+
+    /**
+     * Takes a reference to the ITrie. Every successful call must be paired with {@link #release}.
+     * @return false if the dictionary was closed or its ITrie rebuilt since this handle was
+     * created, in which case the handle must not be used.
+     */
+    public boolean acquire() {
+        final Lock lock = mDictionary.getTrieLock().readLock();
+        final long startTime = System.nanoTime();
+        lock.lock();
+        recordWaitTime(System.nanoTime() - startTime);
+
+        if (mDictionary.getTrieGeneration() != mGeneration) {
+            lock.unlock();
+            return false;
+        }
+        return true;
+    }
+
+    public void release() {
+        mDictionary.getTrieLock().readLock().unlock();
+    }
+
+    static void recordWaitTime(final long waitNanos) {
+        sAcquireCount.incrementAndGet();
+        sTotalWaitNanos.addAndGet(waitNanos);
+
+        long max = sMaxWaitNanos.get();
+        while (waitNanos > max && !sMaxWaitNanos.compareAndSet(max, waitNanos)) {
+            max = sMaxWaitNanos.get();
+        }
+    }
+
+    /** Number of times any ITrie lock was taken, for reading or writing. */
+    public static long getLockAcquireCount() {
+        return sAcquireCount.get();
+    }
+
+    /** Total time spent waiting for ITrie locks, in nanoseconds. */
+    public static long getTotalLockWaitNanos() {
+        return sTotalWaitNanos.get();
+    }
+
+    /** Longest single wait for an ITrie lock, in nanoseconds. */
+    public static long getMaxLockWaitNanos() {
+        return sMaxWaitNanos.get();
+    }
+}
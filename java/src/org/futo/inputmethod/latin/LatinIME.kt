@@ -1,6 +1,7 @@
 package org.futo.inputmethod.latin
 
 import android.content.BroadcastReceiver
+import android.content.ComponentCallbacks2
 import android.content.Context
 import android.content.Intent
 import android.content.IntentFilter
@@ -92,6 +93,7 @@ import org.futo.inputmethod.latin.uix.theme.getThemeOption
 import org.futo.inputmethod.latin.uix.theme.orDefault
 import org.futo.inputmethod.latin.uix.theme.presets.DefaultDarkScheme
 import org.futo.inputmethod.latin.utils.JniUtils
+import org.futo.inputmethod.latin.xlm.WarmLanguageModels
 import org.futo.inputmethod.updates.scheduleUpdateCheckingJob
 import org.futo.inputmethod.v2keyboard.ComputedKeyboardSize
 import org.futo.inputmethod.v2keyboard.FloatingKeyboardSize
@@ -810,11 +812,17 @@ class LatinIME : InputMethodServiceCompose(), LatinIMELegacy.SuggestionStripCont
     override fun onLowMemory() {
         super.onLowMemory()
         uixManager.cleanUpPersistentStates()
+        lifecycleScope.launch { WarmLanguageModels.clear() }
     }
 
     override fun onTrimMemory(level: Int) {
         super.onTrimMemory(level)
         uixManager.cleanUpPersistentStates()
+
+        // Models that aren't in use are the largest thing that can be given back
+        if(level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            lifecycleScope.launch { WarmLanguageModels.clear() }
+        }
     }
 
     @RequiresApi(Build.VERSION_CODES.R)
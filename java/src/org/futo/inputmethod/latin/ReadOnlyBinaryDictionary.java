@@ -24,6 +24,8 @@ import java.util.ArrayList;
 import java.util.Locale;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+import javax.annotation.Nullable;
+
 /**
  * This class provides binary dictionary reading operations with locking. An instance of this class
  * can be used by multiple threads. Note that different session IDs must be used when multiple
@@ -137,9 +139,10 @@ public final class ReadOnlyBinaryDictionary extends Dictionary {
         }
     }
 
-    public long getITrie(final String letters, boolean allowBadWords) {
+    @Nullable
+    public ITrieHandle getITrie(final String letters, boolean allowBadWords) {
         if (mBinaryDictionary == null || !mBinaryDictionary.isValidDictionary()) {
-            return 0;
+            return null;
         }
 
         return mBinaryDictionary.getITrie(letters, allowBadWords);
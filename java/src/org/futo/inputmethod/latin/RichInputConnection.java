@@ -71,6 +71,14 @@ public final class RichInputConnection implements PrivateCommandPerformer {
     private static final boolean DEBUG_BATCH_NESTING = false;
     private static final int NUM_CHARS_TO_GET_BEFORE_CURSOR = 40;
     private static final int NUM_CHARS_TO_GET_AFTER_CURSOR = 40;
+    /**
+     * The amount of text before the cursor given to the language model as context. The text cache
+     * is loaded with at least this much text, so that it can be served without calling upon the
+     * TextView on every keystroke.
+     */
+    private static final int NUM_CHARS_OF_FULL_CONTEXT = 4096;
+    private static final int TEXT_CACHE_SIZE =
+            Math.max(Constants.EDITOR_CONTENTS_CACHE_SIZE, NUM_CHARS_OF_FULL_CONTEXT);
     private static final int INVALID_CURSOR_POSITION = -1;
 
     /**
@@ -116,7 +124,9 @@ public final class RichInputConnection implements PrivateCommandPerformer {
     public int mExpectedSelEnd = INVALID_CURSOR_POSITION; // in chars, not code points
     /**
      * This contains the committed text immediately preceding the cursor and the composing
-     * text, if any. It is refreshed when the cursor moves by calling upon the TextView.
+     * text, if any. It is refreshed when the cursor moves by calling upon the TextView, and
+     * otherwise kept up to date by our own edits. Its start is trimmed once it grows to twice
+     * {@link #TEXT_CACHE_SIZE}, so long typing sessions don't make it grow without bound.
      */
     private final StringBuilder mCommittedTextBeforeComposingText = new StringBuilder();
     /**
@@ -300,7 +310,7 @@ public final class RichInputConnection implements PrivateCommandPerformer {
         final CharSequence textBeforeCursor = getTextBeforeCursorAndDetectLaggyConnection(
                 OPERATION_RELOAD_TEXT_CACHE,
                 SLOW_INPUT_CONNECTION_ON_FULL_RELOAD_MS,
-                Constants.EDITOR_CONTENTS_CACHE_SIZE,
+                TEXT_CACHE_SIZE,
                 0 /* flags */);
         if (null == textBeforeCursor) {
             // For some reason the app thinks we are not connected to it. This looks like a
@@ -314,6 +324,17 @@ public final class RichInputConnection implements PrivateCommandPerformer {
         return true;
     }
 
+    private void trimTextCache() {
+        final int length = mCommittedTextBeforeComposingText.length();
+        if (length <= TEXT_CACHE_SIZE * 2) return;
+
+        int start = length - TEXT_CACHE_SIZE;
+        if (Character.isLowSurrogate(mCommittedTextBeforeComposingText.charAt(start))) {
+            start++;
+        }
+        mCommittedTextBeforeComposingText.delete(0, start);
+    }
+
     private void checkBatchEdit() {
         if (mNestLevel != 1) {
             // TODO: exception instead
@@ -345,6 +366,7 @@ public final class RichInputConnection implements PrivateCommandPerformer {
         if (DEBUG_BATCH_NESTING) checkBatchEdit();
         if (DEBUG_PREVIOUS_TEXT) checkConsistencyForDebug();
         mCommittedTextBeforeComposingText.append(text);
+        trimTextCache();
         // TODO: the following is exceedingly error-prone. Right now when the cursor is in the
         // middle of the composing word mComposingText only holds the part of the composing text
         // that is before the cursor, so this actually works, but it's terribly confusing. Fix this.
@@ -468,7 +490,12 @@ public final class RichInputConnection implements PrivateCommandPerformer {
         // test for this explicitly)
         if (INVALID_CURSOR_POSITION != mExpectedSelStart
                 && (cachedLength >= n || cachedLength >= mExpectedSelStart)) {
-            final StringBuilder s = new StringBuilder(mCommittedTextBeforeComposingText);
+            // Only the last n characters are copied, which is much less than the whole cache for
+            // the short lookups done on every keystroke.
+            final int committedLength = mCommittedTextBeforeComposingText.length();
+            final int committedStart = Math.max(committedLength - n, 0);
+            final StringBuilder s = new StringBuilder(Math.min(n, cachedLength));
+            s.append(mCommittedTextBeforeComposingText, committedStart, committedLength);
             // We call #toString() here to create a temporary object.
             // In some situations, this method is called on a worker thread, and it's possible
             // the main thread touches the contents of mComposingText while this worker thread
@@ -714,6 +741,7 @@ public final class RichInputConnection implements PrivateCommandPerformer {
         // text should never be null, but just in case, it's better to insert nothing than to crash
         if (null == text) text = "";
         mCommittedTextBeforeComposingText.append(text);
+        trimTextCache();
         mExpectedSelStart += text.length() - mComposingText.length();
         mExpectedSelEnd = mExpectedSelStart;
         mComposingText.setLength(0);
@@ -754,18 +782,18 @@ public final class RichInputConnection implements PrivateCommandPerformer {
         NgramContext ngramContext = NgramContextUtils.getNgramContextFromNthPreviousWord(
                 prev, spacingAndPunctuations, n);
 
-        CharSequence seq = getTextBeforeCursor(4096, 0);
+        final CharSequence seq = getTextBeforeCursor(NUM_CHARS_OF_FULL_CONTEXT, 0);
         if(seq != null) {
-            ngramContext.fullContext = seq.toString();
-
-            if (ngramContext.fullContext.length() == 4096) {
-                int begin_index = ngramContext.fullContext.split(" ")[0].length() + 1;
-
-                // If we have a 4096 character long word with no spaces this check will fail
-                if(begin_index < 4096) {
-                    ngramContext.fullContext = String.join(" ", ngramContext.fullContext.split(" ")).substring(begin_index);
+            int beginIndex = 0;
+            if (seq.length() == NUM_CHARS_OF_FULL_CONTEXT) {
+                // The first word is likely cut off, skip it. If we have a context-length word
+                // with no spaces, keep all of it.
+                final int firstSpace = TextUtils.indexOf(seq, ' ');
+                if (firstSpace >= 0 && firstSpace + 1 < NUM_CHARS_OF_FULL_CONTEXT) {
+                    beginIndex = firstSpace + 1;
                 }
             }
+            ngramContext.fullContext = seq.subSequence(beginIndex, seq.length()).toString();
         } else {
             ngramContext.fullContext = "";
         }
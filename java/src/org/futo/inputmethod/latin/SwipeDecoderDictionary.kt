@@ -57,6 +57,65 @@ internal fun getKeyYBottom(key: Key, keyboard: Keyboard): Float =
 
 val Key.swipeCode: Int get() = swipeCodeOverride ?: code
 
+/**
+ * Everything [LayoutInfoForModel.buildLayoutInfo] depends on. A new [Keyboard] is created for
+ * changes the swipe model doesn't care about (e.g. the field becoming multi-line), and those all
+ * map to the same fingerprint.
+ */
+private data class LayoutFingerprint(
+    val letters: String,
+    val codes: List<Int>,
+    val positions: List<Float>,
+    val isAlphabet: Boolean,
+    val keyboardLanguage: String,
+    val locale: Locale,
+    val multilingualLocales: List<Locale>,
+    val useSpecialDecoder: Boolean,
+    val useLanguageModel: Boolean
+) {
+    companion object {
+        fun of(context: Context, keyboard: Keyboard, settingsValues: SettingsValues): LayoutFingerprint {
+            val keys = keyboard.sortedKeys
+            val letters = StringBuilder()
+            val codes = ArrayList<Int>(keys.size)
+            val positions = ArrayList<Float>(keys.size * 3)
+            keys.forEach {
+                val code = it.swipeCode
+                if(settingsValues.isWordCodePoint(code) && !Character.isDigit(code)) {
+                    letters.appendCodePoint(code)
+                }
+
+                val (x, y) = getKeyXY(it, keyboard)
+                codes.add(code)
+                positions.add(x)
+                positions.add(y)
+                positions.add(getKeyYBottom(it, keyboard))
+            }
+
+            return LayoutFingerprint(
+                letters = letters.toString(),
+                codes = codes,
+                positions = positions,
+                isAlphabet = keyboard.mId.mElement.kind.isAlphabet,
+                keyboardLanguage = keyboard.mId.mLocale.language,
+                locale = settingsValues.mLocale,
+                multilingualLocales = settingsValues.mMultilingualLocales,
+                useSpecialDecoder = context.getSetting(SwipeSpecialDecoderSetting),
+                useLanguageModel = context.getSetting(SwipeLanguageModelSetting)
+            )
+        }
+    }
+}
+
+private const val MaxCachedLayoutInfos = 16
+
+// Access order, so the least recently used fingerprint is evicted first. Null values record
+// keyboards that can't be used for swiping
+private val layoutInfoCache = object : LinkedHashMap<LayoutFingerprint, LayoutInfoForModel?>(MaxCachedLayoutInfos, 0.75f, true) {
+    override fun removeEldestEntry(eldest: MutableMap.MutableEntry<LayoutFingerprint, LayoutInfoForModel?>?): Boolean =
+        size > MaxCachedLayoutInfos
+}
+
 data class LayoutInfoForModel(
     val letters: String,
     val xs: List<Float>,
@@ -77,6 +136,24 @@ data class LayoutInfoForModel(
             ox = 0.0f, oy = 0.0f
         )
 
+        /**
+         * Same as [buildLayoutInfo], but returns the previously built layout info if the keys,
+         * their positions and the relevant settings are unchanged.
+         */
+        @JvmStatic
+        fun getOrBuildLayoutInfo(context: Context, keyboard: Keyboard, settingsValues: SettingsValues): LayoutInfoForModel? {
+            val fingerprint = LayoutFingerprint.of(context, keyboard, settingsValues)
+            synchronized(layoutInfoCache) {
+                if(layoutInfoCache.containsKey(fingerprint)) return layoutInfoCache[fingerprint]
+            }
+
+            val info = buildLayoutInfo(context, keyboard, settingsValues)
+            synchronized(layoutInfoCache) {
+                layoutInfoCache[fingerprint] = info
+            }
+            return info
+        }
+
         @JvmStatic
         fun buildLayoutInfo(context: Context, keyboard: Keyboard, settingsValues: SettingsValues): LayoutInfoForModel? =
             (context.getSetting(SwipeSpecialDecoderSetting).let {
@@ -254,7 +331,11 @@ class SwipeDecoderDictionary(val context: Context, val locale: Locale) : Diction
 
         // for debug info
         val appliedScoring = mutableStateOf(SwipeDecoder.Scoring(0.0f, 0.0f, 0.0f, 0.0f))
+        // Written under the decoder's lock, but also read without it by recognize
+        @Volatile
         var appliedTries: LongArray? = null
+        @Volatile
+        private var appliedTrieHandles: List<ITrieHandle>? = null
         var appliedTrieWeights by mutableStateOf<FloatArray>(FloatArray(0))
 
         fun metadataFor(pteAsset: String): String
@@ -459,17 +540,40 @@ class SwipeDecoderDictionary(val context: Context, val locale: Locale) : Diction
 
         val topK = if(useHighBeam) 4 else 1
 
-        val results = synchronized(BinaryDictionary.sTrieUsageLock) {
-            if(appliedTries?.isEmpty() != false) {
-                Log.e("SwipeDecoderDictionary", "Applied tries are blank! $appliedTries")
-                return null
+        val handles = appliedTrieHandles
+        if(handles.isNullOrEmpty()) {
+            Log.e("SwipeDecoderDictionary", "Applied tries are blank! $appliedTries")
+            return null
+        }
+
+        // Only the dictionaries used by this decode are kept from closing, others can be
+        // flushed or reloaded in the meantime
+        val acquiredHandles = ArrayList<ITrieHandle>(handles.size)
+        val results = try {
+            for(handle in handles) {
+                if(!handle.acquire()) {
+                    Log.w("SwipeDecoderDictionary", "Applied tries are stale, skipping until they are rebuilt")
+                    return null
+                }
+                acquiredHandles.add(handle)
             }
-            decoder.recognize(
-                 left.toTypedArray(), right.toTypedArray(),
-                 topK = topK,
-                 beamWidth = beamWidth,
-                 trieWeights = trieWeights
-            )
+
+            synchronized(decoder) {
+                // The tries may have been replaced or invalidated since they were acquired
+                if(appliedTrieHandles !== handles) {
+                    Log.w("SwipeDecoderDictionary", "Applied tries changed, skipping until they are rebuilt")
+                    return null
+                }
+
+                decoder.recognize(
+                    left.toTypedArray(), right.toTypedArray(),
+                    topK = topK,
+                    beamWidth = beamWidth,
+                    trieWeights = trieWeights
+                )
+            }
+        } finally {
+            acquiredHandles.forEach { it.release() }
         }
 
         // basically update it at end of swiping
@@ -477,6 +581,7 @@ class SwipeDecoderDictionary(val context: Context, val locale: Locale) : Diction
 
         if(BuildConfig.DEBUG || System.currentTimeMillis() < debugLogUntil) {
             Log.d("SwipeDecoderDictionary", "Timing: ${decoder.lastTiming()}")
+            Log.d("SwipeDecoderDictionary", "Trie lock wait: total ${ITrieHandle.getTotalLockWaitNanos() / 1000000L}ms, max ${ITrieHandle.getMaxLockWaitNanos() / 1000000L}ms over ${ITrieHandle.getLockAcquireCount()} acquisitions")
             Log.d("SwipeDecoderDictionary", "Left = $left")
             Log.d("SwipeDecoderDictionary", "Right = $right")
 
@@ -520,24 +625,33 @@ class SwipeDecoderDictionary(val context: Context, val locale: Locale) : Diction
         return list
     }
 
-    data class PendingLayoutInfo(val layout: LayoutInfoForModel, val tries: List<Long>)
+    data class PendingLayoutInfo(val layout: LayoutInfoForModel, val tries: List<ITrieHandle>)
     private var pendingLayoutInfo: PendingLayoutInfo? = null
     private fun applyPendingLayoutInfo() {
         decoder?.let { d ->
             pendingLayoutInfo?.let { pend ->
+                // Switching back to an identical layout with the same tries, e.g. after the
+                // keyboard was recreated for another field, doesn't need to reset the decoder
+                if(pend.layout == appliedLayoutInfo && pend.tries == appliedTrieHandles) {
+                    return@let
+                }
+
                 //Log.d("SwipeDecoderDictionary", "Applying layout info: $pend")
-                d.setMode(
-                    letters=pend.layout.letters,
-                    cx=pend.layout.xs.toFloatArray(),
-                    cy=pend.layout.ys.toFloatArray(),
-                    tries=pend.tries.toLongArray(),
-                    decoderPath=getFilePath(context, pend.layout.decoder),
-                    lmModelPath=getFilePath(context, pend.layout.lm),
-                    lmVocabPath=getFilePath(context, vocabFor(pend.layout.lm))
-                )
-                appliedScoring.value = d.scoring
-                appliedLayoutInfo = pend.layout
-                appliedTries = pend.tries.toLongArray()
+                synchronized(d) {
+                    d.setMode(
+                        letters=pend.layout.letters,
+                        cx=pend.layout.xs.toFloatArray(),
+                        cy=pend.layout.ys.toFloatArray(),
+                        tries=pend.tries.map { it.nativeHandle }.toLongArray(),
+                        decoderPath=getFilePath(context, pend.layout.decoder),
+                        lmModelPath=getFilePath(context, pend.layout.lm),
+                        lmVocabPath=getFilePath(context, vocabFor(pend.layout.lm))
+                    )
+                    appliedScoring.value = d.scoring
+                    appliedLayoutInfo = pend.layout
+                    appliedTries = pend.tries.map { it.nativeHandle }.toLongArray()
+                    appliedTrieHandles = pend.tries
+                }
             }
             pendingLayoutInfo = null
         }
@@ -552,9 +666,19 @@ class SwipeDecoderDictionary(val context: Context, val locale: Locale) : Diction
         return false
     }
 
-    fun invalidateTries() {
+    /**
+     * Called while [dictionary] holds its ITrie write lock, so no decode using its trie can be
+     * running. The decoder only takes all of its tries at once, so this drops the tries of every
+     * dictionary, and swiping is unavailable until the next [updateKeyboard] applies them again.
+     */
+    fun invalidateTriesOf(dictionary: BinaryDictionary) {
         if(appliedTries?.isEmpty() != false) return
-        decoder?.setMode(tries = emptyList<Long>().toLongArray())
-        appliedTries = null
+        if(appliedTrieHandles?.any { it.belongsTo(dictionary) } != true) return
+        val d = decoder ?: return
+        synchronized(d) {
+            d.setMode(tries = emptyList<Long>().toLongArray())
+            appliedTries = null
+            appliedTrieHandles = null
+        }
     }
 }
\ No newline at end of file
@@ -101,6 +101,28 @@ public final class WordComposer {
         refreshTypedWordCache();
     }
 
+    /**
+     * Copies the word that {@code other} is composing, so that suggestions for it can still be
+     * computed after {@code other} committed it and moved on. Combiner state is not copied.
+     */
+    public WordComposer(@Nonnull final WordComposer other) {
+        mCombinerChain = new CombinerChain(other.mTypedWordCache.toString());
+        mCombiningSpec = other.mCombiningSpec;
+        mEvents = new ArrayList<>(other.mEvents);
+        mInputPointers.copy(other.mInputPointers);
+        mAutoCorrection = other.mAutoCorrection;
+        mIsResumed = other.mIsResumed;
+        mIsBatchMode = other.mIsBatchMode;
+        mIsAttachedToNonWord = other.mIsAttachedToNonWord;
+        mRejectedBatchModeSuggestion = other.mRejectedBatchModeSuggestion;
+        mCapsCount = other.mCapsCount;
+        mDigitsCount = other.mDigitsCount;
+        mCapitalizedMode = other.mCapitalizedMode;
+        mCursorPositionWithinWord = other.mCursorPositionWithinWord;
+        mIsOnlyFirstCharCapitalized = other.mIsOnlyFirstCharCapitalized;
+        refreshTypedWordCache();
+    }
+
     public ComposedData getComposedDataSnapshot() {
         return new ComposedData(getInputPointers(), isBatchMode(), mTypedWordCache.toString());
     }
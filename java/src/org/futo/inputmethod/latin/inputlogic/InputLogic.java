@@ -2703,8 +2703,10 @@ public final class InputLogic {
      * suggestions, or when the settings or environment does not allow for auto-correction, then
      * this method just commits the typed string.
      * Note that if suggestions are currently being computed in the background, this method will
-     * block until the computation returns. This is necessary for consistency (it would be very
+     * block until the dictionary result is in. This is necessary for consistency (it would be very
      * strange if pressing space would commit a different word depending on how fast you press).
+     * A late language model result may still replace the word through
+     * {@link #amendLastAutoCorrection}.
      *
      * @param settingsValues the current value of the settings.
      * @param separator the separator that's causing the commit to happen.
@@ -2753,6 +2755,55 @@ public final class InputLogic {
         return true;
     }
 
+    /**
+     * Replaces a word committed by {@link #commitCurrentAutoCorrection} with a different decision
+     * that only became available after the commit, e.g. because the language model result arrived
+     * late. This only happens if nothing was typed after the word's separator since, and the
+     * replacement can still be reverted with backspace like the original commit.
+     *
+     * @param settingsValues the current values of the settings.
+     * @param committed the commit to replace, which must still be the last one.
+     * @param newWord the word to commit instead.
+     * @return whether the word was replaced.
+     */
+    public boolean amendLastAutoCorrection(final SettingsValues settingsValues,
+            final LastComposedWord committed, final String newWord) {
+        if (committed != mLastComposedWord || mWordComposer.isComposingWord()
+                || mConnection.hasSelection()) {
+            return false;
+        }
+        final CharSequence committedWord = committed.mCommittedWord;
+        if (TextUtils.isEmpty(committedWord) || TextUtils.equals(committedWord, newWord)) {
+            return false;
+        }
+
+        final String separatorString = committed.mSeparatorString;
+        final String expectedText = committedWord + separatorString;
+        final CharSequence textBeforeCursor =
+                mConnection.getTextBeforeCursor(expectedText.length(), 0);
+        if (!TextUtils.equals(expectedText, textBeforeCursor)) return false;
+        if (StringUtils.lastPartLooksLikeURL(committedWord)) return false;
+
+        mConnection.beginBatchEdit();
+        unlearnWord(committedWord.toString(), settingsValues, Constants.EVENT_REVERT);
+        mConnection.deleteTextBeforeCursor(expectedText.length());
+        mConnection.commitText(newWord + separatorString, 1);
+        mConnection.commitCorrection(new CorrectionInfo(
+                mConnection.getExpectedSelectionEnd()
+                        - (newWord.length() + separatorString.length()),
+                committedWord, newWord));
+        mDictionaryFacilitator.onWordCommitted(newWord);
+        performAdditionToUserHistoryDictionary(settingsValues, newWord, committed.mNgramContext, 0);
+        mLastComposedWord = new LastComposedWord(committed.mEvents, committed.mInputPointers,
+                committed.mTypedWord, newWord, separatorString, committed.mNgramContext,
+                committed.mCapitalizedMode);
+        mConnection.endBatchEdit();
+
+        // Predictions for the next word were based on the replaced word
+        postUpdateSuggestionStrip(SuggestedWords.INPUT_STYLE_TYPING);
+        return true;
+    }
+
     /**
      * Commits the chosen word to the text field and saves it for later retrieval.
      *
@@ -44,6 +44,8 @@ import org.futo.inputmethod.latin.uix.actions.clipboard.ClipboardFileName
 import org.futo.inputmethod.latin.uix.actions.clipboard.ClipboardHistoryManager.Companion.onClipboardImportedFlow
 import org.futo.inputmethod.latin.uix.actions.clipboard.clipboardDir
 import org.futo.inputmethod.latin.uix.actions.clipboard.clipboardFile
+import org.futo.inputmethod.latin.uix.actions.clipboard.clipboardJournalFile
+import org.futo.inputmethod.latin.uix.actions.clipboard.readClipboardHistoryJson
 import org.futo.inputmethod.latin.uix.settings.ScreenTitle
 import org.futo.inputmethod.latin.uix.settings.ScrollableList
 import org.futo.inputmethod.latin.uix.theme.ZipThemes
@@ -227,10 +229,9 @@ object SettingsExporter {
         }
 
         // Collect clipboard
-        val clipboardFile = context.clipboardFile
-        if (clipboardFile.exists()) {
+        readClipboardHistoryJson(context)?.let { clipboardData ->
             zipOut.putNextEntry(ZipEntry(clipboardFileName))
-            clipboardFile.inputStream().use { it.copyTo(zipOut) }
+            zipOut.write(clipboardData)
             zipOut.closeEntry()
         }
 
@@ -323,6 +324,7 @@ object SettingsExporter {
             if (clipboardFile.exists()) {
                 clipboardFile.delete()
             }
+            context.clipboardJournalFile.delete()
 
             // delete all transformers
             transformersDir.listFiles()?.forEach {
@@ -459,6 +461,8 @@ object SettingsExporter {
             entry = zipIn.nextEntry
         }
 
+        // Transformer models were replaced, so cached model options may point at deleted files
+        ModelPaths.signalReloadModels()
         GlobalIMEMessage.tryEmit(IMEMessage.ReloadResources)
     }
 
@@ -49,6 +49,17 @@ val USE_VAD_AUTOSTOP = SettingsKey(
     default = true
 )
 
+val USE_STREAMING_RECOGNITION = SettingsKey(
+    key = booleanPreferencesKey("use_streaming_recognition"),
+    default = false
+)
+
+// Megabytes of voice input models to keep loaded, or -1 to decide by device
+val VOICE_INPUT_MODEL_BUDGET_MB = SettingsKey(
+    key = intPreferencesKey("voice_input_model_budget_mb"),
+    default = -1
+)
+
 val ENGLISH_MODEL_INDEX = SettingsKey(
     key = intPreferencesKey("english_model_index"),
     default = 0
@@ -2,6 +2,7 @@ package org.futo.inputmethod.latin.uix.actions
 
 import android.content.Context
 import android.graphics.Typeface
+import android.os.Build
 import android.view.LayoutInflater
 import android.view.View
 import android.view.ViewGroup
@@ -91,12 +92,7 @@ import kotlinx.coroutines.GlobalScope
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.runBlocking
 import kotlinx.coroutines.withContext
-import kotlinx.serialization.json.Json
-import kotlinx.serialization.json.JsonObject
-import kotlinx.serialization.json.booleanOrNull
-import kotlinx.serialization.json.jsonArray
-import kotlinx.serialization.json.jsonObject
-import kotlinx.serialization.json.jsonPrimitive
+import org.futo.inputmethod.latin.BuildConfig
 import org.futo.inputmethod.latin.R
 import org.futo.inputmethod.latin.common.Constants
 import org.futo.inputmethod.latin.uix.Action
@@ -112,20 +108,21 @@ import org.futo.inputmethod.latin.uix.LocalKeyboardScheme
 import org.futo.inputmethod.latin.uix.LocalManager
 import org.futo.inputmethod.latin.uix.PersistentActionState
 import org.futo.inputmethod.latin.uix.SettingsKey
+import org.futo.inputmethod.latin.uix.actions.emoji.EmojiDatabase
+import org.futo.inputmethod.latin.uix.actions.emoji.EmojiGlyphSupportCache
 import org.futo.inputmethod.latin.uix.actions.emoji.EmojiItem
+import org.futo.inputmethod.latin.uix.actions.emoji.EmojiSearchIndex
 import org.futo.inputmethod.latin.uix.actions.emoji.EmojiView
 import org.futo.inputmethod.latin.uix.settings.useDataStore
 import org.futo.inputmethod.latin.uix.settings.useDataStoreValue
 import org.futo.inputmethod.latin.uix.theme.LocalCompatEmojiFamily
 import org.futo.inputmethod.latin.uix.theme.LocalCompatEmojiTypeface
 import org.futo.inputmethod.latin.uix.theme.Typography
+import org.futo.inputmethod.latin.uix.theme.emojiGlyphSupport
 import org.futo.inputmethod.latin.uix.theme.emojiNeedsCompat
 import org.futo.inputmethod.latin.uix.theme.emojiShouldShow
-import java.io.BufferedReader
-import java.io.InputStreamReader
-import java.nio.charset.StandardCharsets
+import org.futo.inputmethod.latin.uix.theme.putEmojiGlyphSupport
 import java.util.Locale
-import java.util.zip.GZIPInputStream
 import kotlin.math.max
 import kotlin.math.min
 import kotlin.math.roundToInt
@@ -137,59 +134,46 @@ val Context.compatEmojiTypeface: Typeface? get() = try {
     null
 }
 
-private fun levenshteinDistance(lhs: CharSequence, rhs: CharSequence): Int {
+// Computes the distance between an already lowercased [lhs] and [rhs], reusing [rows] if given
+private fun levenshteinDistance(lhs: CharSequence, rhs: CharSequence, rows: Array<IntArray>? = null): Int {
     val lhsLen = lhs.length
     val rhsLen = rhs.length
-    var cost = IntArray(lhsLen + 1) { it }
+    var cost = rows?.get(0)?.takeIf { it.size > lhsLen } ?: IntArray(lhsLen + 1)
+    var newCost = rows?.get(1)?.takeIf { it.size > lhsLen } ?: IntArray(lhsLen + 1)
+    for (j in 0..lhsLen) cost[j] = j
     for (i in 1 until rhsLen + 1) {
-        val newCost = IntArray(lhsLen + 1)
         newCost[0] = i
+        val c = rhs[i - 1].lowercaseChar()
         for (j in 1 until lhsLen + 1) {
-            val match = if (lhs[j - 1].lowercaseChar() == rhs[i - 1].lowercaseChar()) 0 else 1
+            val match = if (lhs[j - 1] == c) 0 else 1
             val costReplace = cost[j - 1] + match
             val costInsert = cost[j] + 1
             val costDelete = newCost[j - 1] + 1
             newCost[j] = minOf(costInsert, costDelete, costReplace)
         }
+        val tmp = cost
         cost = newCost
+        newCost = tmp
     }
     return cost[lhsLen]
 }
 
 fun <T> List<T>.searchMultiple(searchTarget: String, maxDistance: Int = searchTarget.length * 2 / 3, limitLength: Boolean = false, keyFunction: (T) -> List<String>): List<T> {
+    val target = searchTarget.lowercase()
+    val rows = Array(2) { IntArray(target.length + 1) }
     return this.mapNotNull { item ->
         val keys = keyFunction(item).let {
             if(limitLength) {
-                it.map { it.substring(0 until searchTarget.length.coerceAtMost(it.length)) }
+                it.map { it.substring(0 until target.length.coerceAtMost(it.length)) }
             } else {
                 it
             }
         }
-        val minDistanceKey = keys.minByOrNull { levenshteinDistance(searchTarget, it) }
-        val minDistance = minDistanceKey?.let { levenshteinDistance(searchTarget, it) }
+        val minDistance = keys.minOfOrNull { levenshteinDistance(target, it, rows) }
         if (minDistance != null && minDistance <= maxDistance) Pair(item, minDistance) else null
     }.sortedBy { it.second }.map { it.first }
 }
 
-fun <T> List<T>.searchMultiple2(searchTarget: String, keyFunction: (T) -> List<String>): List<T> {
-    val query = searchTarget.lowercase()
-    return this.mapNotNull { item ->
-        val keys = keyFunction(item).map { it.lowercase() }
-        val matches = keys.any { it == query }
-        val starts = keys.any { it.startsWith(query) }
-        val contains = keys.any { it.contains(query) }
-
-        val score = when {
-            matches -> 0
-            starts -> 1
-            contains -> 2
-            else -> return@mapNotNull null
-        }
-
-        item to score
-    }.sortedBy { it.second }.map { it.first }
-}
-
 
 data class PopupInfo(val emoji: EmojiItem, val x: Int, val y: Int)
 
@@ -822,13 +806,12 @@ fun EmojiGrid(
         val translations = PersistentEmojiState.getTranslationForLocales(locales)
 
         emojiList =
-            emojiList.filterIsInstance<EmojiItemItem>().searchMultiple2(searchFilter) { item ->
-                translations?.let {
-                    it.emojiToNames[item.emoji.emoji]?.names
-                        ?: it.emojiToNames[item.emoji.emoji.replace("\uFE0F", "")]?.names
-                        ?: it.emojiToNames[item.emoji.emoji + "\uFE0F"]?.names
-                } ?: listOf(item.emoji.description)
-            }.take(30).distinctBy { it.emoji.emoji }
+            (translations?.searchIndex ?: EmojiSearchIndex.Empty).filter(
+                emojiList.filterIsInstance<EmojiItemItem>(),
+                searchFilter,
+                emojiOf = { it.emoji.emoji },
+                fallbackNames = { listOf(it.emoji.description) }
+            ).take(30).distinctBy { it.emoji.emoji }
 
         if(emojiList.isEmpty()) {
             // Note: this gets matched and auto translated by localizedCategoryNameMap, don't
@@ -906,6 +889,9 @@ data class EmojiNames(val names: List<String>) {
     }
 }
 data class EmojiTranslations(val emojiToNames: Map<String, EmojiNames>) {
+    /** Built on the first search, translations are cached per set of locales so this is kept */
+    val searchIndex by lazy { EmojiSearchIndex(emojiToNames.mapValues { it.value.names }) }
+
     private fun getOrBlank(key: String) = emojiToNames[key] ?: EmojiNames(emptyList())
     operator fun plus(other: EmojiTranslations): EmojiTranslations {
         return EmojiTranslations(
@@ -978,29 +964,10 @@ class PersistentEmojiState : PersistentActionState {
             }
 
             GlobalScope.launch(Dispatchers.IO) {
-                val inputStream = GZIPInputStream(context.resources.openRawResource(R.raw.emoji_i18n))
-
-                var data: JsonObject? = null
-                BufferedReader(InputStreamReader(inputStream, StandardCharsets.UTF_8)).use { reader ->
-                    while (true) {
-                        val line = reader.readLine()
-                        if (line == null) break
-                        if (line.startsWith("#")) {
-                            val lineLanguage = line.substring(1).trim()
-                            if (lineLanguage == language) {
-                                val jsonLine = reader.readLine()
-                                data = Json.parseToJsonElement(jsonLine).jsonObject
-                                break
-                            }
-                        }
-                    }
-                }
+                val translations = EmojiDatabase.get(context)?.readTranslations(language)
+                    ?.mapValues { EmojiNames(it.value) }
 
-                if (data != null) {
-                    val translations = data.map { entry ->
-                        val names = entry.value.jsonArray.map { it.jsonPrimitive.content }
-                        entry.key to EmojiNames(names)
-                    }.toMap()
+                if (translations != null) {
                     loadedTranslations.put(language, EmojiTranslations(translations))
 
                     // Shortcuts are unique words
@@ -1030,37 +997,32 @@ class PersistentEmojiState : PersistentActionState {
 
         @JvmStatic
         suspend fun loadEmojis(context: Context) = withContext(Dispatchers.IO) {
-            val stream = context.resources.openRawResource(R.raw.gemoji)
-            val text = stream.bufferedReader().readText()
-
-            val supplementalEmoteText = context.resources.openRawResource(R.raw.supplemental_emotes)
-                .bufferedReader().readText()
+            val records = EmojiDatabase.get(context)?.readEmojis() ?: emptyList()
 
             val compatTypeface = context.compatEmojiTypeface
 
             withContext(Dispatchers.Default) {
-                val emojiData = Json.parseToJsonElement(text).jsonArray.toList()
-                val supplementalEmoteData = Json.parseToJsonElement(supplementalEmoteText).jsonArray
-                    .toList()
+                // Fonts only change with the app or the OS
+                val glyphSupportKey = "${BuildConfig.VERSION_CODE}/${Build.FINGERPRINT}/${compatTypeface != null}"
+                val glyphSupport = EmojiGlyphSupportCache.load(context, glyphSupportKey, records.map { it.emoji }) {
+                    when {
+                        records[it].category == "ASCII" -> 0
+                        else -> emojiGlyphSupport(records[it].emoji, compatTypeface)
+                    }
+                }
 
                 val englishShortcuts = mutableListOf<LooseShortcut>()
                 val englishTranslations = hashMapOf<String, EmojiNames>()
 
-                emojis.value = (emojiData + supplementalEmoteData).mapNotNull {
-                    val emoji = it.jsonObject["emoji"]!!.jsonPrimitive.content
-                    val version = it.jsonObject["unicode_version"]!!.jsonPrimitive.content
-                    val description = it.jsonObject["description"]!!.jsonPrimitive.content
-                    val category = it.jsonObject["category"]!!.jsonPrimitive.content
+                emojis.value = records.mapIndexedNotNull { i, record ->
+                    val emoji = record.emoji
+                    val description = record.description
+                    val category = record.category
+                    val tags = record.tags
+                    val aliases = record.aliases
 
-                    val tags = it.jsonObject["tags"]?.jsonArray?.map { it.jsonPrimitive.content }
-                        ?.toList() ?: listOf()
-                    val aliases = it.jsonObject["aliases"]?.jsonArray?.map { it.jsonPrimitive.content }
-                        ?.toList() ?: listOf()
-
-                    val supported = when {
-                        category == "ASCII" -> true
-                        else -> emojiShouldShow(emoji, compatTypeface)
-                    }
+                    if(category != "ASCII") putEmojiGlyphSupport(emoji, glyphSupport[i])
+                    val supported = glyphSupport[i] != 2
 
                     if(!supported) {
                         null
@@ -1111,7 +1073,7 @@ class PersistentEmojiState : PersistentActionState {
                             emoji = emoji,
                             description = description,
                             category = category,
-                            skinTones = it.jsonObject["skin_tones"]?.jsonPrimitive?.booleanOrNull == true,
+                            skinTones = record.skinTones,
                             //tags = it.jsonObject["tags"]?.jsonArray?.map { it.jsonPrimitive.content }
                             //    ?.toList() ?: listOf(),
                             //aliases =
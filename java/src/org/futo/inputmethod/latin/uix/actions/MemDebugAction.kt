@@ -30,6 +30,8 @@ import kotlinx.serialization.json.Json
 import org.futo.inputmethod.engine.general.ChineseIME
 import org.futo.inputmethod.engine.general.GeneralIME
 import org.futo.inputmethod.engine.general.JapaneseIME
+import org.futo.inputmethod.latin.ExpandableBinaryDictionary
+import org.futo.inputmethod.latin.ITrieHandle
 import org.futo.inputmethod.latin.LatinIME
 import org.futo.inputmethod.latin.LegacySwipeSetting
 import org.futo.inputmethod.latin.R
@@ -41,8 +43,13 @@ import org.futo.inputmethod.latin.uix.LocalFoldingState
 import org.futo.inputmethod.latin.uix.settings.ScrollableList
 import org.futo.inputmethod.latin.uix.settings.useDataStoreValue
 import org.futo.inputmethod.latin.uix.theme.Typography
+import org.futo.inputmethod.latin.utils.ExecutorUtils
+import org.futo.inputmethod.latin.xlm.LanguageModel
+import org.futo.inputmethod.latin.xlm.WarmLanguageModels
 import org.futo.inputmethod.v2keyboard.KeyVisualStyle
 import org.futo.inputmethod.v2keyboard.KeyboardSizeStateProvider
+import org.futo.voiceinput.shared.whisper.ModelManager
+import org.futo.voiceinput.shared.whisper.MultiModelRunner
 import java.io.File
 
 val DebugLabel = Typography.Small.copy(fontFamily = FontFamily.Monospace)
@@ -333,12 +340,54 @@ val MemoryDebugAction = Action(
                             Text("", style = DebugLabel)
                             Text("dictionary count   = ${SwipeDecoderDictionary.appliedTries?.size}", style = DebugLabel)
                             Text("dictionary weights = ${SwipeDecoderDictionary.appliedTrieWeights.joinToString(", ")}", style = DebugLabel)
+                            Text("trie lock wait     = ${ITrieHandle.getTotalLockWaitNanos() / 1000000L}ms total, ${ITrieHandle.getMaxLockWaitNanos() / 1000000L}ms max, ${ITrieHandle.getLockAcquireCount()} locks", style = DebugLabel)
                         }
 
                     }
 
                     Spacer(modifier = Modifier.height(8.dp))
 
+                    Text("Dictionaries", style = DebugTitle)
+                    Text("gc/flush reads  = ${ExpandableBinaryDictionary.getLongTaskReadCount()}, ${ExpandableBinaryDictionary.getSnapshotReadCount()} answered from snapshot", style = DebugLabel)
+                    Text("write waits     = ${ExpandableBinaryDictionary.getWriteWaitReadCount()}", style = DebugLabel)
+                    listOf(
+                        "critical" to ExecutorUtils.PRIORITY_LATENCY_CRITICAL,
+                        "bulk" to ExecutorUtils.PRIORITY_BULK
+                    ).forEach { (lane, priority) ->
+                        val started = ExecutorUtils.getStartedTaskCount(priority)
+                        val avgWaitMs = if(started > 0) ExecutorUtils.getTotalWaitNanos(priority) / started / 1000000L else 0L
+                        Text("$lane tasks = ${ExecutorUtils.getQueuedTaskCount(priority)} queued, $started started, ${avgWaitMs}ms avg wait, ${ExecutorUtils.getMaxWaitNanos(priority) / 1000000L}ms max", style = DebugLabel)
+                    }
+
+                    Spacer(modifier = Modifier.height(8.dp))
+
+                    Text("Language Model", style = DebugTitle)
+                    LanguageModel.lastPrefixCacheStats?.let { stats ->
+                        Text("prefix cache    = ${stats.hits} hits, ${stats.misses} misses, ${stats.reusedTokens} tokens reused", style = DebugLabel)
+                        Text("kv snapshots    = ${stats.snapshots} (${stats.cachedTokens} tokens)", style = DebugLabel)
+                    } ?: Text("not loaded", style = DebugLabel)
+                    WarmLanguageModels.warmModelStats.forEach {
+                        Text("warm model      = ${it.name} (${it.locale}), loaded in ${it.loadTimeMs}ms, ${it.mappedBytes / 1024 / 1024}MB mapped, ${it.privateBytes / 1024 / 1024}MB private", style = DebugLabel)
+                    }
+
+                    Spacer(modifier = Modifier.height(8.dp))
+
+                    Text("Voice Input", style = DebugTitle)
+                    if(ModelManager.loadedModelStats.isEmpty()) {
+                        Text("no models loaded", style = DebugLabel)
+                    }
+                    ModelManager.loadedModelStats.forEach {
+                        Text("model           = ${it.key}, ${it.nativeBytes / 1024 / 1024}MB native${if(it.inUse) ", in use" else ""}", style = DebugLabel)
+                    }
+                    MultiModelRunner.lastRunTimings?.let {
+                        Text("last run        = ${it.audioMs}ms of audio, detection ${it.detectionMs ?: "-"}ms, primary ${it.primaryMs ?: "-"}ms", style = DebugLabel)
+                        if(it.bailLanguage != null) {
+                            Text("bailed to       = ${it.bailLanguage} ${if(it.bailedLate) "after" else "before"} the full encode, specific ${it.specificMs ?: "-"}ms", style = DebugLabel)
+                        }
+                    }
+
+                    Spacer(modifier = Modifier.height(8.dp))
+
                     Text("Editor Info", style = DebugTitle)
                     latinIme.currentInputEditorInfo?.let { info ->
                         Text("packageName       = ${info.packageName}",       style = DebugLabel)
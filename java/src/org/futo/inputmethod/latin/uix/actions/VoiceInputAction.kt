@@ -1,5 +1,6 @@
 package org.futo.inputmethod.latin.uix.actions
 
+import android.content.Context
 import android.content.Intent
 import androidx.compose.foundation.clickable
 import androidx.compose.foundation.interaction.MutableInteractionSource
@@ -24,6 +25,7 @@ import kotlinx.coroutines.cancelAndJoin
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.runBlocking
 import kotlinx.coroutines.yield
+import org.futo.inputmethod.compat.ActivityManagerCompatUtils
 import org.futo.inputmethod.latin.R
 import org.futo.inputmethod.latin.uix.ANIMATE_BUBBLE
 import org.futo.inputmethod.latin.uix.AUDIO_FOCUS
@@ -38,7 +40,9 @@ import org.futo.inputmethod.latin.uix.PREFER_BLUETOOTH
 import org.futo.inputmethod.latin.uix.PersistentActionState
 import org.futo.inputmethod.latin.uix.ResourceHelper
 import org.futo.inputmethod.latin.uix.USE_PERSONAL_DICT
+import org.futo.inputmethod.latin.uix.USE_STREAMING_RECOGNITION
 import org.futo.inputmethod.latin.uix.USE_VAD_AUTOSTOP
+import org.futo.inputmethod.latin.uix.VOICE_INPUT_MODEL_BUDGET_MB
 import org.futo.inputmethod.latin.uix.VERBOSE_PROGRESS
 import org.futo.inputmethod.latin.uix.getSetting
 import org.futo.inputmethod.latin.uix.setSetting
@@ -97,8 +101,24 @@ fun NoModelInstalled(locale: Locale) {
     }
 }
 
+private const val DefaultVoiceInputModelBudgetMb = 384
+
+private fun getVoiceInputModelBudgetBytes(context: Context): Long {
+    val budgetMb = context.getSetting(VOICE_INPUT_MODEL_BUDGET_MB).let {
+        when {
+            it >= 0 -> it
+            ActivityManagerCompatUtils.isLowRamDevice(context) -> 0
+            else -> DefaultVoiceInputModelBudgetMb
+        }
+    }
+
+    return budgetMb.toLong() * 1024L * 1024L
+}
+
 class VoiceInputPersistentState(val manager: KeyboardManagerForAction) : PersistentActionState {
-    val modelManager = ModelManager(manager.getContext())
+    val modelManager = ModelManager(manager.getContext()) {
+        getVoiceInputModelBudgetBytes(manager.getContext())
+    }
     val soundPlayer = SoundPlayer(manager.getContext())
     val userDictionaryObserver = UserDictionaryObserver(manager.getContext())
 
@@ -127,6 +147,7 @@ private class VoiceInputActionWindow(
         val requestAudioFocus = context.getSetting(AUDIO_FOCUS)
         val canExpandSpace = context.getSetting(CAN_EXPAND_SPACE)
         val useVAD = context.getSetting(USE_VAD_AUTOSTOP)
+        val useStreaming = context.getSetting(USE_STREAMING_RECOGNITION)
         val usePersonalDict = context.getSetting(USE_PERSONAL_DICT)
         val animateBubble = context.getSetting(ANIMATE_BUBBLE)
 
@@ -158,7 +179,8 @@ private class VoiceInputActionWindow(
                 preferBluetoothMic = useBluetoothAudio,
                 requestAudioFocus = requestAudioFocus,
                 canExpandSpace = canExpandSpace,
-                useVADAutoStop = useVAD
+                useVADAutoStop = useVAD,
+                useStreaming = useStreaming
             )
         )
     }
@@ -458,7 +458,7 @@ val Context.clipboardFile get() = File(filesDir, ClipboardFileName)
 val Context.clipboardDir get() = File(filesDir, "clipboardfiles")
 
 @OptIn(ExperimentalCoroutinesApi::class)
-private val ClipboardIOContext = Dispatchers.IO.limitedParallelism(1)
+internal val ClipboardIOContext = Dispatchers.IO.limitedParallelism(1)
 
 class ClipboardHistoryManager(val context: Context, val coroutineScope: LifecycleCoroutineScope) : PersistentActionState {
     var clipboardIOFailureReason = ""
@@ -483,6 +483,14 @@ class ClipboardHistoryManager(val context: Context, val coroutineScope: Lifecycl
     // Temporary file used during saving, after writing we delete previous backup, move primary to backup, move swap to primary
     val clipboardFileSwap = File(context.filesDir, "$ClipboardFileName.swap")
 
+    // Changes made since the primary file was last written, replayed on top of it when loading
+    private val journal = ClipboardJournal(context.clipboardJournalFile)
+
+    // Set when the primary file must be rewritten on the next save, e.g. after recovering from
+    // the backup or after an import replaced the primary file underneath the journal
+    @Volatile
+    private var compactionRequested = false
+
     var clipboardLoaded = false
 
     private val screenshotHelper = ScreenshotHelper(context, coroutineScope, object : ScreenshotListener {
@@ -675,6 +683,7 @@ class ClipboardHistoryManager(val context: Context, val coroutineScope: Lifecycl
             clipboardLoaded = true
         }
 
+        compactionRequested = true
         saveClipboard()
     }
 
@@ -750,6 +759,9 @@ class ClipboardHistoryManager(val context: Context, val coroutineScope: Lifecycl
     }
 
     var saveClipboardLoadJob: Job? = null
+
+    // What the primary file plus journal currently hold, used to compute journal records
+    @Volatile
     var lastClipboardWritten: List<ClipboardEntry>? = null
     internal fun saveClipboard(): Job? {
         if(!context.isDirectBootUnlocked) return null
@@ -774,63 +786,29 @@ class ClipboardHistoryManager(val context: Context, val coroutineScope: Lifecycl
         return coroutineScope.launch(context = ClipboardIOContext) {
             try {
                 val list = withContext(Dispatchers.Main) { clipboardHistory.toList() }
-                val json = Json.encodeToString(list).toByteArray()
+                val lastWritten = lastClipboardWritten
 
-                if(list == lastClipboardWritten) return@launch
+                if(list == lastWritten && !compactionRequested) return@launch
 
                 // Once every day only
                 val shouldBackup = (System.currentTimeMillis() - context.getSetting(ClipboardLastBackup)) > 1000L * 60L * 60L * 24L * 1L
-                var backupSucceeded = false
-
 
                 withContext(NonCancellable) {
-                    synchronized(atomicClipboardFile) {
-                        migrateLegacyClipboardBak()
-
-                        // Produce a backup
-                        if (clipboardFile.exists() && shouldBackup) {
-                            val existingData = atomicClipboardFile.readFully()
-
-                            val isValid = try {
-                                decodeData(existingData).isNotEmpty()
-                            } catch (_: Exception) {
-                                false
-                            }
-                            if (isValid) {
-                                val atomicBackup = AtomicFile(clipboardFileBak)
-
-                                val stream = atomicBackup.startWrite()
-                                try {
-                                    stream.write(existingData)
-                                    stream.flush()
-                                    atomicBackup.finishWrite(stream)
-                                    backupSucceeded = true
-                                } catch (e: Exception) {
-                                    atomicBackup.failWrite(stream)
-                                }
-                            }
-                        }
-
-                        val stream = atomicClipboardFile.startWrite()
+                    if(lastWritten != null && journal.isReady && !compactionRequested) {
                         try {
-                            stream.write(json)
-                            stream.flush()
-                            atomicClipboardFile.finishWrite(stream)
+                            journal.append(ClipboardJournal.diff(lastWritten, list))
                             lastClipboardWritten = list
                         } catch (e: Exception) {
-                            atomicClipboardFile.failWrite(stream)
-                            throw e
+                            // A partially appended record would hide everything after it
+                            compactionRequested = true
+                            reportError("saveClipboard journal, rewriting primary", e)
                         }
                     }
-                }
-
-                if(backupSucceeded) {
-                    context.setSetting(ClipboardLastBackup, System.currentTimeMillis())
-                }
 
-                // Finally validate it can be read
-                if (decodeFile(clipboardFile) != list) {
-                    throw Exception("Saved file data does not match expected data")
+                    if(lastClipboardWritten != list || compactionRequested || shouldBackup
+                        || journal.shouldCompact(clipboardFile.length())) {
+                        compactClipboard(list, shouldBackup)
+                    }
                 }
 
                 clipboardIOFailure.value = false
@@ -844,10 +822,72 @@ class ClipboardHistoryManager(val context: Context, val coroutineScope: Lifecycl
         }
     }
 
+    /**
+     * Writes the whole list to the primary file and empties the journal. Only needed once the
+     * journal grows large, for the daily backup, or when the journal can't be trusted.
+     */
+    private suspend fun compactClipboard(list: List<ClipboardEntry>, shouldBackup: Boolean) {
+        val json = Json.encodeToString(list).toByteArray()
+        var backupSucceeded = false
+
+        synchronized(atomicClipboardFile) {
+            migrateLegacyClipboardBak()
+
+            // Produce a backup
+            if (clipboardFile.exists() && shouldBackup) {
+                val existingData = atomicClipboardFile.readFully()
+
+                val isValid = try {
+                    decodeData(existingData).isNotEmpty()
+                } catch (_: Exception) {
+                    false
+                }
+                if (isValid) {
+                    val atomicBackup = AtomicFile(clipboardFileBak)
+
+                    val stream = atomicBackup.startWrite()
+                    try {
+                        stream.write(existingData)
+                        stream.flush()
+                        atomicBackup.finishWrite(stream)
+                        backupSucceeded = true
+                    } catch (e: Exception) {
+                        atomicBackup.failWrite(stream)
+                    }
+                }
+            }
+
+            val stream = atomicClipboardFile.startWrite()
+            try {
+                stream.write(json)
+                stream.flush()
+                atomicClipboardFile.finishWrite(stream)
+            } catch (e: Exception) {
+                atomicClipboardFile.failWrite(stream)
+                throw e
+            }
+
+            // Validate it can be read before the journal that backs it up is discarded
+            if (decodeFile(clipboardFile) != list) {
+                throw Exception("Saved file data does not match expected data")
+            }
+
+            journal.reset(ClipboardJournal.checksum(json))
+            lastClipboardWritten = list
+            compactionRequested = false
+        }
+
+        if(backupSucceeded) {
+            context.setSetting(ClipboardLastBackup, System.currentTimeMillis())
+        }
+    }
+
     fun deleteClipboard() {
         listOf(clipboardFile, clipboardFileSwap, clipboardFileBak).forEach {
             if(it.exists()) it.delete()
         }
+        journal.delete()
+        lastClipboardWritten = null
     }
 
     private fun decodeData(data: ByteArray): List<ClipboardEntry> =
@@ -876,6 +916,10 @@ ${if(clipboardFileBak.exists()) { clipboardFileBak.readText() } else { "File doe
 --- swap data start --- snip ---
 ${if(clipboardFileSwap.exists()) { clipboardFileSwap.readText() } else { "File does not exist" }}
 --- swap data end --- snip ---
+
+--- journal data start --- snip ---
+${if(journal.file.exists()) { journal.file.readText() } else { "File does not exist" }}
+--- journal data end --- snip ---
 """))
     }
 
@@ -900,10 +944,17 @@ ${if(clipboardFileSwap.exists()) { clipboardFileSwap.readText() } else { "File d
                 migrateLegacyClipboardBak()
                 val data = synchronized(atomicClipboardFile) {
                     try {
-                        decodeFile(clipboardFile)
+                        val snapshot = atomicClipboardFile.readFully()
+                        decodeData(snapshot).toMutableList().also {
+                            if(!journal.replay(ClipboardJournal.checksum(snapshot), it)) {
+                                compactionRequested = true
+                            }
+                        }
                     } catch(e: Exception) {
                         reportError("loadClipboard main, trying bak", e)
                         if(clipboardFileBak.exists()) {
+                            // The journal only applies to the primary file
+                            compactionRequested = true
                             decodeFile(clipboardFileBak)
                         } else {
                             throw e
@@ -911,6 +962,7 @@ ${if(clipboardFileSwap.exists()) { clipboardFileSwap.readText() } else { "File d
                     }
                 }
 
+                lastClipboardWritten = data.toList()
                 clipboardHistory.clear()
                 clipboardHistory.addAll(data)
                 pruneOldItems()
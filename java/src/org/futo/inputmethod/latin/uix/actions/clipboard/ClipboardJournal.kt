@@ -0,0 +1,247 @@
+package org.futo.inputmethod.latin.uix.actions.clipboard
+
+import android.content.Context
+import androidx.core.util.AtomicFile
+import kotlinx.coroutines.withContext
+import kotlinx.serialization.Serializable
+import kotlinx.serialization.encodeToString
+import kotlinx.serialization.json.Json
+import java.io.File
+import java.io.FileOutputStream
+import java.util.zip.CRC32
+
+val Context.clipboardJournalFile get() = File(filesDir, "$ClipboardFileName.journal")
+
+@Serializable
+internal data class ClipboardJournalRecord(
+    val op: String,
+    val index: Int = -1,
+    val entry: ClipboardEntry? = null,
+    val entries: List<ClipboardEntry>? = null,
+    val baseChecksum: Long = 0L,
+) {
+    companion object {
+        // First line of every journal, identifies the snapshot the journal applies on top of
+        const val OpBase = "base"
+
+        const val OpAdd = "add"
+        const val OpRemove = "remove"
+        const val OpSet = "set"
+        const val OpReset = "reset"
+    }
+}
+
+/**
+ * Append-only log of clipboard history changes made since the last full snapshot was written to
+ * [clipboardFile]. The snapshot remains in the regular JSON format, so it can still be imported
+ * and exported as before, and the journal is only valid for the exact snapshot bytes named in
+ * its header line. A journal left over from an older snapshot (e.g. a crash between writing the
+ * snapshot and resetting the journal, or an import) is discarded rather than replayed.
+ */
+internal class ClipboardJournal(val file: File) {
+    private var baseChecksum: Long? = null
+
+    var numRecords = 0
+        private set
+
+    val isReady: Boolean
+        get() = baseChecksum != null && file.exists()
+
+    /**
+     * Replays the journal on top of [entries], which must have been decoded from a snapshot with
+     * checksum [snapshotChecksum]. Returns false if the journal was stale or partially torn, in
+     * which case the caller should write a new snapshot as soon as possible.
+     */
+    fun replay(snapshotChecksum: Long, entries: MutableList<ClipboardEntry>): Boolean {
+        baseChecksum = null
+        numRecords = 0
+        if(!file.exists()) return false
+
+        var intact = true
+        file.bufferedReader().useLines { lines ->
+            val iterator = lines.iterator()
+            val header = if(iterator.hasNext()) decodeRecord(iterator.next()) else null
+            if(header?.op != ClipboardJournalRecord.OpBase || header.baseChecksum != snapshotChecksum) {
+                intact = false
+                return@useLines
+            }
+
+            for(line in iterator) {
+                if(line.isEmpty()) continue
+
+                // A record that can't be decoded is most likely the tail of an interrupted
+                // append, anything after it can't be trusted
+                val record = decodeRecord(line)
+                if(record == null) {
+                    intact = false
+                    break
+                }
+
+                applyRecord(record, entries)
+                numRecords++
+            }
+        }
+
+        if(intact) baseChecksum = snapshotChecksum
+        return intact
+    }
+
+    fun append(records: List<ClipboardJournalRecord>) {
+        if(records.isEmpty()) return
+        check(isReady) { "Journal has no base snapshot" }
+
+        val data = records.joinToString(separator = "") { Json.encodeToString(it) + "\n" }
+        FileOutputStream(file, true).use { stream ->
+            stream.write(data.toByteArray())
+            stream.flush()
+            stream.fd.sync()
+        }
+
+        numRecords += records.size
+    }
+
+    /** Discards all records. Must be called after a snapshot with [snapshotChecksum] was written */
+    fun reset(snapshotChecksum: Long) {
+        val atomicFile = AtomicFile(file)
+        val stream = atomicFile.startWrite()
+        try {
+            val header = ClipboardJournalRecord(
+                op = ClipboardJournalRecord.OpBase,
+                baseChecksum = snapshotChecksum
+            )
+            stream.write((Json.encodeToString(header) + "\n").toByteArray())
+            stream.flush()
+            atomicFile.finishWrite(stream)
+        } catch(e: Exception) {
+            atomicFile.failWrite(stream)
+            baseChecksum = null
+            throw e
+        }
+
+        baseChecksum = snapshotChecksum
+        numRecords = 0
+    }
+
+    /** Once the journal grows comparable to the snapshot, rewriting the snapshot is cheaper to load */
+    fun shouldCompact(snapshotSize: Long): Boolean =
+        !isReady || numRecords >= MaxRecords || file.length() > snapshotSize / 2 + MinCompactBytes
+
+    fun delete() {
+        if(file.exists()) file.delete()
+        baseChecksum = null
+        numRecords = 0
+    }
+
+    companion object {
+        private const val MaxRecords = 256
+        private const val MinCompactBytes = 16L * 1024L
+
+        fun checksum(data: ByteArray): Long = CRC32().apply { update(data) }.value
+
+        private fun decodeRecord(line: String): ClipboardJournalRecord? = try {
+            Json.decodeFromString<ClipboardJournalRecord>(line)
+        } catch(_: Exception) {
+            null
+        }
+
+        fun applyRecord(record: ClipboardJournalRecord, entries: MutableList<ClipboardEntry>) {
+            when(record.op) {
+                ClipboardJournalRecord.OpAdd -> record.entry?.let {
+                    entries.add(record.index.coerceIn(0, entries.size), it)
+                }
+
+                ClipboardJournalRecord.OpRemove -> record.entry?.let {
+                    if(record.index in entries.indices && entries[record.index] == it) {
+                        entries.removeAt(record.index)
+                    } else {
+                        entries.remove(it)
+                    }
+                }
+
+                ClipboardJournalRecord.OpSet -> record.entry?.let {
+                    if(record.index in entries.indices) {
+                        entries[record.index] = it
+                    } else {
+                        entries.add(it)
+                    }
+                }
+
+                ClipboardJournalRecord.OpReset -> record.entries?.let {
+                    entries.clear()
+                    entries.addAll(it)
+                }
+            }
+        }
+
+        /**
+         * Produces the records that turn [old] into [new]. Typical clipboard events (a new copy,
+         * pinning, pasting, removing) only touch one or two positions, so this results in one or
+         * two small records. Anything that reorders surviving entries falls back to a reset.
+         */
+        fun diff(old: List<ClipboardEntry>, new: List<ClipboardEntry>): List<ClipboardJournalRecord> {
+            val minSize = minOf(old.size, new.size)
+
+            var prefix = 0
+            while(prefix < minSize && old[prefix] == new[prefix]) prefix++
+
+            var suffix = 0
+            while(suffix < minSize - prefix && old[old.size - 1 - suffix] == new[new.size - 1 - suffix]) suffix++
+
+            val oldMiddle = old.subList(prefix, old.size - suffix)
+            val newMiddle = new.subList(prefix, new.size - suffix)
+
+            if(oldMiddle.isEmpty() && newMiddle.isEmpty()) return emptyList()
+
+            if(oldMiddle.size == 1 && newMiddle.size == 1) {
+                return listOf(ClipboardJournalRecord(ClipboardJournalRecord.OpSet, prefix, newMiddle[0]))
+            }
+
+            val reset = listOf(ClipboardJournalRecord(ClipboardJournalRecord.OpReset, entries = new))
+
+            val oldSet = oldMiddle.toHashSet()
+            val newSet = newMiddle.toHashSet()
+            if(oldSet.size != oldMiddle.size || newSet.size != newMiddle.size) return reset
+
+            if(oldMiddle.filter { it in newSet } != newMiddle.filter { it in oldSet }) return reset
+
+            val records = mutableListOf<ClipboardJournalRecord>()
+
+            var numRemoved = 0
+            oldMiddle.forEachIndexed { i, entry ->
+                if(entry !in newSet) {
+                    records.add(ClipboardJournalRecord(ClipboardJournalRecord.OpRemove, prefix + i - numRemoved, entry))
+                    numRemoved++
+                }
+            }
+
+            newMiddle.forEachIndexed { i, entry ->
+                if(entry !in oldSet) {
+                    records.add(ClipboardJournalRecord(ClipboardJournalRecord.OpAdd, prefix + i, entry))
+                }
+            }
+
+            return if(records.size > new.size) reset else records
+        }
+    }
+}
+
+/**
+ * Returns the clipboard history in the [ClipboardFileName] JSON format with any journaled
+ * changes applied, or null if there is no clipboard history.
+ */
+internal suspend fun readClipboardHistoryJson(context: Context): ByteArray? = withContext(ClipboardIOContext) {
+    val file = context.clipboardFile
+    if(!file.exists()) return@withContext null
+
+    val snapshot = AtomicFile(file).readFully()
+    val journalFile = context.clipboardJournalFile
+    if(!journalFile.exists()) return@withContext snapshot
+
+    try {
+        val entries = Json.decodeFromString<List<ClipboardEntry>>(snapshot.decodeToString()).toMutableList()
+        ClipboardJournal(journalFile).replay(ClipboardJournal.checksum(snapshot), entries)
+        Json.encodeToString(entries).toByteArray()
+    } catch(_: Exception) {
+        snapshot
+    }
+}
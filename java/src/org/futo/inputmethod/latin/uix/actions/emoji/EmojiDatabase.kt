@@ -0,0 +1,180 @@
+package org.futo.inputmethod.latin.uix.actions.emoji
+
+import android.content.Context
+import android.util.Log
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileNotFoundException
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.util.zip.GZIPInputStream
+
+data class EmojiRecord(
+    val emoji: String,
+    val description: String,
+    val category: String,
+    val skinTones: Boolean,
+    val aliases: List<String>,
+    val tags: List<String>
+)
+
+/**
+ * The emoji list and emoji translations, compiled at build time by the generateEmojiDatabase task.
+ * The asset is stored uncompressed so it can be mapped, and only the sections that are read get
+ * paged in. The section of each language is gzipped on its own.
+ */
+class EmojiDatabase private constructor(private val buffer: ByteBuffer) {
+    private class Section(val offset: Int, val length: Int)
+
+    private val sections = HashMap<String, Section>()
+
+    init {
+        val header = buffer.duplicate()
+        if(header.getInt() != Magic) throw IOException("Not an emoji database")
+        if(header.getInt() != Version) throw IOException("Unsupported emoji database version")
+
+        repeat(header.getInt()) {
+            val name = header.getString()
+            sections[name] = Section(header.getInt(), header.getInt())
+        }
+    }
+
+    private fun section(name: String): ByteBuffer? {
+        val section = sections[name] ?: return null
+        return buffer.duplicate().apply {
+            position(section.offset)
+            limit(section.offset + section.length)
+        }
+    }
+
+    fun readEmojis(): List<EmojiRecord> {
+        val data = section("emojis") ?: return emptyList()
+        return List(data.getInt()) {
+            EmojiRecord(
+                emoji = data.getString(),
+                description = data.getString(),
+                category = data.getString(),
+                skinTones = data.get() != 0.toByte(),
+                aliases = data.getStrings(),
+                tags = data.getStrings()
+            )
+        }
+    }
+
+    fun readTranslations(language: String): Map<String, List<String>>? {
+        val compressed = section(LanguagePrefix + language)?.let { section ->
+            ByteArray(section.remaining()).also { section.get(it) }
+        } ?: return null
+
+        val data = ByteBuffer.wrap(GZIPInputStream(compressed.inputStream()).use { it.readBytes() })
+        val count = data.getInt()
+        return LinkedHashMap<String, List<String>>(count).apply {
+            repeat(count) { put(data.getString(), data.getStrings()) }
+        }
+    }
+
+    companion object {
+        private const val TAG = "EmojiDatabase"
+        private const val AssetName = "emoji-database.bin"
+        private const val Magic = 0x454D4A31
+        private const val Version = 1
+        private const val LanguagePrefix = "lang/"
+
+        private fun ByteBuffer.getString(): String {
+            val bytes = ByteArray(getShort().toInt() and 0xFFFF)
+            get(bytes)
+            return String(bytes, Charsets.UTF_8)
+        }
+
+        private fun ByteBuffer.getStrings(): List<String> =
+            List(get().toInt() and 0xFF) { getString() }
+
+        @Volatile
+        private var database: EmojiDatabase? = null
+
+        @JvmStatic
+        fun get(context: Context): EmojiDatabase? {
+            database?.let { return it }
+
+            return synchronized(this) {
+                database ?: try {
+                    val buffer = try {
+                        context.assets.openFd(AssetName).use { fd ->
+                            FileInputStream(fd.fileDescriptor).channel
+                                .map(FileChannel.MapMode.READ_ONLY, fd.startOffset, fd.length)
+                        }
+                    } catch(e: FileNotFoundException) {
+                        // openFd fails for compressed assets, which then have to be read fully
+                        ByteBuffer.wrap(context.assets.open(AssetName).use { it.readBytes() })
+                    }
+
+                    EmojiDatabase(buffer).also { database = it }
+                } catch(e: IOException) {
+                    Log.e(TAG, "Failed to open emoji database", e)
+                    null
+                }
+            }
+        }
+    }
+}
+
+/**
+ * Whether each emoji has a glyph in the system font, in the bundled compat font or in neither, as
+ * checked by [org.futo.inputmethod.latin.uix.theme.emojiGlyphSupport]. Checking every emoji takes a
+ * while, so the results are kept in a file until the app or the OS (and with it the fonts) change.
+ */
+object EmojiGlyphSupportCache {
+    private const val TAG = "EmojiGlyphSupportCache"
+    private const val FileName = "emoji-glyph-support.bin"
+
+    private fun read(file: File, key: String, count: Int): ByteArray? = try {
+        DataInputStream(file.inputStream().buffered()).use { input ->
+            if(input.readUTF() != key || input.readInt() != count) return null
+
+            ByteArray((count + 3) / 4).also { input.readFully(it) }
+        }
+    } catch(e: IOException) {
+        null
+    }
+
+    private fun write(file: File, key: String, count: Int, packed: ByteArray) {
+        val tmpFile = File(file.parentFile, "$FileName.tmp")
+        try {
+            DataOutputStream(tmpFile.outputStream().buffered()).use { output ->
+                output.writeUTF(key)
+                output.writeInt(count)
+                output.write(packed)
+            }
+            if(!tmpFile.renameTo(file)) tmpFile.delete()
+        } catch(e: IOException) {
+            Log.w(TAG, "Failed to write emoji glyph support cache", e)
+            tmpFile.delete()
+        }
+    }
+
+    /**
+     * Returns the glyph support of every emoji, reading it from the cache if [key] and the emojis
+     * match, and otherwise computing it with [check] and caching the result.
+     */
+    fun load(context: Context, key: String, emojis: List<String>, check: (Int) -> Int): IntArray {
+        val file = File(context.cacheDir, FileName)
+        val fullKey = "$key/${emojis.size}/${emojis.hashCode()}"
+
+        // Two bits per emoji
+        read(file, fullKey, emojis.size)?.let { packed ->
+            return IntArray(emojis.size) { (packed[it / 4].toInt() shr (it % 4 * 2)) and 3 }
+        }
+
+        val support = IntArray(emojis.size) { check(it) }
+        val packed = ByteArray((emojis.size + 3) / 4)
+        support.forEachIndexed { i, value ->
+            packed[i / 4] = (packed[i / 4].toInt() or ((value and 3) shl (i % 4 * 2))).toByte()
+        }
+        write(file, fullKey, emojis.size, packed)
+
+        return support
+    }
+}
@@ -0,0 +1,211 @@
+package org.futo.inputmethod.latin.uix.actions.emoji
+
+/**
+ * Search index over the names of emojis in one set of languages. Queries of three or more
+ * characters only look at emojis whose names contain every trigram of the query, and queries of
+ * four or more characters also match names starting with the query plus or minus one typo. Typos
+ * are only checked on emojis that the first two characters and the trigrams of their names can't
+ * rule out, see [typoCandidates].
+ */
+class EmojiSearchIndex(emojiToNames: Map<String, List<String>>) {
+    private val ids = HashMap<String, Int>(emojiToNames.size)
+    private val names: Array<Array<String>>
+    private val trigrams = HashMap<String, IntArray>()
+    private val firstChars = HashMap<Char, IntArray>()
+    private val secondChars = HashMap<Char, IntArray>()
+
+    init {
+        val entries = emojiToNames.entries.toList()
+        names = Array(entries.size) { i ->
+            ids[entries[i].key] = i
+            Array(entries[i].value.size) { entries[i].value[it].lowercase() }
+        }
+
+        // Ids are visited in order, so every posting list ends up sorted
+        val postings = HashMap<String, MutableList<Int>>()
+        val firstCharPostings = HashMap<Char, MutableList<Int>>()
+        val secondCharPostings = HashMap<Char, MutableList<Int>>()
+        fun <K> HashMap<K, MutableList<Int>>.add(key: K, id: Int) {
+            val list = getOrPut(key) { mutableListOf() }
+            if(list.lastOrNull() != id) list.add(id)
+        }
+
+        names.forEachIndexed { id, keys ->
+            keys.forEach { key ->
+                for(start in 0..key.length - 3) {
+                    postings.add(key.substring(start, start + 3), id)
+                }
+                if(key.isNotEmpty()) firstCharPostings.add(key[0], id)
+                if(key.length > 1) secondCharPostings.add(key[1], id)
+            }
+        }
+        postings.forEach { (trigram, list) -> trigrams[trigram] = list.toIntArray() }
+        firstCharPostings.forEach { (c, list) -> firstChars[c] = list.toIntArray() }
+        secondCharPostings.forEach { (c, list) -> secondChars[c] = list.toIntArray() }
+    }
+
+    // Rows of the edit distance table, reused between names of a single query
+    private class TypoMatcher(val query: String) {
+        private var row = IntArray(query.length + 1)
+        private var next = IntArray(query.length + 1)
+
+        /** Whether some prefix of [key] is within [MaxTypos] edits of the query */
+        fun matchesPrefix(key: String): Boolean {
+            for(j in row.indices) row[j] = j
+
+            for(i in 1..key.length) {
+                val c = key[i - 1]
+                next[0] = i
+                var rowMin = i
+                for(j in 1..query.length) {
+                    val replace = row[j - 1] + if(query[j - 1] == c) 0 else 1
+                    next[j] = minOf(replace, row[j] + 1, next[j - 1] + 1)
+                    rowMin = minOf(rowMin, next[j])
+                }
+
+                if(next[query.length] <= MaxTypos) return true
+
+                // Reading more of the key can't bring the distance back down
+                if(rowMin > MaxTypos) return false
+
+                val tmp = row
+                row = next
+                next = tmp
+            }
+            return false
+        }
+    }
+
+    private fun score(keys: Array<String>, query: String, typoMatcher: TypoMatcher?): Int {
+        var best = NoMatch
+        for(key in keys) {
+            val score = when {
+                key == query -> return 0
+                key.startsWith(query) -> 1
+                key.contains(query) -> 2
+                typoMatcher?.matchesPrefix(key) == true -> 3
+                else -> NoMatch
+            }
+            if(score < best) best = score
+        }
+        return best
+    }
+
+    private fun candidatesFor(query: String): IntArray? {
+        if(query.length < 3) return null
+
+        var candidates: IntArray? = null
+        for(start in 0..query.length - 3) {
+            val posting = trigrams[query.substring(start, start + 3)] ?: return IntArray(0)
+            candidates = candidates?.let { intersect(it, posting) } ?: posting
+            if(candidates.isEmpty()) break
+        }
+        return candidates
+    }
+
+    /**
+     * Ids of the emojis that may have a name starting with [query] plus or minus one typo, which
+     * is a superset of those that [TypoMatcher] accepts.
+     *
+     * Such a name starts with the first character of the query, unless the typo is at the start.
+     * In that case the name starts with the second character of the query (a deleted first
+     * character), or its second character is the first or second of the query (an inserted or a
+     * replaced first character). One typo also breaks at most three of the query's trigrams, so
+     * longer queries need the rest of them in the emoji's names.
+     */
+    private fun typoCandidates(query: String): List<Int> {
+        val startsMatch = BooleanArray(names.size)
+        listOf(
+            firstChars[query[0]], firstChars[query[1]],
+            secondChars[query[0]], secondChars[query[1]]
+        ).forEach { posting -> posting?.forEach { startsMatch[it] = true } }
+
+        val queryTrigrams = (0..query.length - 3).map { query.substring(it, it + 3) }.distinct()
+        val minTrigrams = queryTrigrams.size - 3 * MaxTypos
+        if(minTrigrams <= 0) return names.indices.filter { startsMatch[it] }
+
+        val trigramCounts = IntArray(names.size)
+        queryTrigrams.forEach { trigram -> trigrams[trigram]?.forEach { trigramCounts[it]++ } }
+        return names.indices.filter { startsMatch[it] && trigramCounts[it] >= minTrigrams }
+    }
+
+    /** Match scores of every indexed emoji by id, lower is better */
+    private fun scores(query: String): IntArray {
+        val scores = IntArray(names.size) { NoMatch }
+
+        val candidates = candidatesFor(query)
+        if(candidates != null) {
+            candidates.forEach { scores[it] = score(names[it], query, null) }
+        } else {
+            names.indices.forEach { scores[it] = score(names[it], query, null) }
+        }
+
+        // A typo can break any trigram, so typo matches can't use the candidates from above
+        if(query.length >= MinTypoQueryLength) {
+            val typoMatcher = TypoMatcher(query)
+            for(id in typoCandidates(query)) {
+                if(scores[id] == NoMatch && names[id].any { typoMatcher.matchesPrefix(it) }) {
+                    scores[id] = 3
+                }
+            }
+        }
+
+        return scores
+    }
+
+    private fun idOf(emoji: String): Int? =
+        ids[emoji] ?: ids[emoji.replace("\uFE0F", "")] ?: ids[emoji + "\uFE0F"]
+
+    /**
+     * Returns the [items] that match [query], best matches first and otherwise in their original
+     * order. Items whose emoji isn't in the index are matched by [fallbackNames] instead.
+     */
+    fun <T> filter(
+        items: List<T>,
+        query: String,
+        emojiOf: (T) -> String,
+        fallbackNames: (T) -> List<String>
+    ): List<T> {
+        val lowercaseQuery = query.lowercase()
+        val scores = scores(lowercaseQuery)
+        val typoMatcher = if(lowercaseQuery.length >= MinTypoQueryLength) TypoMatcher(lowercaseQuery) else null
+
+        return items.mapNotNull { item ->
+            val id = idOf(emojiOf(item))
+            val score = if(id != null) {
+                scores[id]
+            } else {
+                score(fallbackNames(item).map { it.lowercase() }.toTypedArray(), lowercaseQuery, typoMatcher)
+            }
+
+            if(score == NoMatch) null else item to score
+        }.sortedBy { it.second }.map { it.first }
+    }
+
+    companion object {
+        private const val NoMatch = Int.MAX_VALUE
+        private const val MaxTypos = 1
+        private const val MinTypoQueryLength = 4
+
+        val Empty = EmojiSearchIndex(emptyMap())
+
+        private fun intersect(a: IntArray, b: IntArray): IntArray {
+            val result = IntArray(minOf(a.size, b.size))
+            var i = 0
+            var j = 0
+            var n = 0
+            while(i < a.size && j < b.size) {
+                when {
+                    a[i] < b[j] -> i++
+                    a[i] > b[j] -> j++
+                    else -> {
+                        result[n++] = a[i]
+                        i++
+                        j++
+                    }
+                }
+            }
+            return result.copyOf(n)
+        }
+    }
+}
@@ -17,12 +17,11 @@ import androidx.navigation.compose.rememberNavController
 import org.futo.inputmethod.latin.uix.getSettingFlow
 import org.futo.inputmethod.latin.uix.settings.ScreenTitle
 import org.futo.inputmethod.latin.uix.settings.ScrollableList
-import org.futo.inputmethod.latin.xlm.HistoryLogForTraining
 import org.futo.inputmethod.latin.xlm.NUM_TRAINING_RUNS_KEY
 import org.futo.inputmethod.latin.xlm.TrainingState
 import org.futo.inputmethod.latin.xlm.TrainingStateWithModel
 import org.futo.inputmethod.latin.xlm.TrainingWorkerStatus
-import org.futo.inputmethod.latin.xlm.loadHistoryLogBackup
+import org.futo.inputmethod.latin.xlm.forEachHistoryLogEntry
 import org.futo.inputmethod.latin.xlm.scheduleTrainingWorkerImmediately
 import kotlin.math.roundToInt
 
@@ -39,10 +38,10 @@ fun TrainDevScreen(navController: NavHostController = rememberNavController()) {
 
     val context = LocalContext.current
     LaunchedEffect(Unit) {
-        val data = mutableListOf<HistoryLogForTraining>()
-        loadHistoryLogBackup(context, data)
+        var count = 0
+        forEachHistoryLogEntry(context) { count++ }
 
-        trainingDataAmount = data.size
+        trainingDataAmount = count
     }
 
     val numTrains = context.getSettingFlow(NUM_TRAINING_RUNS_KEY, 0).collectAsState(initial = 0)
@@ -10,6 +10,7 @@ import org.futo.inputmethod.latin.uix.DISALLOW_SYMBOLS
 import org.futo.inputmethod.latin.uix.ENABLE_SOUND
 import org.futo.inputmethod.latin.uix.PREFER_BLUETOOTH
 import org.futo.inputmethod.latin.uix.USE_PERSONAL_DICT
+import org.futo.inputmethod.latin.uix.USE_STREAMING_RECOGNITION
 import org.futo.inputmethod.latin.uix.USE_SYSTEM_VOICE_INPUT
 import org.futo.inputmethod.latin.uix.USE_VAD_AUTOSTOP
 import org.futo.inputmethod.latin.uix.VERBOSE_PROGRESS
@@ -83,6 +84,12 @@ val VoiceInputMenu = UserSettingsMenu(
             setting = USE_VAD_AUTOSTOP
         ).copy(visibilityCheck = visibilityCheckNotSystemVoiceInput),
 
+        userSettingToggleDataStore(
+            title = R.string.voice_input_settings_streaming,
+            subtitle = R.string.voice_input_settings_streaming_subtitle,
+            setting = USE_STREAMING_RECOGNITION
+        ).copy(visibilityCheck = visibilityCheckNotSystemVoiceInput),
+
         userSettingToggleDataStore(
             title = R.string.voice_input_settings_animate_bubble,
             subtitle = R.string.voice_input_settings_animate_bubble_subtitle,
@@ -77,10 +77,17 @@ private fun putCompatCache(emoji: String, compatTypeface: Typeface?): Int {
         else -> 2
     }
 }
+/** 0 if the system font has a glyph for the emoji, 1 if only the compat font has one, otherwise 2 */
+fun emojiGlyphSupport(emoji: String, compatTypeface: Typeface?): Int =
+    compatCache.getOrPut(emoji) { putCompatCache(emoji, compatTypeface) }
+/** Fills in a result of [emojiGlyphSupport] that was cached from an earlier run */
+fun putEmojiGlyphSupport(emoji: String, support: Int) {
+    compatCache[emoji] = support
+}
 fun emojiNeedsCompat(emoji: String, compatTypeface: Typeface?): Boolean =
-    compatCache.getOrPut(emoji) { putCompatCache(emoji, compatTypeface) } == 1
+    emojiGlyphSupport(emoji, compatTypeface) == 1
 fun emojiShouldShow(emoji: String, compatTypeface: Typeface?): Boolean =
-    compatCache.getOrPut(emoji) { putCompatCache(emoji, compatTypeface) } != 2
+    emojiGlyphSupport(emoji, compatTypeface) != 2
 
 @Composable
 fun UixThemeWrapper(colorScheme: KeyboardColorScheme, content: @Composable () -> Unit) {
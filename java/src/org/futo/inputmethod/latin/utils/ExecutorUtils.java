@@ -21,10 +21,17 @@ import android.util.Log;
 import org.futo.inputmethod.annotations.UsedForTesting;
 
 import java.lang.Thread.UncaughtExceptionHandler;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Utilities to manage executors.
@@ -35,11 +42,31 @@ public class ExecutorUtils {
 
     public static final String KEYBOARD = "Keyboard";
     public static final String SPELLING = "Spelling";
+    // Short, independent dictionary lookups that are fanned out and waited on by the caller
+    public static final String LOOKUP = "Lookup";
+
+    // Pool shared by the serial queues of individual dictionaries, see getSerialExecutor
+    private static final String DICTIONARY = "Dictionary";
+
+    private static final int LOOKUP_THREAD_COUNT =
+            Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+    private static final int DICTIONARY_THREAD_COUNT =
+            Math.max(2, Math.min(3, Runtime.getRuntime().availableProcessors() - 1));
+
+    /** Work that typing waits on, such as user history updates. Runs before queued bulk work. */
+    public static final int PRIORITY_LATENCY_CRITICAL = 0;
+    /** Loading, flushing and garbage collecting dictionaries, and anything else that can wait. */
+    public static final int PRIORITY_BULK = 1;
+    private static final int PRIORITY_COUNT = 2;
 
     private static ScheduledExecutorService sKeyboardExecutorService = newExecutorService(KEYBOARD);
     private static ScheduledExecutorService sSpellingExecutorService = newExecutorService(SPELLING);
+    private static ScheduledExecutorService sLookupExecutorService = newExecutorService(LOOKUP);
 
     private static ScheduledExecutorService newExecutorService(final String name) {
+        if (LOOKUP.equals(name)) {
+            return Executors.newScheduledThreadPool(LOOKUP_THREAD_COUNT, new ExecutorFactory(name));
+        }
         return Executors.newSingleThreadScheduledExecutor(new ExecutorFactory(name));
     }
 
@@ -63,6 +90,33 @@ public class ExecutorUtils {
         }
     }
 
+    private static final ThreadPoolExecutor sDictionaryPool = newDictionaryPool();
+
+    private static ThreadPoolExecutor newDictionaryPool() {
+        final ThreadPoolExecutor pool = new ThreadPoolExecutor(DICTIONARY_THREAD_COUNT,
+                DICTIONARY_THREAD_COUNT, 30, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(), new ExecutorFactory(DICTIONARY));
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    private static final HashMap<String, SerialExecutor> sSerialExecutors = new HashMap<>();
+
+    private static final AtomicLong sTaskSequence = new AtomicLong();
+    private static final AtomicInteger[] sQueuedTaskCounts = new AtomicInteger[PRIORITY_COUNT];
+    private static final AtomicLong[] sStartedTaskCounts = new AtomicLong[PRIORITY_COUNT];
+    private static final AtomicLong[] sTotalWaitNanos = new AtomicLong[PRIORITY_COUNT];
+    private static final AtomicLong[] sMaxWaitNanos = new AtomicLong[PRIORITY_COUNT];
+
+    static {
+        for (int i = 0; i < PRIORITY_COUNT; i++) {
+            sQueuedTaskCounts[i] = new AtomicInteger();
+            sStartedTaskCounts[i] = new AtomicLong();
+            sTotalWaitNanos[i] = new AtomicLong();
+            sMaxWaitNanos[i] = new AtomicLong();
+        }
+    }
+
     @UsedForTesting
     private static ScheduledExecutorService sExecutorServiceForTests;
 
@@ -89,11 +143,141 @@ public class ExecutorUtils {
                 return sKeyboardExecutorService;
             case SPELLING:
                 return sSpellingExecutorService;
+            case LOOKUP:
+                return sLookupExecutorService;
             default:
                 throw new IllegalArgumentException("Invalid executor: " + name);
         }
     }
 
+    /**
+     * Returns the serial queue for {@code key}, creating it if needed. Tasks of one queue run one
+     * at a time in the order they were submitted, but different queues run in parallel on a
+     * shared pool. Use one key per dictionary file, so that e.g. a dictionary that is being closed
+     * is flushed before a new instance for the same file loads it.
+     */
+    public static SerialExecutor getSerialExecutor(final String key) {
+        synchronized (sSerialExecutors) {
+            SerialExecutor executor = sSerialExecutors.get(key);
+            if (executor == null) {
+                executor = new SerialExecutor();
+                sSerialExecutors.put(key, executor);
+            }
+            return executor;
+        }
+    }
+
+    /** Number of tasks of the given priority waiting in serial queues or for a pool thread. */
+    public static int getQueuedTaskCount(final int priority) {
+        return sQueuedTaskCounts[priority].get();
+    }
+
+    /** Number of tasks of the given priority that started running. */
+    public static long getStartedTaskCount(final int priority) {
+        return sStartedTaskCounts[priority].get();
+    }
+
+    /** Total time tasks of the given priority waited before they started, in nanoseconds. */
+    public static long getTotalWaitNanos(final int priority) {
+        return sTotalWaitNanos[priority].get();
+    }
+
+    /** Longest time a task of the given priority waited before it started, in nanoseconds. */
+    public static long getMaxWaitNanos(final int priority) {
+        return sMaxWaitNanos[priority].get();
+    }
+
+    private static final class PrioritizedTask implements Runnable, Comparable<PrioritizedTask> {
+        private final Runnable mTask;
+        private final int mTaskPriority;
+        private final long mSequence = sTaskSequence.getAndIncrement();
+        private final long mQueuedTime = System.nanoTime();
+        // May be raised while waiting in a serial queue, see SerialExecutor#scheduleNextLocked
+        private int mPriority;
+
+        PrioritizedTask(final Runnable task, final int priority) {
+            mTask = task;
+            mTaskPriority = priority;
+            mPriority = priority;
+            sQueuedTaskCounts[priority].incrementAndGet();
+        }
+
+        @Override
+        public int compareTo(final PrioritizedTask other) {
+            if (mPriority != other.mPriority) {
+                return Integer.compare(mPriority, other.mPriority);
+            }
+            return Long.compare(mSequence, other.mSequence);
+        }
+
+        @Override
+        public void run() {
+            final long waitNanos = System.nanoTime() - mQueuedTime;
+            sQueuedTaskCounts[mTaskPriority].decrementAndGet();
+            sStartedTaskCounts[mTaskPriority].incrementAndGet();
+            sTotalWaitNanos[mTaskPriority].addAndGet(waitNanos);
+            final AtomicLong maxWaitNanos = sMaxWaitNanos[mTaskPriority];
+            long max = maxWaitNanos.get();
+            while (waitNanos > max && !maxWaitNanos.compareAndSet(max, waitNanos)) {
+                max = maxWaitNanos.get();
+            }
+
+            mTask.run();
+        }
+    }
+
+    /**
+     * Runs tasks one at a time in submission order on the shared dictionary pool. Only the
+     * queue's next task is handed to the pool, with the highest priority of any task waiting in
+     * the queue, so latency critical tasks behind a bulk task aren't held up by other queues.
+     */
+    public static final class SerialExecutor implements Executor {
+        private final ArrayDeque<PrioritizedTask> mTasks = new ArrayDeque<>();
+        private boolean mActive;
+
+        private SerialExecutor() {
+        }
+
+        @Override
+        public void execute(final Runnable task) {
+            execute(task, PRIORITY_BULK);
+        }
+
+        public synchronized void execute(final Runnable task, final int priority) {
+            mTasks.add(new PrioritizedTask(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        scheduleNext();
+                    }
+                }
+            }, priority));
+            if (!mActive) {
+                scheduleNextLocked();
+            }
+        }
+
+        private synchronized void scheduleNext() {
+            scheduleNextLocked();
+        }
+
+        private void scheduleNextLocked() {
+            final PrioritizedTask next = mTasks.poll();
+            mActive = next != null;
+            if (next == null) {
+                return;
+            }
+            for (final PrioritizedTask task : mTasks) {
+                next.mPriority = Math.min(next.mPriority, task.mPriority);
+            }
+            final Executor executor = sExecutorServiceForTests != null
+                    ? sExecutorServiceForTests : sDictionaryPool;
+            executor.execute(next);
+        }
+    }
+
     public static void killTasks(final String name) {
         final ScheduledExecutorService executorService = getBackgroundExecutor(name);
         executorService.shutdownNow();
@@ -113,6 +297,9 @@ public class ExecutorUtils {
             case SPELLING:
                 sSpellingExecutorService = newExecutorService(SPELLING);
                 break;
+            case LOOKUP:
+                sLookupExecutorService = newExecutorService(LOOKUP);
+                break;
             default:
                 throw new IllegalArgumentException("Invalid executor: " + name);
         }
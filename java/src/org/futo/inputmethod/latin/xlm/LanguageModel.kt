@@ -1,6 +1,7 @@
 package org.futo.inputmethod.latin.xlm
 
 import android.content.Context
+import android.os.SystemClock
 import android.util.Log
 import androidx.lifecycle.LifecycleCoroutineScope
 import kotlinx.coroutines.DelicateCoroutinesApi
@@ -28,6 +29,27 @@ data class ComposeInfo(
     val inputMode: Int
 )
 
+data class ModelMemoryStats(
+    val name: String,
+    val locale: Locale,
+    val loadTimeMs: Long,
+
+    // Weights mapped read-only from the model file, shared between instances of the same file
+    val mappedBytes: Long,
+
+    // KV cache and other memory owned by the instance
+    val privateBytes: Long
+)
+
+/** Counters for reuse of the KV cache between prompts that share a prefix */
+data class PrefixCacheStats(
+    val hits: Long,
+    val misses: Long,
+    val reusedTokens: Long,
+    val snapshots: Int,
+    val cachedTokens: Int
+)
+
 class LanguageModel(
     val applicationContext: Context,
     val lifecycleScope: LifecycleCoroutineScope,
@@ -38,14 +60,30 @@ class LanguageModel(
         withContext(Dispatchers.Main) { JniUtils.loadNativeLibrary() }
 
         val modelPath = modelInfoLoader.path.absolutePath
+        val startTime = SystemClock.uptimeMillis()
         mNativeState = openNative(modelPath)
 
         // TODO: Not sure how to handle finetuned model being corrupt. Maybe have finetunedA.gguf and finetunedB.gguf and swap between them
         if (mNativeState == 0L) {
             throw ModelLoadingException("Failed to load models $modelPath")
         }
+
+        val stats = LongArray(2)
+        getMemoryStatsNative(mNativeState, stats)
+        memoryStats = ModelMemoryStats(
+            name = modelInfoLoader.name,
+            locale = locale,
+            loadTimeMs = SystemClock.uptimeMillis() - startTime,
+            mappedBytes = stats[0],
+            privateBytes = stats[1]
+        )
     }
 
+    /** Set once the model is loaded */
+    @Volatile
+    var memoryStats: ModelMemoryStats? = null
+        private set
+
 
     private fun getComposeInfo(composedData: ComposedData): ComposeInfo {
         var partialWord = composedData.mTypedWord
@@ -220,6 +258,7 @@ class LanguageModel(
 
             wordScoresOutput
         )
+        updatePrefixCacheStats()
 
         return@withContext suggestedWords.mSuggestedWordInfoList.mapIndexed { index, suggestedWordInfo ->
             Log.i("LanguageModel", "Suggestion [${suggestedWordInfo.word}] reweighted, from ${suggestedWordInfo.mScore} to ${wordScoresOutput[index]}")
@@ -250,7 +289,9 @@ class LanguageModel(
         context: String,
         composeInfo: ComposeInfo,
         autocorrectThreshold: Float,
-        bannedWords: Array<String>
+        bannedWords: Array<String>,
+        requestId: Int,
+        timeoutMs: Int
     ): ArrayList<SuggestedWordInfo> {
         val maxResults = 128
         val outProbabilities = FloatArray(maxResults)
@@ -265,12 +306,17 @@ class LanguageModel(
             composeInfo.yCoords,
             autocorrectThreshold,
             bannedWords,
+            requestId,
+            timeoutMs,
             outStrings,
             outProbabilities
         )
+        updatePrefixCacheStats()
+
         val suggestions = ArrayList<SuggestedWordInfo>()
         var kind = SuggestedWordInfo.KIND_PREDICTION
         val resultMode = outStrings[maxResults - 1]
+        lastResultWasPartial = resultMode == "partial"
         var canAutocorrect = resultMode == "autocorrect"
         for (i in 0 until maxResults) {
             if (outStrings[i] == null) continue
@@ -335,7 +381,9 @@ class LanguageModel(
         proximityInfoHandle: Long,
         autocorrectThreshold: Float,
         personalDictionary: List<String>,
-        bannedWords: Array<String>
+        bannedWords: Array<String>,
+        requestId: Int = Int.MAX_VALUE,
+        timeoutMs: Int = 0
     ): ArrayList<SuggestedWordInfo>? = withContext(LanguageModelScope) {
         if(!loadModelIfNeeded()) return@withContext null
         if(composedData.mIsBatchMode) return@withContext null
@@ -347,16 +395,51 @@ class LanguageModel(
 
         context = addPersonalDictionary(context, personalDictionary)
 
-        return@withContext getSuggestionsInternal(proximityInfoHandle, context, composeInfo, autocorrectThreshold, bannedWords)
+        return@withContext getSuggestionsInternal(proximityInfoHandle, context, composeInfo, autocorrectThreshold, bannedWords, requestId, timeoutMs)
+    }
+
+    /**
+     * Whether the last [getSuggestions] call was cut short by its timeout or by [cancelRequests],
+     * in which case it returned whatever the search had found by then
+     */
+    var lastResultWasPartial = false
+        private set
+
+    /**
+     * Makes any running or future [getSuggestions] call with a request id at or below
+     * [upToRequestId] stop at the next decode step. Can be called from any thread.
+     */
+    fun cancelRequests(upToRequestId: Int) = synchronized(nativeStateLock) {
+        if(mNativeState != 0L) cancelRequestsNative(mNativeState, upToRequestId)
+    }
+
+    private fun updatePrefixCacheStats() {
+        if(mNativeState == 0L) return
+
+        val stats = LongArray(5)
+        getPrefixCacheStatsNative(mNativeState, stats)
+        lastPrefixCacheStats = PrefixCacheStats(
+            hits = stats[0],
+            misses = stats[1],
+            reusedTokens = stats[2],
+            snapshots = stats[3].toInt(),
+            cachedTokens = stats[4].toInt()
+        )
     }
 
     suspend fun closeInternalLocked() = withContext(LanguageModelScope) {
-        if (mNativeState != 0L) {
-            closeNative(mNativeState)
-            mNativeState = 0
+        synchronized(nativeStateLock) {
+            if (mNativeState != 0L) {
+                closeNative(mNativeState)
+                mNativeState = 0
+                memoryStats = null
+            }
         }
     }
 
+    private val nativeStateLock = Any()
+
+    @Volatile
     var mNativeState: Long = 0
     private external fun openNative(sourceDir: String): Long
     private external fun closeNative(state: Long)
@@ -369,7 +452,9 @@ class LanguageModel(
         inComposeX: IntArray,
         inComposeY: IntArray,
         thresholdSetting: Float,
-        bannedWords: Array<String>,  // outputs
+        bannedWords: Array<String>,
+        requestId: Int,
+        timeoutMs: Int, // outputs
         outStrings: Array<String?>,
         outProbs: FloatArray
     )
@@ -383,4 +468,14 @@ class LanguageModel(
 
         outSuggestedScores: IntArray
     )
+
+    private external fun getMemoryStatsNative(state: Long, outStats: LongArray)
+    private external fun cancelRequestsNative(state: Long, upToRequestId: Int)
+    private external fun getPrefixCacheStatsNative(state: Long, outStats: LongArray)
+
+    companion object {
+        @Volatile
+        var lastPrefixCacheStats: PrefixCacheStats? = null
+            private set
+    }
 }
@@ -1,6 +1,7 @@
 package org.futo.inputmethod.latin.xlm;
 
 import android.content.Context
+import android.os.SystemClock
 import android.util.Log
 import android.widget.Toast
 import androidx.datastore.preferences.core.booleanPreferencesKey
@@ -9,11 +10,13 @@ import androidx.lifecycle.LifecycleCoroutineScope
 import kotlinx.coroutines.CancellationException
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.Job
 import kotlinx.coroutines.flow.MutableSharedFlow
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.withContext
 import org.futo.inputmethod.engine.general.OnGetSuggestedWordsCallbackWithInputStyle
 import org.futo.inputmethod.keyboard.Keyboard
+import org.futo.inputmethod.keyboard.KeyboardId
 import org.futo.inputmethod.keyboard.KeyboardSwitcher
 import org.futo.inputmethod.latin.BinaryDictionary
 import org.futo.inputmethod.latin.BuildConfig
@@ -24,13 +27,16 @@ import org.futo.inputmethod.latin.Suggest
 import org.futo.inputmethod.latin.SuggestedWords
 import org.futo.inputmethod.latin.SuggestedWords.SuggestedWordInfo
 import org.futo.inputmethod.latin.SuggestionBlacklist
+import org.futo.inputmethod.latin.WordComposer
 import org.futo.inputmethod.latin.common.ComposedData
 import org.futo.inputmethod.latin.inputlogic.InputLogic
 import org.futo.inputmethod.latin.settings.Settings
+import org.futo.inputmethod.latin.settings.SettingsValues
 import org.futo.inputmethod.latin.uix.SettingsKey
 import org.futo.inputmethod.latin.uix.USE_TRANSFORMER_FINETUNING
 import org.futo.inputmethod.latin.uix.getSetting
 import org.futo.inputmethod.latin.utils.SuggestionResults
+import java.util.concurrent.atomic.AtomicInteger
 import kotlin.math.ceil
 
 
@@ -49,6 +55,12 @@ val AllowTransformerOnNonQWERTYLayouts = SettingsKey(
     false
 )
 
+// Language model requests return whatever they have found this long after being made, which
+// leaves some time to merge the results before the suggestion update stops waiting for them
+private const val PredictionDeadlineMs = 320L
+
+private const val MaxCachedLayouts = 32
+
 internal fun SuggestedWordInfo.add(other: SuggestedWordInfo): SuggestedWordInfo {
     assert(mWord == other.mWord)
 
@@ -144,11 +156,12 @@ public class LanguageModelFacilitator(
         val composedData: ComposedData,
         val ngramContext: NgramContext,
         val inputStyle: Int,
-        val sequenceId: Int
+        val sequenceId: Int,
+        val createdAt: Long = SystemClock.uptimeMillis()
     )
     private val sharedFlow = MutableSharedFlow<PredictionInputValues>(replay = 0, extraBufferCapacity = 1)
 
-    private var currentSequenceId = 0
+    private val currentSequenceId = AtomicInteger(0)
     private val sequenceIdFinishedFlow = MutableSharedFlow<Pair<PredictionInputValues, SuggestedWords?>>(replay = 1, extraBufferCapacity = 1)
 
     @OptIn(ExperimentalCoroutinesApi::class)
@@ -157,15 +170,31 @@ public class LanguageModelFacilitator(
     private var numConsecutiveTimeouts = 0
     private var transformerDisabled = false
 
+    // Requests are cut short at their deadline and return partial results, so a timeout here
+    // only means the language model thread was busy with something else
     fun reportTimeout() {
         if(shouldPassThroughToLegacy()) return
 
-        if(BuildConfig.DEBUG) Log.d(TAG, "Failed to complete prediction within the time!")
         numConsecutiveTimeouts += 1
-        if(numConsecutiveTimeouts > 5) {
-            transformerDisabled = true
-            if(BuildConfig.DEBUG) Log.w(TAG, "Temporarily disabling transformer due to continuous timeouts")
+        if(BuildConfig.DEBUG) Log.d(TAG, "Failed to complete prediction within the time! ($numConsecutiveTimeouts in a row)")
+    }
+
+    /**
+     * Stops the language model from working on requests older than [values], unless the older
+     * request is a next-word precomputation that [values] is going to use the result of.
+     * Must be called before queueing [values] on [languageModelScope].
+     */
+    fun cancelStaleRequests(values: PredictionInputValues) {
+        val speculative = speculativeValues
+        val upToRequestId = if(speculative != null && values.composedData.mTypedWord.isEmpty()
+            && speculative.ngramContext.fullContext == values.ngramContext.fullContext
+            && speculative.ngramContext.extractPrevWordsContext() == values.ngramContext.extractPrevWordsContext()) {
+            speculative.sequenceId - 1
+        } else {
+            values.sequenceId - 1
         }
+
+        languageModel?.cancelRequests(upToRequestId)
     }
 
     private var skipLanguage: String? = null
@@ -175,15 +204,15 @@ public class LanguageModelFacilitator(
         val locale = dictionaryFacilitator.primaryLocale ?: return null
         if ((languageModel == null && locale.language != skipLanguage) || (languageModel != null && languageModel?.locale?.language != locale.language)) {
             skipLanguage = null
-            if(BuildConfig.DEBUG) Log.d(TAG, "Calling closeInternalLocked on model due to seeming locale change")
-            languageModel?.closeInternalLocked()
+            if(BuildConfig.DEBUG) Log.d(TAG, "Switching model due to seeming locale change")
+            languageModel?.let { WarmLanguageModels.keep(context, it) }
             languageModel = null
 
-            // TODO: Cache value so we're not hitting this repeatedly
-            val options = ModelPaths.getModelOptions(context)
+            val options = ModelPaths.getCachedModelOptions(context)
             val model = options[locale.language]
             if (model != null) {
-                languageModel = LanguageModel(context, lifecycleScope, model, locale)
+                languageModel = WarmLanguageModels.take(model, locale)
+                    ?: LanguageModel(context, lifecycleScope, model, locale)
             } else {
                 if(BuildConfig.DEBUG) Log.d(TAG, "no model for ${locale.language}")
                 skipLanguage = locale.language
@@ -199,6 +228,12 @@ public class LanguageModelFacilitator(
 
         val autocorrectThreshold = context.getSetting(AutocorrectThresholdSetting)
 
+        val timeoutMs = values.createdAt + PredictionDeadlineMs - SystemClock.uptimeMillis()
+        if(timeoutMs <= 0L) {
+            if(BuildConfig.DEBUG) Log.d(TAG, "Skipping request ${values.sequenceId}, it is past its deadline")
+            return null
+        }
+
         try {
             return languageModel?.getSuggestions(
                 values.composedData,
@@ -206,7 +241,9 @@ public class LanguageModelFacilitator(
                 proximityInfoHandle,
                 autocorrectThreshold,
                 userDictionary.getWords(listOf(locale)).map { it.word },
-                arrayOf()
+                arrayOf(),
+                values.sequenceId,
+                timeoutMs.toInt()
             )
         }catch (e: ModelLoadingException) {
             withContext(Dispatchers.Main) {
@@ -226,14 +263,84 @@ public class LanguageModelFacilitator(
         if(values.composedData.mTypedWord.length > BinaryDictionary.DICTIONARY_MAX_WORD_LENGTH-1)
             return null
 
+        getPrecomputedPrediction(values)?.let { return it }
+
         val lmSuggestions = runLanguageModel(values)
         return lmSuggestions
     }
 
+    private class PrecomputedPrediction(
+        val model: LanguageModel,
+        val prevWordsContext: String,
+        val fullContext: String,
+        val suggestions: ArrayList<SuggestedWordInfo>
+    ) {
+        fun matches(model: LanguageModel?, ngramContext: NgramContext): Boolean =
+            this.model == model
+                    && prevWordsContext == ngramContext.extractPrevWordsContext()
+                    && fullContext == ngramContext.fullContext
+    }
+
+    @Volatile
+    private var precomputedPrediction: PrecomputedPrediction? = null
+    private var precomputeJob: Job? = null
+
+    @Volatile
+    private var speculativeValues: PredictionInputValues? = null
+
+    private fun getPrecomputedPrediction(values: PredictionInputValues): ArrayList<SuggestedWordInfo>? {
+        if(values.composedData.mTypedWord.isNotEmpty()) return null
+
+        val precomputed = precomputedPrediction ?: return null
+        if(!precomputed.matches(languageModel, values.ngramContext)) {
+            precomputedPrediction = null
+            return null
+        }
+
+        if(BuildConfig.DEBUG) Log.d(TAG, "Using precomputed next-word predictions")
+        return ArrayList(precomputed.suggestions)
+    }
+
+    /**
+     * Called after a word is committed. Starts computing next-word predictions for the new context
+     * right away, rather than after the suggestion update delay and dictionary lookup, so that
+     * they are likely ready by the time the suggestion strip asks for them.
+     */
+    fun precomputeNextWordPredictions() {
+        if(!settings.current.mBigramPredictionEnabled) return
+        if(inputLogic.mWordComposer.isComposingWord) return
+
+        val values = makePredictionInputValues(SuggestedWords.INPUT_STYLE_TYPING) ?: return
+        if(precomputedPrediction?.matches(languageModel, values.ngramContext) == true) return
+
+        cancelStaleRequests(values)
+        speculativeValues = values
+
+        precomputeJob?.cancel()
+        precomputeJob = lifecycleScope.launch(languageModelScope) {
+            val suggestions = try {
+                runLanguageModel(values)
+            } finally {
+                if(speculativeValues === values) speculativeValues = null
+            } ?: return@launch
+
+            val model = languageModel ?: return@launch
+            if(model.lastResultWasPartial) return@launch
+
+            precomputedPrediction = PrecomputedPrediction(
+                model,
+                values.ngramContext.extractPrevWordsContext(),
+                values.ngramContext.fullContext,
+                suggestions
+            )
+        }
+    }
+
     fun processAndMergeSuggestions(
         values: PredictionInputValues,
         suggestedWordsDict: SuggestedWords,
-        lmSuggestions: ArrayList<SuggestedWordInfo>
+        lmSuggestions: ArrayList<SuggestedWordInfo>,
+        wordComposer: WordComposer = inputLogic.mWordComposer
     ): SuggestedWords? {
         var transformerWeight = context.getSetting(BinaryDictTransformerWeightSetting)
         if(dictionaryFacilitator.locales.size > 1) transformerWeight = 1.0f
@@ -369,7 +476,6 @@ public class LanguageModelFacilitator(
 
         val settingsValues = settings.current ?: return null
         val locale = dictionaryFacilitator.primaryLocale ?: return null
-        val wordComposer = inputLogic.mWordComposer ?: return null
 
         val suggestedWords = Suggest.obtainNonBatchedInputSuggestedWords(
             wordComposer,
@@ -403,8 +509,10 @@ public class LanguageModelFacilitator(
 
     public suspend fun destroyModel() {
         if(BuildConfig.DEBUG) Log.d(TAG, "destroyModel called")
+        precomputedPrediction = null
         languageModel?.closeInternalLocked()
         languageModel = null
+        WarmLanguageModels.clear()
     }
 
     public fun close() {
@@ -423,7 +531,6 @@ public class LanguageModelFacilitator(
                         destroyModel()
                     }else if(it == LanguageModelFacilitatorRequest.ClearTrainingLog) {
                         historyLog.clear()
-                        saveHistoryLog()
                     }
                 }
             }
@@ -450,6 +557,26 @@ public class LanguageModelFacilitator(
     // This method should return null if transformer is disabled by settings or locale
     var prevAcceptedLayout: Keyboard? = null
     var prevAcceptedLayoutResult = false
+
+    // Keyboards are rebuilt for every editor, but their letters only depend on the KeyboardId
+    private val layoutCompatibility = HashMap<KeyboardId, Boolean>()
+
+    private fun isLayoutCompatible(keyboard: Keyboard?, settingsValues: SettingsValues): Boolean {
+        if(keyboard == null) return false
+        if(keyboard.mId.mKeyboardLayoutSetName == "qwerty") return true
+
+        return layoutCompatibility.getOrPut(keyboard.mId) {
+            if(layoutCompatibility.size >= MaxCachedLayouts) layoutCompatibility.clear()
+
+            val letters = keyboard.sortedKeys.filter {
+                settingsValues.isWordCodePoint(it.code) && it.code != '\''.code
+            }.sortedBy {
+                it.x + 10000 * it.y
+            }.joinToString(separator = "") { it.label.lowercase() }
+
+            letters == "qwertyuiopasdfghjklzxcvbnm"
+        }
+    }
     fun makePredictionInputValues(inputStyle: Int): PredictionInputValues? {
         if(shouldPassThroughToLegacy()) return null
 
@@ -476,18 +603,10 @@ public class LanguageModelFacilitator(
                 && !context.getSetting(AllowTransformerOnNonQWERTYLayouts)
             ) {
                 // Check we are on a supported layout
-                if(prevAcceptedLayout != keyboardSwitcher.keyboard) {
-                    if(keyboardSwitcher.keyboard?.mId?.mKeyboardLayoutSetName == "qwerty") {
-                        prevAcceptedLayoutResult = true
-                    } else {
-                        val letters = keyboardSwitcher.keyboard?.sortedKeys?.filter {
-                            settingsValues.isWordCodePoint(it.code) && it.code != '\''.code
-                        }?.sortedBy {
-                            it.x + 10000 * it.y
-                        }?.joinToString(separator = "") { it.label.lowercase() } ?: ""
-
-                        prevAcceptedLayoutResult = letters == "qwertyuiopasdfghjklzxcvbnm"
-                    }
+                val keyboard = keyboardSwitcher.keyboard
+                if(prevAcceptedLayout != keyboard) {
+                    prevAcceptedLayoutResult = isLayoutCompatible(keyboard, settingsValues)
+                    prevAcceptedLayout = keyboard
                 }
 
                 if(prevAcceptedLayoutResult == false)
@@ -498,7 +617,7 @@ public class LanguageModelFacilitator(
                 wordComposer.composedDataSnapshot,
                 ngramContext,
                 inputStyle,
-                ++currentSequenceId
+                currentSequenceId.incrementAndGet()
             )
 
             return values
@@ -512,7 +631,7 @@ public class LanguageModelFacilitator(
         return null
     }
 
-    private val historyLog: MutableList<HistoryLogForTraining> = mutableListOf()
+    private val historyLog = TrainingDataLog(context)
 
     public fun addToHistory(
         word: String,
@@ -598,32 +717,29 @@ public class LanguageModelFacilitator(
         
         val keyToSearch = committedNgramCtx.trim() + " " + word.trim()
 
-        val logToRemove = historyLog.indexOfLast {
-            it.key.startsWith(keyToSearch) || it.key == keyToSearch
-        }
-
-        if(logToRemove == -1) {
-            //println("addToHistory: UNLEARN Couldn't find key $keyToSearch")
-        } else {
-            //println("addToHistory: Unlearning ${historyLog[logToRemove]}")
-            historyLog.removeAt(logToRemove)
-        }
+        historyLog.unlearn(keyToSearch)
     }
 
     public fun saveHistoryLog() {
-        if(!context.getSetting(USE_TRANSFORMER_FINETUNING)) historyLog.clear()
-        saveHistoryLogBackup(context, historyLog)
+        if(!context.getSetting(USE_TRANSFORMER_FINETUNING)) {
+            historyLog.clear()
+        } else {
+            historyLog.flush()
+        }
     }
 
     public fun loadHistoryLog() {
-        assert(historyLog.isEmpty())
-        loadHistoryLogBackup(context, historyLog)
+        assert(historyLog.size == 0)
+        historyLog.load()
     }
 
     public fun onStartInput() {
+        precomputedPrediction = null
         transformerDisabled = false
         numConsecutiveTimeouts = 0
     }
 
     public fun isTransformerDisabled(): Boolean = transformerDisabled
+
+    public fun getModelMemoryStats(): ModelMemoryStats? = languageModel?.memoryStats
 }
\ No newline at end of file
@@ -63,6 +63,18 @@ class ModelInfoLoader(
 object ModelPaths {
     val modelOptionsUpdated = MutableSharedFlow<Unit>(replay = 0)
 
+    private class CachedModelOptions(val setting: Set<String>, val options: Map<String, ModelInfoLoader>)
+
+    // Result of getModelOptions for the given value of MODEL_OPTION_KEY, valid until that value
+    // changes or the next invalidateModelOptions
+    @Volatile
+    private var cachedModelOptions: CachedModelOptions? = null
+
+    /** Drops the cached model options, for when model files may have changed on disk */
+    fun invalidateModelOptions() {
+        cachedModelOptions = null
+    }
+
     fun exportModel(context: Context, uri: Uri, file: File) {
         context.contentResolver.openOutputStream(uri)!!.use { outputStream ->
             file.inputStream().use { inputStream ->
@@ -166,6 +178,7 @@ object ModelPaths {
     }
 
     suspend fun signalReloadModels() {
+        invalidateModelOptions()
         modelOptionsUpdated.emit(Unit)
     }
 
@@ -213,6 +226,17 @@ object ModelPaths {
         return modelOptionsByLanguage
     }
 
+    /**
+     * Same as [getModelOptions], but only touches the filesystem the first time after the model
+     * options were changed, so it can be used on the input path
+     */
+    suspend fun getCachedModelOptions(context: Context): Map<String, ModelInfoLoader> {
+        val setting = context.getSetting(MODEL_OPTION_KEY)
+        cachedModelOptions?.let { if(it.setting == setting) return it.options }
+
+        return getModelOptions(context).also { cachedModelOptions = CachedModelOptions(setting, it) }
+    }
+
     fun getModelDirectory(context: Context): File {
         val modelDirectory = File(context.filesDir, "transformer-models")
 
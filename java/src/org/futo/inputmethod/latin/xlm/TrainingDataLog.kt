@@ -1,11 +1,14 @@
 package org.futo.inputmethod.latin.xlm
 
 import android.content.Context
+import android.util.Log
+import androidx.core.util.AtomicFile
 import kotlinx.serialization.Serializable
 import kotlinx.serialization.encodeToString
 import kotlinx.serialization.json.Json
 import org.futo.inputmethod.latin.uix.isDirectBootUnlocked
 import java.io.File
+import java.io.FileOutputStream
 
 @Serializable
 data class HistoryLogForTraining(
@@ -23,30 +26,253 @@ data class HistoryLogForTraining(
     val timeStamp: Long
 )
 
-fun saveHistoryLogBackup(context: Context, log: List<HistoryLogForTraining>) {
-    if(!context.isDirectBootUnlocked) return
+// One line of the log. Entries are numbered in the order they were added to the file, and a
+// removal refers to an entry by that number.
+@Serializable
+private data class TrainingLogRecord(
+    val add: HistoryLogForTraining? = null,
+    val remove: Int = -1
+)
 
-    val json = Json.encodeToString(log)
+private const val TAG = "TrainingDataLog"
 
-    val file = File(context.cacheDir, "historyLog.json")
-    file.writeText(json)
+private val Context.legacyHistoryLogFile get() = File(cacheDir, "historyLog.json")
+private val Context.historyLogFile get() = File(cacheDir, "historyLog.jsonl")
+
+private fun decodeRecord(line: String): TrainingLogRecord? = try {
+    Json.decodeFromString<TrainingLogRecord>(line)
+} catch(_: Exception) {
+    null
 }
 
-fun loadHistoryLogBackup(context: Context, to: MutableList<HistoryLogForTraining>) {
-    if(!context.isDirectBootUnlocked) return
+/**
+ * Calls [action] for each entry in the log file that was not removed, without holding the entire
+ * log in memory. A torn line at the end, from an interrupted append, ends the log.
+ * @return the number of entries in the file including removed ones, and whether the file ended
+ * cleanly
+ */
+internal fun forEachEntry(file: File, action: (Int, HistoryLogForTraining) -> Unit): Pair<Int, Boolean> {
+    if(!file.exists()) return 0 to true
+
+    // Removals only refer to earlier entries, collect them first so entries can be streamed
+    val removed = HashSet<Int>()
+    var intact = true
+    file.bufferedReader().useLines { lines ->
+        for(line in lines) {
+            if(line.isEmpty()) continue
+            val record = decodeRecord(line)
+            if(record == null) {
+                intact = false
+                break
+            }
+            if(record.remove != -1) removed.add(record.remove)
+        }
+    }
+
+    var index = 0
+    file.bufferedReader().useLines { lines ->
+        for(line in lines) {
+            if(line.isEmpty()) continue
+            val record = decodeRecord(line) ?: break
+            val entry = record.add ?: continue
 
+            if(!removed.contains(index)) action(index, entry)
+            index++
+        }
+    }
+
+    return index to intact
+}
+
+private fun writeLog(file: File, entries: Iterable<HistoryLogForTraining>) {
+    val atomicFile = AtomicFile(file)
+    val stream = atomicFile.startWrite()
     try {
-        val file = File(context.cacheDir, "historyLog.json")
-        if(file.exists()) {
-            val reader = file.bufferedReader()
-            val inputString = reader.use { it.readText() }
+        val writer = stream.bufferedWriter()
+        entries.forEach {
+            writer.write(Json.encodeToString(TrainingLogRecord(add = it)))
+            writer.write("\n")
+        }
+        writer.flush()
+        atomicFile.finishWrite(stream)
+    } catch(e: Exception) {
+        atomicFile.failWrite(stream)
+        throw e
+    }
+}
 
-            val data = Json.decodeFromString<List<HistoryLogForTraining>>(inputString)
+// Logs from older versions were a single JSON array
+private fun migrateLegacyLog(legacyFile: File, file: File) {
+    if(!legacyFile.exists()) return
 
-            to.clear()
-            to.addAll(data)
+    try {
+        val data = Json.decodeFromString<List<HistoryLogForTraining>>(legacyFile.readText())
+        writeLog(file, data)
+    } catch(e: Exception) {
+        e.printStackTrace()
+    }
+
+    legacyFile.delete()
+}
+
+/**
+ * Training examples collected while typing. They are stored in cacheDir as an append-only log of
+ * line-delimited JSON records, so saving only writes the records added since the last save.
+ * Unlearning appends a removal record, and the file is rewritten once removed entries make up
+ * most of it.
+ */
+class TrainingDataLog internal constructor(
+    private val context: Context,
+    private val file: File,
+    private val legacyFile: File
+) {
+    constructor(context: Context) : this(context, context.historyLogFile, context.legacyHistoryLogFile)
+
+    // By position in the log file, null once removed
+    private val entries = ArrayList<HistoryLogForTraining?>()
+    private val indicesByKey = HashMap<String, ArrayList<Int>>()
+    private var numRemoved = 0
+
+    private val pendingRecords = StringBuilder()
+
+    val size: Int
+        @Synchronized get() = entries.size - numRemoved
+
+    @Synchronized
+    fun load() {
+        if(!context.isDirectBootUnlocked) return
+
+        resetInMemory()
+
+        try {
+            migrateLegacyLog(legacyFile, file)
+
+            // Keep positions in sync with the file, including removed entries
+            val padTo = { count: Int ->
+                while(entries.size < count) {
+                    entries.add(null)
+                    numRemoved++
+                }
+            }
+            val (count, intact) = forEachEntry(file) { index, entry ->
+                padTo(index)
+                addInMemory(entry)
+            }
+            padTo(count)
+
+            // Anything appended after a torn line would never be read
+            if(!intact) compact()
+        } catch(e: Exception) {
+            e.printStackTrace()
+            resetInMemory()
         }
+    }
+
+    @Synchronized
+    fun add(entry: HistoryLogForTraining) {
+        addInMemory(entry)
+        appendRecord(TrainingLogRecord(add = entry))
+    }
+
+    /**
+     * Removes the last entry with the given key. If there is none, falls back to the last entry
+     * with a key starting with it.
+     */
+    @Synchronized
+    fun unlearn(key: String): Boolean {
+        val index = findLastIndex(key) ?: return false
+
+        entries[index] = null
+        numRemoved++
+        appendRecord(TrainingLogRecord(remove = index))
+        return true
+    }
+
+    /** Writes out everything added or removed since the last flush, with a single fsync */
+    @Synchronized
+    fun flush() {
+        if(!context.isDirectBootUnlocked) return
+        if(pendingRecords.isEmpty()) return
+
+        try {
+            if(numRemoved > MinRemovedForCompaction && numRemoved * 2 > entries.size) {
+                compact()
+            } else {
+                FileOutputStream(file, true).use { stream ->
+                    stream.write(pendingRecords.toString().toByteArray())
+                    stream.flush()
+                    stream.fd.sync()
+                }
+            }
+            pendingRecords.clear()
+        } catch(e: Exception) {
+            Log.e(TAG, "Failed to write training log", e)
+        }
+    }
+
+    @Synchronized
+    fun clear() {
+        resetInMemory()
+        if(!context.isDirectBootUnlocked) return
+
+        legacyFile.delete()
+        file.delete()
+    }
+
+    private fun resetInMemory() {
+        entries.clear()
+        indicesByKey.clear()
+        numRemoved = 0
+        pendingRecords.clear()
+    }
+
+    private fun addInMemory(entry: HistoryLogForTraining) {
+        indicesByKey.getOrPut(entry.key) { ArrayList(1) }.add(entries.size)
+        entries.add(entry)
+    }
+
+    private fun appendRecord(record: TrainingLogRecord) {
+        pendingRecords.append(Json.encodeToString(record)).append('\n')
+    }
+
+    private fun findLastIndex(key: String): Int? {
+        indicesByKey[key]?.let { indices ->
+            while(indices.isNotEmpty()) {
+                val index = indices.removeAt(indices.size - 1)
+                if(entries[index] != null) return index
+            }
+            indicesByKey.remove(key)
+        }
+
+        for(i in entries.indices.reversed()) {
+            if(entries[i]?.key?.startsWith(key) == true) return i
+        }
+
+        return null
+    }
+
+    // Rewrites the file without removed entries, which renumbers the remaining ones
+    private fun compact() {
+        val remaining = entries.filterNotNull()
+        writeLog(file, remaining)
+
+        resetInMemory()
+        remaining.forEach { addInMemory(it) }
+    }
+
+    companion object {
+        private const val MinRemovedForCompaction = 64
+    }
+}
+
+/** Streams the saved training log without loading all of it into memory at once */
+fun forEachHistoryLogEntry(context: Context, action: (HistoryLogForTraining) -> Unit) {
+    if(!context.isDirectBootUnlocked) return
+
+    try {
+        migrateLegacyLog(context.legacyHistoryLogFile, context.historyLogFile)
+        forEachEntry(context.historyLogFile) { _, entry -> action(entry) }
     } catch(e: Exception) {
         e.printStackTrace()
     }
-}
\ No newline at end of file
+}
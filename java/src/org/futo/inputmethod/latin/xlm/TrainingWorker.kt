@@ -41,8 +41,7 @@ class TrainingWorker(val context: Context, val parameters: WorkerParameters) : C
         val shouldTrain = context.getSetting(USE_TRANSFORMER_FINETUNING)
         if(!shouldTrain) {
             println("TrainingWorker is exiting as training is disabled")
-            saveHistoryLogBackup(applicationContext, listOf())
-            TrainingWorkerStatus.lmRequest.emit(LanguageModelFacilitatorRequest.ClearTrainingLog)
+            TrainingWorkerStatus.clearTrainingLog(applicationContext)
             return Result.success()
         }
 
@@ -59,65 +58,72 @@ class TrainingWorker(val context: Context, val parameters: WorkerParameters) : C
     }
 
     private fun getTrainingData(locales: Set<String>): String {
-        val data = mutableListOf<HistoryLogForTraining>()
-        loadHistoryLogBackup(applicationContext, data)
-
-        data.removeAll { !locales.contains(it.locale) }
+        val result = StringBuilder()
+        var count = 0
+        forEachHistoryLogEntry(applicationContext) { entry ->
+            if(!locales.contains(entry.locale)) return@forEachHistoryLogEntry
+
+            if(count > 0) result.append("\n")
+            result.append(formatTrainingExamples(entry).trim())
+            count++
+        }
 
-        if(data.size < 100) {
+        if(count < 100) {
             return ""
         }
 
-        return data.map { entry ->
-            if(entry.misspelledWord != null) {
-                if(entry.importance == 3) {
-                    listOf(
-                        (0 until 4).map {
-                            TrainingDataGenerator.concatWordMisspelling(entry.ngramContext, entry.committedWord, 64.0f)
-                        }.joinToString(separator = "\n"),
-                        (0 until 4).map {
-                            TrainingDataGenerator.concatWordMisspelling(entry.ngramContext, entry.committedWord, 16.0f)
-                        }.joinToString(separator = "\n"),
-                        (0 until 4).map {
-                            TrainingDataGenerator.concatWordMisspelling(entry.ngramContext, entry.committedWord, 4.0f)
-                        }.joinToString(separator = "\n"),
-                        (0 until 4).map {
-                            TrainingDataGenerator.concatWordMisspelling(entry.ngramContext, entry.committedWord, 1.0f)
-                        }.joinToString(separator = "\n"),
-                        (0 until 4).map {
-                            TrainingDataGenerator.concatWordMisspelling(entry.ngramContext, entry.committedWord, 0.8f)
-                        }.joinToString(separator = "\n"),
-                        /*
-                        (0 until 4).map {
-                            TrainingDataGenerator.concatWordMisspelling(entry.ngramContext, entry.committedWord, 0.6f)
-                        }.joinToString(separator = "\n"),
-                        */
-                    ).joinToString(separator = "\n")
-                } else if(entry.importance == 1) {
-                    listOf(
-                        TrainingDataGenerator.concatFormatWordMisspelling(entry.ngramContext, entry.misspelledWord, entry.committedWord),
-                        TrainingDataGenerator.concatFormatWordMisspelling(entry.ngramContext, entry.misspelledWord, entry.committedWord),
-                        TrainingDataGenerator.concatFormatWordMisspelling(entry.ngramContext, entry.misspelledWord, entry.committedWord),
-                        TrainingDataGenerator.concatFormatWordMisspelling(entry.ngramContext, entry.misspelledWord, entry.committedWord),
-                        TrainingDataGenerator.concatWordMisspelling(entry.ngramContext, entry.committedWord, 1.0f),
-                        TrainingDataGenerator.concatWordMisspelling(entry.ngramContext, entry.committedWord, 1.0f),
-                        TrainingDataGenerator.concatWordMisspelling(entry.ngramContext, entry.committedWord, 0.6f),
+        return result.toString()
+    }
+
+    private fun formatTrainingExamples(entry: HistoryLogForTraining): String {
+        return if(entry.misspelledWord != null) {
+            if(entry.importance == 3) {
+                listOf(
+                    (0 until 4).map {
+                        TrainingDataGenerator.concatWordMisspelling(entry.ngramContext, entry.committedWord, 64.0f)
+                    }.joinToString(separator = "\n"),
+                    (0 until 4).map {
+                        TrainingDataGenerator.concatWordMisspelling(entry.ngramContext, entry.committedWord, 16.0f)
+                    }.joinToString(separator = "\n"),
+                    (0 until 4).map {
+                        TrainingDataGenerator.concatWordMisspelling(entry.ngramContext, entry.committedWord, 4.0f)
+                    }.joinToString(separator = "\n"),
+                    (0 until 4).map {
+                        TrainingDataGenerator.concatWordMisspelling(entry.ngramContext, entry.committedWord, 1.0f)
+                    }.joinToString(separator = "\n"),
+                    (0 until 4).map {
+                        TrainingDataGenerator.concatWordMisspelling(entry.ngramContext, entry.committedWord, 0.8f)
+                    }.joinToString(separator = "\n"),
+                    /*
+                    (0 until 4).map {
                         TrainingDataGenerator.concatWordMisspelling(entry.ngramContext, entry.committedWord, 0.6f)
-                    ).joinToString(separator = "\n")
-                } else {
-                    listOf(
-                        TrainingDataGenerator.concatFormatWordMisspelling(entry.ngramContext, entry.misspelledWord, entry.committedWord),
-                        TrainingDataGenerator.concatWordMisspelling(entry.ngramContext, entry.committedWord, 1.0f),
-                    ).joinToString(separator = "\n")
-                }
+                    }.joinToString(separator = "\n"),
+                    */
+                ).joinToString(separator = "\n")
+            } else if(entry.importance == 1) {
+                listOf(
+                    TrainingDataGenerator.concatFormatWordMisspelling(entry.ngramContext, entry.misspelledWord, entry.committedWord),
+                    TrainingDataGenerator.concatFormatWordMisspelling(entry.ngramContext, entry.misspelledWord, entry.committedWord),
+                    TrainingDataGenerator.concatFormatWordMisspelling(entry.ngramContext, entry.misspelledWord, entry.committedWord),
+                    TrainingDataGenerator.concatFormatWordMisspelling(entry.ngramContext, entry.misspelledWord, entry.committedWord),
+                    TrainingDataGenerator.concatWordMisspelling(entry.ngramContext, entry.committedWord, 1.0f),
+                    TrainingDataGenerator.concatWordMisspelling(entry.ngramContext, entry.committedWord, 1.0f),
+                    TrainingDataGenerator.concatWordMisspelling(entry.ngramContext, entry.committedWord, 0.6f),
+                    TrainingDataGenerator.concatWordMisspelling(entry.ngramContext, entry.committedWord, 0.6f)
+                ).joinToString(separator = "\n")
             } else {
                 listOf(
-                    entry.ngramContext.trim() + " " + entry.committedWord,
-                    TrainingDataGenerator.concatWordMisspelling(entry.ngramContext, entry.committedWord, 4.0f),
-                    TrainingDataGenerator.concatWordMisspelling(entry.ngramContext, entry.committedWord, 1.0f)
+                    TrainingDataGenerator.concatFormatWordMisspelling(entry.ngramContext, entry.misspelledWord, entry.committedWord),
+                    TrainingDataGenerator.concatWordMisspelling(entry.ngramContext, entry.committedWord, 1.0f),
                 ).joinToString(separator = "\n")
             }
-        }.map{ it.trim() }.joinToString(separator = "\n")
+        } else {
+            listOf(
+                entry.ngramContext.trim() + " " + entry.committedWord,
+                TrainingDataGenerator.concatWordMisspelling(entry.ngramContext, entry.committedWord, 4.0f),
+                TrainingDataGenerator.concatWordMisspelling(entry.ngramContext, entry.committedWord, 1.0f)
+            ).joinToString(separator = "\n")
+        }
     }
 
     private suspend fun train(customModel: String?, customTrainingData: String?): TrainingStateWithModel {
@@ -196,10 +202,7 @@ class TrainingWorker(val context: Context, val parameters: WorkerParameters) : C
             println("Finished training")
         }
 
-        // In case there's no one to receive ClearTrainingLog, save an empty log
-        saveHistoryLogBackup(applicationContext, listOf())
-
-        TrainingWorkerStatus.lmRequest.emit(LanguageModelFacilitatorRequest.ClearTrainingLog)
+        TrainingWorkerStatus.clearTrainingLog(applicationContext)
 
         val fallback = File(
             modelFile.absolutePath + ".bak"
@@ -333,6 +336,18 @@ object TrainingWorkerStatus {
 
     val loss = MutableSharedFlow<Float>(replay = 4)
     val progress = MutableSharedFlow<Float>(replay = 4)
+
+    /**
+     * Clears the training log through the keyboard's [TrainingDataLog], so that its positions stay
+     * in sync with the file, or directly if the keyboard isn't running to receive the request
+     */
+    suspend fun clearTrainingLog(context: Context) {
+        if(lmRequest.subscriptionCount.value > 0) {
+            lmRequest.emit(LanguageModelFacilitatorRequest.ClearTrainingLog)
+        } else {
+            TrainingDataLog(context).clear()
+        }
+    }
 }
 
 public fun scheduleTrainingWorkerBackground(context: Context) { }
@@ -0,0 +1,108 @@
+package org.futo.inputmethod.latin.xlm
+
+import android.content.Context
+import android.util.Log
+import androidx.datastore.preferences.core.intPreferencesKey
+import kotlinx.coroutines.withContext
+import org.futo.inputmethod.compat.ActivityManagerCompatUtils
+import org.futo.inputmethod.latin.BuildConfig
+import org.futo.inputmethod.latin.uix.SettingsKey
+import org.futo.inputmethod.latin.uix.getSetting
+import java.util.Locale
+
+/** Megabytes of loaded but unused language models to keep around, or -1 to decide by device */
+val WarmModelBudgetMbSetting = SettingsKey(
+    intPreferencesKey("lm_warm_model_budget_mb"),
+    -1
+)
+
+private const val DefaultWarmModelBudgetMb = 192
+private const val MaxWarmModels = 3
+
+/**
+ * Language models that were recently in use, kept loaded so that switching back to their language
+ * doesn't load the model again. Model weights are memory-mapped, so several models only compete
+ * for the page cache, but each one also owns a KV cache, which is what the budget mostly limits.
+ *
+ * All access happens on [LanguageModelScope].
+ */
+object WarmLanguageModels {
+    private const val TAG = "WarmLanguageModels"
+
+    // Least recently used first
+    private val models = mutableListOf<LanguageModel>()
+
+    /** Stats of the models that are loaded but not in use, for debugging */
+    @Volatile
+    var warmModelStats: List<ModelMemoryStats> = emptyList()
+        private set
+
+    private fun key(model: LanguageModel) = model.modelInfoLoader.path.absolutePath to model.locale
+
+    private fun updateStats() {
+        warmModelStats = models.mapNotNull { it.memoryStats }
+    }
+
+    private fun getBudgetBytes(context: Context): Long {
+        val budgetMb = context.getSetting(WarmModelBudgetMbSetting).let {
+            when {
+                it >= 0 -> it
+                ActivityManagerCompatUtils.isLowRamDevice(context) -> 0
+                else -> DefaultWarmModelBudgetMb
+            }
+        }
+
+        return budgetMb.toLong() * 1024L * 1024L
+    }
+
+    /** Returns a kept model for [loader] and [locale], which is no longer considered warm */
+    suspend fun take(loader: ModelInfoLoader, locale: Locale): LanguageModel? = withContext(LanguageModelScope) {
+        val index = models.indexOfFirst {
+            key(it) == (loader.path.absolutePath to locale)
+        }
+        if(index == -1) return@withContext null
+
+        models.removeAt(index).also {
+            updateStats()
+            if(BuildConfig.DEBUG) Log.d(TAG, "Reusing warm model ${loader.name} for $locale")
+        }
+    }
+
+    /** Keeps [model] loaded for later use, or closes it if it doesn't fit in the budget */
+    suspend fun keep(context: Context, model: LanguageModel) = withContext(LanguageModelScope) {
+        val stats = model.memoryStats
+        if(stats == null) {
+            model.closeInternalLocked()
+            return@withContext
+        }
+
+        models.filter { key(it) == key(model) && it !== model }.forEach {
+            models.remove(it)
+            it.closeInternalLocked()
+        }
+        models.remove(model)
+        models.add(model)
+
+        val budget = getBudgetBytes(context)
+        while(models.isNotEmpty() && (models.size > MaxWarmModels || usedBytes() > budget)) {
+            val evicted = models.removeAt(0)
+            if(BuildConfig.DEBUG) Log.d(TAG, "Closing warm model ${evicted.modelInfoLoader.name} for ${evicted.locale}")
+            evicted.closeInternalLocked()
+        }
+
+        updateStats()
+    }
+
+    /** Closes every kept model, e.g. because model files or options changed */
+    suspend fun clear() = withContext(LanguageModelScope) {
+        models.forEach { it.closeInternalLocked() }
+        models.clear()
+        updateStats()
+    }
+
+    // Each distinct file is mapped once no matter how many models use it
+    private fun usedBytes(): Long =
+        models.sumOf { it.memoryStats?.privateBytes ?: 0L } +
+                models.distinctBy { it.modelInfoLoader.path.absolutePath }
+                    .sumOf { it.memoryStats?.mappedBytes ?: 0L }
+}
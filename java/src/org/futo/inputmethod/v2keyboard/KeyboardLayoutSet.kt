@@ -282,8 +282,25 @@ Layout: $layoutName
     private val singularRowHeight: Double
         get() = params.computedSize.singleRowHeight.toDouble()
 
+    // Built keyboards, so that switching between shift states, symbols and numbers doesn't rebuild
+    // the layout and its native ProximityInfo each time. Sizing params are fixed for the lifetime
+    // of a layout set, a size change loads a new one.
+    private val keyboardCache = HashMap<KeyboardLayoutElement, Keyboard>()
+    private var keyboardCacheGeneration = cacheGeneration
+
+    @Synchronized
     fun getKeyboard(element: KeyboardLayoutElement): Keyboard {
+        if(keyboardCacheGeneration != cacheGeneration) {
+            keyboardCache.clear()
+            keyboardCacheGeneration = cacheGeneration
+        }
+
+        return keyboardCache[element] ?: buildKeyboard(element)?.also {
+            keyboardCache[element] = it
+        } ?: buildErrorKeyboard(element)
+    }
 
+    private fun createKeyboardParams(element: KeyboardLayoutElement): Pair<KeyboardParams, LayoutParams> {
         val multilingualTypingLocales = forcedMultilingualTypingLanguages ?: params.multilingualTypingLocales
 
         val keyboardId = KeyboardId(
@@ -309,8 +326,6 @@ Layout: $layoutName
             element
         )
 
-        val layout = getKeyboardLayoutForElement(element)
-
         val keyboardParams = KeyboardParams().apply {
             mId = keyboardId
             mTextsSet.setLocale(keyboardId.locale, context)
@@ -327,11 +342,19 @@ Layout: $layoutName
             element = element
         )
 
+        return keyboardParams to layoutParams
+    }
+
+    // Returns null if the layout could not be built, failures are not cached so they are retried
+    private fun buildKeyboard(element: KeyboardLayoutElement): Keyboard? {
+        val layout = getKeyboardLayoutForElement(element)
+        val (keyboardParams, layoutParams) = createKeyboardParams(element)
+
         try {
             return layout.build(context, keyboardParams, layoutParams)
         } catch(e: Exception) {
             Log.e("KeyboardLayoutSet", "Failed to load element $element for keyboard layout set $layoutName. Message: ${e.message}")
-            Log.e("KeyboardLayoutSet", "LayoutSet params: $params, keyboardId: $keyboardId")
+            Log.e("KeyboardLayoutSet", "LayoutSet params: $params, keyboardId: ${keyboardParams.mId}")
             e.printStackTrace()
 
             BugViewerState.pushBug(BugInfo(
@@ -348,20 +371,28 @@ Stack trace: ${e.stackTrace.map { it.toString() }}
 """
             ))
 
-            return errorLayout.build(context, keyboardParams, layoutParams)
+            return null
         }
     }
 
+    private fun buildErrorKeyboard(element: KeyboardLayoutElement): Keyboard {
+        val (keyboardParams, layoutParams) = createKeyboardParams(element)
+        return errorLayout.build(context, keyboardParams, layoutParams)
+    }
+
     companion object {
+        // Bumped to invalidate the built keyboards of every layout set
+        @Volatile
+        private var cacheGeneration = 0
 
         @JvmStatic
         fun onSystemLocaleChanged() {
-
+            cacheGeneration++
         }
 
         @JvmStatic
         fun onKeyboardThemeChanged(context: Context) {
-            // This is where we would clear all caches if we had any
+            cacheGeneration++
         }
     }
 }
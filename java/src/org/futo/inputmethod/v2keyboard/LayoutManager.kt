@@ -6,9 +6,11 @@ import android.util.Log
 import com.charleskorn.kaml.PolymorphismStyle
 import com.charleskorn.kaml.Yaml
 import com.charleskorn.kaml.YamlConfiguration
+import kotlinx.serialization.KSerializer
 import kotlinx.serialization.Serializable
 import kotlinx.serialization.builtins.MapSerializer
 import kotlinx.serialization.builtins.serializer
+import kotlinx.serialization.json.Json
 import kotlinx.serialization.modules.SerializersModule
 import kotlinx.serialization.modules.polymorphic
 import kotlinx.serialization.modules.subclass
@@ -17,6 +19,7 @@ import org.futo.inputmethod.latin.uix.actions.BugInfo
 import org.futo.inputmethod.latin.uix.actions.BugViewerState
 import org.futo.inputmethod.latin.uix.settings.pages.CustomLayout
 import org.futo.inputmethod.latin.uix.settings.pages.getCustomLayout
+import java.io.IOException
 import java.util.Locale
 
 @Serializable
@@ -24,12 +27,32 @@ data class Mappings(
     val languages: Map<String, List<String>>
 )
 
+// Generated at build time by the generateLayoutIndex task, one layout asset path per line
+private const val LayoutIndexPath = "layouts-index.txt"
+
+// Also generated by the generateLayoutIndex task, which converts every YAML file under layouts/
+// to JSON that decodes much faster than the YAML. Custom layouts are still parsed as YAML.
+private const val ParsedLayoutsDir = "layouts-parsed"
+
 object LayoutManager {
     private var layoutsById: Map<String, LazyKeyboard>? = null
     private var localeToLayoutsMappings: Map<Locale, List<String>>? = null
-    private var localeNames: Map<Locale, Map<Locale, String>>? = null
     private var initialized = false
 
+    private lateinit var appContext: Context
+
+    // Only needed for a few languages, so it's not parsed until a name is first looked up
+    private val localeNames: Map<Locale, Map<Locale, String>>? by lazy {
+        try {
+            parseNames(appContext, "layouts/names.yaml").mapKeys {
+                localeFromString(it.key)
+            }.mapValues { it.value.mapKeys { localeFromString(it.key) }}
+        } catch(e: Exception) {
+            e.printStackTrace()
+            null
+        }
+    }
+
     private fun listFilesRecursively(assetManager: AssetManager, path: String): List<String> {
         val files = assetManager.list(path)
         return if(files.isNullOrEmpty()) {
@@ -45,22 +68,28 @@ object LayoutManager {
         }
     }
 
+    private fun readLayoutIndex(assetManager: AssetManager): List<String>? = try {
+        assetManager.open(LayoutIndexPath).bufferedReader().use { reader ->
+            reader.readLines().filter { it.isNotBlank() }
+        }
+    } catch(_: IOException) {
+        null
+    }
+
     fun init(context: Context) {
         if(initialized) return
 
         initialized = true
+        appContext = context.applicationContext ?: context
 
         localeToLayoutsMappings = parseMappings(context, "layouts/mapping.yaml").languages.mapKeys {
             localeFromString(it.key)
         }
 
-        localeNames = parseNames(context, "layouts/names.yaml").mapKeys {
-            localeFromString(it.key)
-        }.mapValues { it.value.mapKeys { localeFromString(it.key) }}
-
         val assetManager = context.assets
 
-        val layoutPaths = getAllLayoutPaths(assetManager)
+        // Listing assets recursively takes one call per directory, only do that if there's no index
+        val layoutPaths = readLayoutIndex(assetManager) ?: getAllLayoutPaths(assetManager)
 
         layoutsById = layoutPaths.filter { it != "layouts/names.yaml" }.associate { path ->
             val keyboard = LazyKeyboard(path)
@@ -97,14 +126,12 @@ object LayoutManager {
 
     fun getAllLayoutNames(context: Context): List<String> {
         ensureInitialized()
-        return getAllLayoutPaths(context.assets).map {
-            it.split("/").last().split(".yaml").first()
-        }.filter { it != "names" }
+        return layoutsById!!.keys.toList()
     }
 
     private val unexceptionalLocales = mutableSetOf<Locale>()
     fun getExceptionalNameForLocale(locale: Locale, inLocale: Locale): String? {
-        if(unexceptionalLocales.contains(locale)) return null
+        if(!initialized || unexceptionalLocales.contains(locale)) return null
         val names = localeNames ?: return null
 
         val entry = names[locale] ?: run {
@@ -139,43 +166,71 @@ object LayoutManager {
 }
 
 private fun parseMappings(context: Context, mappingsPath: String): Mappings {
-    return context.assets.open(mappingsPath).use { inputStream ->
-        val yamlString = inputStream.bufferedReader().use { it.readText() }
-
-        yaml.decodeFromString(Mappings.serializer(), yamlString)
-    }
+    return decodeLayoutAsset(context, mappingsPath, Mappings.serializer())
 }
 
 private fun parseNames(context: Context, namesPath: String): Map<String, Map<String, String>> {
     val namesSerializer = MapSerializer(String.serializer(), MapSerializer(String.serializer(), String.serializer()))
-    return context.assets.open(namesPath).use { inputStream ->
-        val yamlString = inputStream.bufferedReader().use { it.readText() }
+    return decodeLayoutAsset(context, namesPath, namesSerializer)
+}
 
-        yaml.decodeFromString(namesSerializer, yamlString)
+private val layoutSerializersModule = SerializersModule {
+    polymorphic(AbstractKey::class) {
+        // Classes that extend TemplatedKey, since Kotlin serializers
+        // don't pick them up automatically.
+        subclass(ShiftKey::class)
+        subclass(DeleteKey::class)
+        subclass(SymbolsKey::class)
+        subclass(AlphabetKey::class)
+        subclass(NumberKey::class)
+        subclass(SpaceKey::class)
+        subclass(AltLayoutKey::class)
     }
 }
 
 private val yaml = Yaml(
-    SerializersModule {
-        polymorphic(AbstractKey::class) {
-            // Classes that extend TemplatedKey, since Kotlin serializers
-            // don't pick them up automatically.
-            subclass(ShiftKey::class)
-            subclass(DeleteKey::class)
-            subclass(SymbolsKey::class)
-            subclass(AlphabetKey::class)
-            subclass(NumberKey::class)
-            subclass(SpaceKey::class)
-            subclass(AltLayoutKey::class)
-
-        }
-    },
+    layoutSerializersModule,
     YamlConfiguration(
         polymorphismStyle = PolymorphismStyle.Property,
         allowAnchorsAndAliases = true
     )
 )
 
+// The converted layouts keep every scalar as a string, like YAML does, so booleans need lenient
+// parsing. The class discriminator is "type" for both formats.
+private val json = Json {
+    serializersModule = layoutSerializersModule
+    isLenient = true
+}
+
+/**
+ * Decodes the YAML asset at [path] from its converted JSON if there is one. If there isn't, or
+ * it fails to decode, the YAML itself is parsed.
+ */
+private fun <T> decodeLayoutAsset(context: Context, path: String, serializer: KSerializer<T>): T {
+    val jsonString = try {
+        context.assets.open("$ParsedLayoutsDir/$path.json").use { inputStream ->
+            inputStream.bufferedReader().use { it.readText() }
+        }
+    } catch(_: IOException) {
+        null
+    }
+
+    if(jsonString != null) {
+        try {
+            return json.decodeFromString(serializer, jsonString)
+        } catch(e: Exception) {
+            Log.w("KeyboardParser", "Failed to decode converted $path, parsing it as YAML", e)
+        }
+    }
+
+    return context.assets.open(path).use { inputStream ->
+        val yamlString = inputStream.bufferedReader().use { it.readText() }
+
+        yaml.decodeFromString(serializer, yamlString)
+    }
+}
+
 fun parseKeyboardYamlString(yamlString: String): Keyboard {
     return yaml.decodeFromString(Keyboard.serializer(), yamlString)
 }
@@ -211,14 +266,12 @@ internal class LazyKeyboard(
 }
 
 internal fun parseKeyboardYaml(context: Context, layoutPath: String): Keyboard {
-    return context.assets.open(layoutPath).use { inputStream ->
-        val yamlString = inputStream.bufferedReader().use { it.readText() }
-
-        try {
-            parseKeyboardYamlString(yamlString)
-        } catch(e: Throwable) {
-            Log.e("KeyboardParser", "Failed to parse $layoutPath")
-            throw Exception("Error while parsing layout [$layoutPath]", e)
-        }
+    return try {
+        decodeLayoutAsset(context, layoutPath, Keyboard.serializer())
+    } catch(e: IOException) {
+        throw e
+    } catch(e: Throwable) {
+        Log.e("KeyboardParser", "Failed to parse $layoutPath")
+        throw Exception("Error while parsing layout [$layoutPath]", e)
     }
 }
\ No newline at end of file
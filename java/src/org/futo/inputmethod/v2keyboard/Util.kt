@@ -15,6 +15,10 @@ import kotlinx.serialization.descriptors.SerialKind
 import kotlinx.serialization.descriptors.buildSerialDescriptor
 import kotlinx.serialization.encoding.Decoder
 import kotlinx.serialization.encoding.Encoder
+import kotlinx.serialization.json.JsonArray
+import kotlinx.serialization.json.JsonDecoder
+import kotlinx.serialization.json.JsonObject
+import kotlinx.serialization.json.JsonPrimitive
 
 
 open class ClassOrScalarsSerializer<T>(
@@ -29,6 +33,18 @@ open class ClassOrScalarsSerializer<T>(
         )
 
     override fun deserialize(decoder: Decoder): T {
+        // Layouts that were converted to JSON at build time, see LayoutManager
+        if(decoder is JsonDecoder) {
+            return when(val element = decoder.decodeJsonElement()) {
+                is JsonPrimitive -> stringFactory(listOf(element.content))
+                is JsonArray ->
+                    stringFactory(element.map {
+                        decoder.json.decodeFromJsonElement(String.serializer(), it)
+                    })
+                is JsonObject -> decoder.json.decodeFromJsonElement(serializer, element)
+            }
+        }
+
         val valueDecoder = decoder.beginStructure(descriptor)
         return when(val element = (valueDecoder as YamlInput).node) {
             is YamlScalar -> stringFactory(listOf(element.content))
@@ -47,13 +63,18 @@ open class ClassOrScalarsSerializer<T>(
     }
 }
 
+/** [editor] gets no path when decoding JSON, which doesn't keep track of it */
 open class PathDependentModifier<T>(
     private val baseSerializer: KSerializer<T>,
-    private val editor: (YamlPath, T) -> T,
+    private val editor: (YamlPath?, T) -> T,
 ) : KSerializer<T> {
     override val descriptor: SerialDescriptor = baseSerializer.descriptor
 
     override fun deserialize(decoder: Decoder): T {
+        if(decoder is JsonDecoder) {
+            return editor(null, decoder.json.decodeFromJsonElement(baseSerializer, decoder.decodeJsonElement()))
+        }
+
         val valueDecoder = decoder.beginStructure(descriptor)
         val element = (valueDecoder as YamlInput).node
 
@@ -80,6 +101,18 @@ open class SpacedListSerializer<T>(
         )
 
     override fun deserialize(decoder: Decoder): List<T> {
+        if(decoder is JsonDecoder) {
+            val elements = when(val element = decoder.decodeJsonElement()) {
+                is JsonPrimitive -> splitter(element.content).map { JsonPrimitive(it) }
+                is JsonArray -> element
+                else -> throw SerializationException("Unexpected JSON element type: ${element::class.simpleName}")
+            }
+
+            return elements.map { element ->
+                decoder.json.decodeFromJsonElement(serializer, element)
+            }
+        }
+
         val valueDecoder = decoder.beginStructure(descriptor)
         val elements = when(val element = (valueDecoder as YamlInput).node) {
             is YamlScalar -> splitter(element.content).map { YamlScalar(it, element.path) }
@@ -2,7 +2,11 @@
 
 #include "org_futo_inputmethod_latin_xlm_LanguageModel.h"
 
+#include <atomic>
 #include <cstring> // for memset()
+#include <limits>
+#include <memory>
+#include <unordered_map>
 #include <vector>
 
 #include "jni.h"
@@ -27,9 +31,17 @@
 #define RETURNVAL_AUTOCORRECT "autocorrect"
 #define RETURNVAL_UNCERTAIN "uncertain"
 #define RETURNVAL_CLUELESS "clueless"
+#define RETURNVAL_PARTIAL "partial"
 
 #define NUM_RESULTS 3
 
+// Beam search uses sequence ids [0, NUM_RESULTS), prefix snapshots live above this
+#define KV_SNAPSHOT_SEQ_ID_BASE 64
+#define KV_SNAPSHOT_MAX_COUNT 8
+// Upper bound on KV cells (out of LLAMA_CONTEXT_SIZE) that snapshots may keep alive
+#define KV_SNAPSHOT_MAX_TOKENS 768
+#define KV_SNAPSHOT_MIN_TOKENS 4
+
 static std::string trim(const std::string &s) {
     auto start = s.begin();
     while (start != s.end() && std::isspace(*start)) {
@@ -176,8 +188,173 @@ bool isTokenMixRoughlyEqual(const TokenMix &a, const TokenMix &b) {
 }
 
 
+// Prefix tree of previously decoded prompts. Each cached prompt keeps its KV cells alive under a
+// dedicated sequence id (a snapshot), which costs no copying since cells are shared between
+// sequences. A new prompt that shares a prefix with any cached prompt can copy those cells back
+// into sequence 0 and only decode the remaining tokens, e.g. after moving the cursor back to the
+// end of the text or toggling back to an earlier glossary.
+struct KvPrefixCache {
+    struct Node {
+        Node *parent = nullptr;
+        llama_token token = 0;
+        std::unordered_map<llama_token, std::unique_ptr<Node>> children;
+
+        // Snapshot of the prompt ending exactly at this node, or -1
+        llama_seq_id snapshot = -1;
+
+        // Snapshots at or below this node. Nodes with none are pruned.
+        int snapshots_below = 0;
+    };
+
+    struct Snapshot {
+        Node *node;
+        size_t length;
+        uint64_t last_used;
+    };
+
+    Node root;
+    std::unordered_map<llama_seq_id, Snapshot> snapshots;
+    uint64_t clock = 0;
+    size_t cached_tokens = 0;
+
+    int64_t hits = 0;
+    int64_t misses = 0;
+    int64_t reused_tokens = 0;
+
+    // Returns a snapshot holding the longest cached prefix of prompt, and the prefix length
+    std::pair<llama_seq_id, size_t> Lookup(const token_sequence &prompt) {
+        Node *node = &root;
+        size_t depth = 0;
+        for(llama_token t : prompt) {
+            auto it = node->children.find(t);
+            if(it == node->children.end()) break;
+            node = it->second.get();
+            depth++;
+        }
+
+        if(depth == 0) return { -1, 0 };
+
+        // Every snapshot below this node holds the KV cells for positions [0, depth)
+        while(node->snapshot == -1) {
+            Node *next = nullptr;
+            for(auto &child : node->children) {
+                if(child.second->snapshots_below > 0) {
+                    next = child.second.get();
+                    break;
+                }
+            }
+            if(next == nullptr) return { -1, 0 };
+            node = next;
+        }
+
+        snapshots[node->snapshot].last_used = ++clock;
+        return { node->snapshot, depth };
+    }
+
+    // Retains the first prompt.size() positions of sequence 0, which must hold prompt
+    void Insert(llama_context *ctx, const token_sequence &prompt) {
+        if(prompt.size() < KV_SNAPSHOT_MIN_TOKENS || prompt.size() > KV_SNAPSHOT_MAX_TOKENS) return;
+
+        Node *node = &root;
+        for(llama_token t : prompt) {
+            auto it = node->children.find(t);
+            if(it == node->children.end()) {
+                node = nullptr;
+                break;
+            }
+            node = it->second.get();
+        }
+
+        if(node != nullptr && node->snapshot != -1) {
+            snapshots[node->snapshot].last_used = ++clock;
+            return;
+        }
+
+        while(!snapshots.empty() && (snapshots.size() >= KV_SNAPSHOT_MAX_COUNT
+                    || cached_tokens + prompt.size() > KV_SNAPSHOT_MAX_TOKENS)) {
+            EvictLeastRecentlyUsed(ctx);
+        }
+
+        llama_seq_id seq_id = KV_SNAPSHOT_SEQ_ID_BASE;
+        while(snapshots.find(seq_id) != snapshots.end()) seq_id++;
+
+        node = &root;
+        node->snapshots_below++;
+        for(llama_token t : prompt) {
+            auto &child = node->children[t];
+            if(!child) {
+                child = std::make_unique<Node>();
+                child->parent = node;
+                child->token = t;
+            }
+            node = child.get();
+            node->snapshots_below++;
+        }
+        node->snapshot = seq_id;
+
+        llama_kv_cache_seq_cp(ctx, 0, seq_id, 0, (llama_pos)prompt.size());
+        snapshots[seq_id] = { node, prompt.size(), ++clock };
+        cached_tokens += prompt.size();
+    }
+
+    void EvictLeastRecentlyUsed(llama_context *ctx) {
+        auto lru = snapshots.begin();
+        for(auto it = snapshots.begin(); it != snapshots.end(); it++) {
+            if(it->second.last_used < lru->second.last_used) lru = it;
+        }
+
+        llama_kv_cache_seq_rm(ctx, lru->first, -1, -1);
+
+        Node *node = lru->second.node;
+        node->snapshot = -1;
+        cached_tokens -= lru->second.length;
+        snapshots.erase(lru);
+
+        while(node != nullptr) {
+            node->snapshots_below--;
+            Node *parent = node->parent;
+            if(parent != nullptr && node->snapshots_below == 0) {
+                parent->children.erase(node->token);
+            }
+            node = parent;
+        }
+    }
+
+    void EvictAll(llama_context *ctx) {
+        while(!snapshots.empty()) EvictLeastRecentlyUsed(ctx);
+    }
+
+    // For when the KV cache was wiped by other means
+    void Clear() {
+        root.children.clear();
+        root.snapshots_below = 0;
+        snapshots.clear();
+        cached_tokens = 0;
+    }
+};
+
 struct LanguageModelState {
     std::unique_ptr<LanguageModel> model;
+    KvPrefixCache prefixCache;
+
+    // Requests with an id at or below this are abandoned between decode steps. Written from other
+    // threads, so that a newer request doesn't have to queue behind a stale one.
+    std::atomic<jint> cancel_up_to_request_id { -1 };
+
+    jint request_id = 0;
+    int64_t request_deadline_us = 0; // 0 means no deadline
+    bool request_aborted = false;
+
+    bool ShouldAbort() {
+        if(request_aborted) return true;
+
+        if(request_id <= cancel_up_to_request_id.load(std::memory_order_relaxed)
+            || (request_deadline_us != 0 && ggml_time_us() >= request_deadline_us)) {
+            request_aborted = true;
+        }
+
+        return request_aborted;
+    }
 
     struct {
         int SPACE = 0;
@@ -349,6 +526,28 @@ struct LanguageModelState {
 
         auto prompt_ff = transformer_context_fastforward(model->transformerContext, prompt, !mixes.empty());
 
+        // An earlier prompt may have more of this prompt's prefix cached than sequence 0 does
+        auto snapshot = prefixCache.Lookup(prompt);
+        size_t reusable = snapshot.second;
+        if(mixes.empty() && reusable >= prompt.size()) {
+            // The last token needs to be decoded again to get its logits
+            reusable = prompt.size() - 1;
+        }
+
+        if(snapshot.first != -1 && reusable > prompt_ff.second) {
+            llama_kv_cache_seq_rm(ctx, 0, -1, -1);
+            llama_kv_cache_seq_cp(ctx, snapshot.first, 0, 0, (llama_pos)reusable);
+            model->transformerContext.active_context.assign(prompt.begin(), prompt.begin() + (long)reusable);
+            past_mixes.clear();
+
+            prefixCache.hits++;
+            prefixCache.reused_tokens += (int64_t)(reusable - prompt_ff.second);
+
+            prompt_ff = transformer_context_fastforward(model->transformerContext, prompt, !mixes.empty());
+        } else if(prompt_ff.first.size() > 1) {
+            prefixCache.misses++;
+        }
+
         int n_batch = llamaAdapter->n_batch;
 
         int head = -1;
@@ -368,8 +567,17 @@ struct LanguageModelState {
 
                 llama_kv_cache_seq_rm(ctx, 0, (llama_pos)prompt_ff.second, -1);
 
+                // Nothing has been applied to active_context yet, so the next request will just
+                // decode these positions again
+                if (ShouldAbort()) {
+                    return {};
+                }
+
                 if (llama_decode(ctx, batch) != 0) {
                     AKLOGE("llama_decode() failed");
+
+                    // Snapshots may be what is taking up the space, free them for the next attempt
+                    prefixCache.EvictAll(ctx);
                     return {};
                 }
             }
@@ -378,6 +586,7 @@ struct LanguageModelState {
         }
 
         transformer_context_apply(model->transformerContext, prompt_ff);
+        prefixCache.Insert(ctx, prompt);
         TIME_END(PromptDecode)
 
         TIME_START(EmbedMixing)
@@ -411,7 +620,7 @@ struct LanguageModelState {
                     if (t.weight < EPS) continue;
                     if (t.token < 0 || t.token >= (int)n_vocab) continue;
 
-                    float *src = llamaAdapter->embeddings.data() +
+                    const float *src = llamaAdapter->embeddings_data +
                                  (t.token * n_embd);
                     float weight = t.weight;
 
@@ -466,6 +675,12 @@ struct LanguageModelState {
                 batch.n_seq_id[0] = 1;
                 batch.logits[0] = false;
 
+                if (ShouldAbort()) {
+                    // Only the first h mixes are in the cache
+                    past_mixes.resize(h);
+                    return {};
+                }
+
                 if (llama_decode(ctx, embd_batch) != 0) {
                     AKLOGE("llama_decode() with embeds failed");
                     return {};
@@ -589,6 +804,7 @@ struct LanguageModelState {
             AKLOGE("Detected bug!!!! Trying to mitigate. Let's just reset cache and exit");
             llama_kv_cache_seq_rm(ctx, -1, -1, -1);
             model->transformerContext.active_context = { };
+            prefixCache.Clear();
             return { };
         }
 
@@ -633,6 +849,7 @@ struct LanguageModelState {
             AKLOGE("Detected bug2!!!! Trying to mitigate. Let's just reset cache and exit");
             llama_kv_cache_seq_rm(ctx, -1, -1, -1);
             model->transformerContext.active_context = { };
+            prefixCache.Clear();
             return { };
         }
 
@@ -674,6 +891,15 @@ struct LanguageModelState {
             sequences = next_sequences;
             next_sequences.clear();
 
+            if(tok > 0 && !sequences.empty() && ShouldAbort()) {
+                // Keep the words that were finished. If there are none, the most likely unfinished
+                // beam is still better than nothing to show.
+                if(outputs.empty()) {
+                    outputs.emplace_back(sequences[0].first, std::move(sequences[0].second.tokens));
+                }
+                break;
+            }
+
             size_t remaining_count = n_results - outputs.size();
             batch.n_tokens = 0;
 
@@ -814,6 +1040,8 @@ struct LanguageModelState {
         next_context.insert(next_context.begin(), 1); // BOS
 
         auto decoding_result = DecodePromptAndMixes(next_context, { });
+        if(request_aborted) return { };
+
         auto results = Sample(decoding_result, NUM_RESULTS, WordCapitalizeMode::IgnoredCapitals, banned_sequences);
 
         std::vector<std::pair<float, std::string>> str_results;
@@ -850,6 +1078,8 @@ struct LanguageModelState {
         }
 
         auto decoding_result = DecodePromptAndMixes(next_context, mixes);
+        if(request_aborted) return { };
+
         auto results = Sample(decoding_result, NUM_RESULTS, capitals, banned_sequences);
 
         std::vector<std::pair<float, std::string>> str_results;
@@ -919,6 +1149,11 @@ namespace latinime {
         GGML_UNUSED(clazz);
         auto *state = reinterpret_cast<LanguageModelState *>(dict);
 
+        // Rescoring is not cancellable
+        state->request_id = std::numeric_limits<jint>::max();
+        state->request_deadline_us = 0;
+        state->request_aborted = false;
+
         std::string contextString = jstring2string(env, context);
 
         jsize inputSize = env->GetArrayLength(inScores);
@@ -997,6 +1232,8 @@ namespace latinime {
          jintArray inComposeY,
          jfloat autocorrectThreshold,
          jobjectArray bannedWordsArray,
+         jint requestId,
+         jint timeoutMs,
 
          // outputs
          jobjectArray outPredictions,
@@ -1007,6 +1244,10 @@ namespace latinime {
         auto *state = reinterpret_cast<LanguageModelState *>(dict);
         auto *pInfo = reinterpret_cast<ProximityInfo *>(proximityInfo);
 
+        state->request_id = requestId;
+        state->request_deadline_us = timeoutMs > 0 ? ggml_time_us() + (int64_t)timeoutMs * 1000L : 0;
+        state->request_aborted = false;
+
         size_t inputSize = env->GetArrayLength(inComposeX);
 
         std::string contextString;
@@ -1245,6 +1486,12 @@ namespace latinime {
             result_probability_mode = RETURNVAL_CLUELESS;
         }
 
+        // Never autocorrect to the result of an unfinished search
+        if(state->request_aborted) {
+            AKLOGI("Request %d was cut short, returning %d partial results", (int)requestId, (int)results.size());
+            result_probability_mode = RETURNVAL_PARTIAL;
+        }
+
         // Output
         size_t size = env->GetArrayLength(outPredictions);
 
@@ -1265,6 +1512,47 @@ namespace latinime {
         env->ReleaseFloatArrayElements(outProbabilities, probsArray, 0);
     }
 
+    static void xlm_LanguageModel_cancelRequests(JNIEnv *env, jclass clazz, jlong statePtr, jint upToRequestId) {
+        GGML_UNUSED(env);
+        GGML_UNUSED(clazz);
+
+        auto *state = reinterpret_cast<LanguageModelState *>(statePtr);
+        if(state == nullptr) return;
+
+        jint current = state->cancel_up_to_request_id.load();
+        while(upToRequestId > current && !state->cancel_up_to_request_id.compare_exchange_weak(current, upToRequestId)) { }
+    }
+
+    static void xlm_LanguageModel_getMemoryStats(JNIEnv *env, jclass clazz, jlong statePtr, jlongArray outStats) {
+        GGML_UNUSED(clazz);
+
+        auto *state = reinterpret_cast<LanguageModelState *>(statePtr);
+        if(state == nullptr) return;
+
+        jlong stats[2] = {
+                (jlong)state->model->adapter->getMappedSize(),
+                (jlong)state->model->adapter->getPrivateSize()
+        };
+        env->SetLongArrayRegion(outStats, 0, std::min((jsize)2, env->GetArrayLength(outStats)), stats);
+    }
+
+    static void xlm_LanguageModel_getPrefixCacheStats(JNIEnv *env, jclass clazz, jlong statePtr, jlongArray outStats) {
+        GGML_UNUSED(clazz);
+
+        auto *state = reinterpret_cast<LanguageModelState *>(statePtr);
+        if(state == nullptr) return;
+
+        const KvPrefixCache &cache = state->prefixCache;
+        jlong stats[5] = {
+                cache.hits,
+                cache.misses,
+                cache.reused_tokens,
+                (jlong)cache.snapshots.size(),
+                (jlong)cache.cached_tokens
+        };
+        env->SetLongArrayRegion(outStats, 0, std::min((jsize)5, env->GetArrayLength(outStats)), stats);
+    }
+
     static const JNINativeMethod sMethods[] = {
             {
                     const_cast<char *>("openNative"),
@@ -1278,13 +1566,28 @@ namespace latinime {
             },
             {
                     const_cast<char *>("getSuggestionsNative"),
-                    const_cast<char *>("(JJLjava/lang/String;Ljava/lang/String;I[I[IF[Ljava/lang/String;[Ljava/lang/String;[F)V"),
+                    const_cast<char *>("(JJLjava/lang/String;Ljava/lang/String;I[I[IF[Ljava/lang/String;II[Ljava/lang/String;[F)V"),
                     reinterpret_cast<void *>(xlm_LanguageModel_getSuggestions)
             },
             {
                     const_cast<char *>("rescoreSuggestionsNative"),
                     const_cast<char *>("(JLjava/lang/String;[Ljava/lang/String;[I[I)V"),
                     reinterpret_cast<void *>(xlm_LanguageModel_rescoreSuggestions)
+            },
+            {
+                    const_cast<char *>("cancelRequestsNative"),
+                    const_cast<char *>("(JI)V"),
+                    reinterpret_cast<void *>(xlm_LanguageModel_cancelRequests)
+            },
+            {
+                    const_cast<char *>("getMemoryStatsNative"),
+                    const_cast<char *>("(J[J)V"),
+                    reinterpret_cast<void *>(xlm_LanguageModel_getMemoryStats)
+            },
+            {
+                    const_cast<char *>("getPrefixCacheStatsNative"),
+                    const_cast<char *>("(J[J)V"),
+                    reinterpret_cast<void *>(xlm_LanguageModel_getPrefixCacheStats)
             }
     };
 
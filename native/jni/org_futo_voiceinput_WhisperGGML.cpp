@@ -235,6 +235,42 @@ static jstring WhisperGGML_infer(JNIEnv *env, jobject instance, jlong handle, jf
     return jstr;
 }
 
+// Detects the language of a short window of audio without transcribing it, so that the right
+// model can be chosen before the full audio is encoded. Returns an empty string on failure.
+static jstring WhisperGGML_detectLanguage(JNIEnv *env, jobject instance, jlong handle, jfloatArray samples_array, jobjectArray languages) {
+    auto *state = reinterpret_cast<WhisperModelState *>(handle);
+
+    std::vector<int> allowed_languages;
+    int num_languages = env->GetArrayLength(languages);
+    for (int i=0; i<num_languages; i++) {
+        jstring jstr = static_cast<jstring>(env->GetObjectArrayElement(languages, i));
+        std::string str = jstring2string(env, jstr);
+
+        allowed_languages.push_back(whisper_lang_id(str.c_str()));
+    }
+
+    size_t num_samples = env->GetArrayLength(samples_array);
+    jfloat *samples = env->GetFloatArrayElements(samples_array, nullptr);
+
+    long num_procs = sysconf(_SC_NPROCESSORS_ONLN);
+    if(num_procs < 2 || num_procs > 16) num_procs = 6; // Make sure the number is sane
+
+    int audio_ctx = std::max(160, std::min(1500, (int)ceil((double)num_samples / (double)(320.0)) + 32));
+
+    int lang_id = whisper_lang_auto_detect_pcm(state->context, samples, (int)num_samples, audio_ctx,
+                                               (int)num_procs, allowed_languages.data(),
+                                               allowed_languages.size());
+
+    env->ReleaseFloatArrayElements(samples_array, samples, JNI_ABORT);
+
+    if(lang_id < 0) {
+        AKLOGE("WhisperGGML language detection failed with code %d", lang_id);
+        return string2jstring(env, "");
+    }
+
+    return string2jstring(env, whisper_lang_str(lang_id));
+}
+
 static void WhisperGGML_close(JNIEnv *env, jclass clazz, jlong handle) {
     auto *state = reinterpret_cast<WhisperModelState *>(handle);
     if(!state) return;
@@ -249,6 +285,13 @@ static void WhisperGGML_cancel(JNIEnv *env, jclass clazz, jlong handle) {
     state->cancel_flag = 1;
 }
 
+static jlong WhisperGGML_getMemoryUsage(JNIEnv *env, jclass clazz, jlong handle) {
+    auto *state = reinterpret_cast<WhisperModelState *>(handle);
+    if(!state) return 0L;
+
+    return (jlong)whisper_get_memory_usage(state->context);
+}
+
 
 static const JNINativeMethod sMethods[] = {
         {
@@ -275,6 +318,16 @@ static const JNINativeMethod sMethods[] = {
                 const_cast<char *>("closeNative"),
                 const_cast<char *>("(J)V"),
                 reinterpret_cast<void *>(WhisperGGML_close)
+        },
+        {
+                const_cast<char *>("detectLanguageNative"),
+                const_cast<char *>("(J[F[Ljava/lang/String;)Ljava/lang/String;"),
+                reinterpret_cast<void *>(WhisperGGML_detectLanguage)
+        },
+        {
+                const_cast<char *>("getMemoryUsageNative"),
+                const_cast<char *>("(J)J"),
+                reinterpret_cast<void *>(WhisperGGML_getMemoryUsage)
         }
 };
 
@@ -63,6 +63,12 @@ LanguageModel *LlamaAdapter::createLanguageModel(const std::string &modelPath) {
 
     llama_model_params model_params = llama_model_default_params();
 
+    // Map the weights read-only instead of copying them to the heap. The pages belong to the page
+    // cache, so they are shared between instances of the same file, stay warm across reloads and
+    // can be reclaimed by the kernel under memory pressure.
+    model_params.use_mmap = true;
+    model_params.use_mlock = false;
+
     adapter->model = llama_load_model_from_file(modelPath.c_str(), model_params);
 
     if(adapter->model == nullptr) {
@@ -92,19 +98,20 @@ LanguageModel *LlamaAdapter::createLanguageModel(const std::string &modelPath) {
     adapter->batch = llama_batch_init(LLAMA_CONTEXT_SIZE, 0, 1);
 
     if(adapter->metadata.HasFeature(FEATURE_EMBED_MIXING)) {
-        adapter->embeddings.resize(llama_n_embd(adapter->model) * llama_n_vocab(adapter->model));
+        size_t n_embeddings = llama_n_embd(adapter->model) * llama_n_vocab(adapter->model);
 
         auto tensor = llama_get_model_tensor(adapter->model, "token_embd.weight");
         ASSERT(tensor);
 
         if (tensor->type != GGML_TYPE_F32) {
+            adapter->embeddings_dequantized.resize(n_embeddings);
             ggml_internal_get_type_traits(tensor->type).to_float(tensor->data,
-                                                                 adapter->embeddings.data(),
-                                                                 adapter->embeddings.size());
+                                                                 adapter->embeddings_dequantized.data(),
+                                                                 (int)n_embeddings);
+            adapter->embeddings_data = adapter->embeddings_dequantized.data();
         } else {
-            ASSERT((tensor->ne[0] * tensor->ne[1]) == adapter->embeddings.size());
-            memcpy(adapter->embeddings.data(), tensor->data,
-                   adapter->embeddings.size() * sizeof(float));
+            ASSERT((size_t)(tensor->ne[0] * tensor->ne[1]) == n_embeddings);
+            adapter->embeddings_data = (const float *)tensor->data;
         }
     }
 
@@ -113,13 +120,23 @@ LanguageModel *LlamaAdapter::createLanguageModel(const std::string &modelPath) {
         adapter->encoder_bias.resize(llama_n_embd(adapter->model));
 
         for(int i = 0; i < llama_n_embd(adapter->model); i++) {
-            adapter->encoder_weight[i*2]     = adapter->embeddings.data()[FEATURE_ENCODER_W_X_ID * llama_n_embd(adapter->model) + i];
-            adapter->encoder_weight[i*2 + 1] = adapter->embeddings.data()[FEATURE_ENCODER_W_Y_ID * llama_n_embd(adapter->model) + i];
-            adapter->encoder_bias[i]         = adapter->embeddings.data()[FEATURE_ENCODER_B_ID   * llama_n_embd(adapter->model) + i];
+            adapter->encoder_weight[i*2]     = adapter->embeddings_data[FEATURE_ENCODER_W_X_ID * llama_n_embd(adapter->model) + i];
+            adapter->encoder_weight[i*2 + 1] = adapter->embeddings_data[FEATURE_ENCODER_W_Y_ID * llama_n_embd(adapter->model) + i];
+            adapter->encoder_bias[i]         = adapter->embeddings_data[FEATURE_ENCODER_B_ID   * llama_n_embd(adapter->model) + i];
         }
     }
 
     return new LanguageModel(adapter);
 }
 
+size_t LlamaAdapter::getMappedSize() const {
+    return llama_model_size(model);
+}
+
+size_t LlamaAdapter::getPrivateSize() const {
+    return llama_get_state_size(context)
+        + embeddings_dequantized.size() * sizeof(float)
+        + (encoder_weight.size() + encoder_bias.size()) * sizeof(float);
+}
+
 LlamaAdapter::LlamaAdapter() = default;
@@ -40,7 +40,10 @@ public:
     llama_model *model{};
     llama_batch batch{};
 
-    std::vector<float> embeddings;
+    // Points into the mapped model file when the embeddings are stored as F32, otherwise into
+    // embeddings_dequantized
+    const float *embeddings_data = nullptr;
+    std::vector<float> embeddings_dequantized;
 
     std::vector<float> encoder_weight = {};
     std::vector<float> encoder_bias = {};
@@ -53,6 +56,13 @@ public:
         return metadata.HasFeature(feature);
     }
 
+    // Model weights, which are mapped read-only from the model file and shared with any other
+    // instance of the same file
+    size_t getMappedSize() const;
+
+    // Memory owned by this instance, mainly the KV cache
+    size_t getPrivateSize() const;
+
     ~LlamaAdapter();
 
 private:
@@ -3706,6 +3706,28 @@ int whisper_lang_auto_detect(
     return whisper_lang_auto_detect_with_state(ctx, ctx->state, offset_ms, n_threads, lang_probs, nullptr, 0);
 }
 
+int whisper_lang_auto_detect_pcm(
+        struct whisper_context * ctx,
+        const float * samples,
+        int   n_samples,
+        int   audio_ctx,
+        int   n_threads,
+        const int * allowed_langs,
+        size_t allowed_langs_size) {
+    if (whisper_pcm_to_mel_with_state(ctx, ctx->state, samples, n_samples, n_threads) != 0) {
+        return -1;
+    }
+
+    const int32_t prev_audio_ctx = ctx->state->exp_n_audio_ctx;
+    ctx->state->exp_n_audio_ctx = audio_ctx;
+
+    const int lang_id = whisper_lang_auto_detect_with_state(ctx, ctx->state, 0, n_threads, nullptr,
+            allowed_langs_size > 0 ? allowed_langs : nullptr, allowed_langs_size);
+
+    ctx->state->exp_n_audio_ctx = prev_audio_ctx;
+    return lang_id;
+}
+
 int whisper_model_n_vocab(struct whisper_context * ctx) {
     return ctx->model.hparams.n_vocab;
 }
@@ -3847,6 +3869,32 @@ whisper_token whisper_token_transcribe(struct whisper_context * ctx) {
     return ctx->vocab.token_transcribe;
 }
 
+static size_t whisper_buffer_size(ggml_backend_buffer_t buffer) {
+    return buffer ? ggml_backend_buffer_get_size(buffer) : 0;
+}
+
+static size_t whisper_allocr_size_or_zero(struct whisper_allocr & allocr) {
+    return allocr.alloc ? whisper_allocr_size(allocr) : allocr.meta.size();
+}
+
+size_t whisper_get_memory_usage(struct whisper_context * ctx) {
+    size_t size = whisper_buffer_size(ctx->model.buffer);
+
+    if (ctx->state) {
+        whisper_state & state = *ctx->state;
+
+        size += whisper_buffer_size(state.kv_self.buffer);
+        size += whisper_buffer_size(state.kv_cross.buffer);
+
+        size += whisper_allocr_size_or_zero(state.alloc_conv);
+        size += whisper_allocr_size_or_zero(state.alloc_encode);
+        size += whisper_allocr_size_or_zero(state.alloc_cross);
+        size += whisper_allocr_size_or_zero(state.alloc_decode);
+    }
+
+    return size;
+}
+
 void whisper_print_timings(struct whisper_context * ctx) {
     const int64_t t_end_us = ggml_time_us();
 
@@ -336,6 +336,19 @@ WHISPER_API int whisper_lang_auto_detect_with_state(
         const int * allowed_langs,
         size_t allowed_langs_size);
 
+// Computes the mel spectrogram of the given samples and auto-detects their language, encoding
+// only audio_ctx positions (0 for the full 30 seconds). Meant for a short window of audio, to
+// pick a model before transcribing all of it.
+// Returns the top language id or negative on failure
+WHISPER_API int whisper_lang_auto_detect_pcm(
+        struct whisper_context * ctx,
+        const float * samples,
+        int   n_samples,
+        int   audio_ctx,
+        int   n_threads,
+        const int * allowed_langs,
+        size_t allowed_langs_size);
+
 WHISPER_API int whisper_n_len           (struct whisper_context * ctx); // mel length
 WHISPER_API int whisper_n_len_from_state(struct whisper_state * state); // mel length
 WHISPER_API int whisper_n_vocab         (struct whisper_context * ctx);
@@ -386,6 +399,10 @@ WHISPER_API whisper_token whisper_token_transcribe(struct whisper_context * ctx)
 WHISPER_API void whisper_print_timings(struct whisper_context * ctx);
 WHISPER_API void whisper_reset_timings(struct whisper_context * ctx);
 
+// Native memory held by the context and its default state: the model weights, KV caches and
+// compute buffers.
+WHISPER_API size_t whisper_get_memory_usage(struct whisper_context * ctx);
+
 // Print system information
 WHISPER_API const char * whisper_print_system_info(void);
 
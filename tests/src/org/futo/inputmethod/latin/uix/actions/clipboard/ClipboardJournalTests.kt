@@ -0,0 +1,79 @@
+package org.futo.inputmethod.latin.uix.actions.clipboard
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.io.File
+
+class ClipboardJournalTests {
+    private fun entry(text: String, pinned: Boolean = false, timestamp: Long = 0L) =
+        ClipboardEntry(timestamp, pinned, text, null, listOf("text/plain"))
+
+    private fun assertDiffApplies(old: List<ClipboardEntry>, new: List<ClipboardEntry>): Int {
+        val records = ClipboardJournal.diff(old, new)
+        val result = old.toMutableList()
+        records.forEach { ClipboardJournal.applyRecord(it, result) }
+        assertEquals(new, result)
+        return records.size
+    }
+
+    @Test
+    fun testDiffOfTypicalChangesIsSmall() {
+        val base = List(50) { entry("item $it", timestamp = it.toLong()) }
+
+        // New copy
+        assertEquals(1, assertDiffApplies(base, base + entry("new")))
+
+        // Copying an existing item again moves it to the end
+        assertEquals(2, assertDiffApplies(base, base.filter { it != base[3] } + base[3].copy(timestamp = 100L)))
+
+        // Pin toggle in place
+        assertEquals(1, assertDiffApplies(base, base.toMutableList().also { it[10] = it[10].copy(pinned = true) }))
+
+        // Removal
+        assertEquals(1, assertDiffApplies(base, base.filter { it != base[20] }))
+
+        // No change
+        assertEquals(0, assertDiffApplies(base, base))
+    }
+
+    @Test
+    fun testDiffHandlesReordersAndDuplicates() {
+        val base = List(10) { entry("item $it") }
+
+        assertDiffApplies(base, base.reversed())
+        assertDiffApplies(base + base[0], base.drop(2))
+        assertDiffApplies(emptyList(), base)
+        assertDiffApplies(base, emptyList())
+    }
+
+    @Test
+    fun testReplayRequiresMatchingSnapshot() {
+        val file = File.createTempFile("clipboard", ".journal")
+        try {
+            val journal = ClipboardJournal(file)
+            journal.reset(1234L)
+
+            val base = List(5) { entry("item $it") }
+            val new = base + entry("new")
+            journal.append(ClipboardJournal.diff(base, new))
+
+            val replayed = base.toMutableList()
+            assertTrue(ClipboardJournal(file).replay(1234L, replayed))
+            assertEquals(new, replayed)
+
+            val stale = base.toMutableList()
+            assertFalse(ClipboardJournal(file).replay(5678L, stale))
+            assertEquals(base, stale)
+
+            // A torn final record is dropped, and the journal reports it needs compacting
+            file.appendText("{\"op\":\"add\",\"ind")
+            val torn = base.toMutableList()
+            assertFalse(ClipboardJournal(file).replay(1234L, torn))
+            assertEquals(new, torn)
+        } finally {
+            file.delete()
+        }
+    }
+}
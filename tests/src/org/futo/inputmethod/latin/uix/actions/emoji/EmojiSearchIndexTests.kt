@@ -0,0 +1,52 @@
+package org.futo.inputmethod.latin.uix.actions.emoji
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class EmojiSearchIndexTests {
+    private val index = EmojiSearchIndex(mapOf(
+        "😀" to listOf("grinning face", "happy"),
+        "🐱" to listOf("cat", "cat face"),
+        "🐈" to listOf("Cat"),
+        "\u263A\uFE0F" to listOf("smiling face"),
+        "🙀" to listOf("weary cat")
+    ))
+
+    private fun search(query: String, items: List<String> = listOf("😀", "🐱", "🐈", "\u263A", "🙀", "🦊")) =
+        index.filter(items, query, { it }, { if(it == "🦊") listOf("fox") else emptyList() })
+
+    @Test
+    fun testOrderedByMatchKind() {
+        // Exact matches first, then prefixes, then substrings, keeping the original order
+        assertEquals(listOf("🐱", "🐈", "🙀"), search("cat"))
+        assertEquals(listOf("🐱"), search("Cat f"))
+        assertEquals(listOf("🙀"), search("eary"))
+    }
+
+    @Test
+    fun testTrigramsMustAllMatch() {
+        assertEquals(listOf("😀", "🐱", "\u263A"), search("face"))
+        assertTrue(search("face xyz").isEmpty())
+    }
+
+    @Test
+    fun testTypos() {
+        assertEquals(listOf("😀"), search("hapy"))
+        assertEquals(listOf("😀"), search("grinnig"))
+        assertTrue(search("hxpy zz").isEmpty())
+    }
+
+    @Test
+    fun testTyposAtStart() {
+        // Replaced and inserted first characters, the index must not rule these names out
+        assertEquals(listOf("😀"), search("gappy"))
+        assertEquals(listOf("😀"), search("xhappy"))
+    }
+
+    @Test
+    fun testVariationSelectorAndFallback() {
+        assertEquals(listOf("\u263A"), search("smiling"))
+        assertEquals(listOf("🦊"), search("fox"))
+    }
+}
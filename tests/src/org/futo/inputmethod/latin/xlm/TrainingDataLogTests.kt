@@ -0,0 +1,159 @@
+package org.futo.inputmethod.latin.xlm
+
+import android.content.Context
+import androidx.test.InstrumentationRegistry
+import androidx.test.runner.AndroidJUnit4
+import kotlinx.serialization.builtins.ListSerializer
+import kotlinx.serialization.json.Json
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.io.File
+
+@RunWith(AndroidJUnit4::class)
+class TrainingDataLogTests {
+    private lateinit var context: Context
+    private lateinit var file: File
+    private lateinit var legacyFile: File
+
+    @Before
+    fun setUp() {
+        context = InstrumentationRegistry.getTargetContext()
+        file = File.createTempFile("historyLog", ".jsonl", context.cacheDir).also { it.delete() }
+        legacyFile = File.createTempFile("historyLog", ".json", context.cacheDir).also { it.delete() }
+    }
+
+    @After
+    fun tearDown() {
+        file.delete()
+        legacyFile.delete()
+    }
+
+    private fun newLog() = TrainingDataLog(context, file, legacyFile).also { it.load() }
+
+    private fun entry(word: String, key: String = "ctx $word") = HistoryLogForTraining(
+        key = key,
+        priorContext = "ctx",
+        ngramContext = "ctx",
+        misspelledWord = null,
+        committedWord = word,
+        importance = 1,
+        locale = "en",
+        timeStamp = 0L
+    )
+
+    private fun wordsInFile(): List<String> {
+        val words = mutableListOf<String>()
+        forEachEntry(file) { _, entry -> words.add(entry.committedWord) }
+        return words
+    }
+
+    @Test
+    fun testEntriesSurviveReload() {
+        val log = newLog()
+        listOf("a", "b", "c").forEach { log.add(entry(it)) }
+        log.flush()
+
+        assertEquals(listOf("a", "b", "c"), wordsInFile())
+        assertEquals(3, newLog().size)
+    }
+
+    @Test
+    fun testRemovalsReferToPositionsAcrossReloads() {
+        val log = newLog()
+        listOf("a", "b", "c", "d").forEach { log.add(entry(it)) }
+        assertTrue(log.unlearn("ctx b"))
+        log.flush()
+        assertEquals(listOf("a", "c", "d"), wordsInFile())
+
+        // Positions after a reload still count the removed entry
+        val reloaded = newLog()
+        assertEquals(3, reloaded.size)
+        assertTrue(reloaded.unlearn("ctx d"))
+        reloaded.add(entry("e"))
+        reloaded.flush()
+        assertEquals(listOf("a", "c", "e"), wordsInFile())
+
+        assertFalse(newLog().unlearn("ctx b"))
+    }
+
+    @Test
+    fun testUnlearnFallsBackToKeyPrefix() {
+        val log = newLog()
+        log.add(entry("hello", key = "ctx hello"))
+        log.add(entry("help", key = "ctx help"))
+
+        assertTrue(log.unlearn("ctx hel"))
+        log.flush()
+        assertEquals(listOf("hello"), wordsInFile())
+    }
+
+    @Test
+    fun testCompactionRewritesFileWithoutRemovedEntries() {
+        val log = newLog()
+        repeat(100) { log.add(entry("w$it")) }
+        log.flush()
+        repeat(70) { assertTrue(log.unlearn("ctx w$it")) }
+        log.flush()
+
+        val expected = (70 until 100).map { "w$it" }
+        assertEquals(expected, wordsInFile())
+        assertEquals(30, file.readLines().count { it.isNotEmpty() })
+
+        // Compaction renumbers entries, later removals must use the new positions
+        assertTrue(log.unlearn("ctx w99"))
+        log.flush()
+        assertEquals(expected - "w99", wordsInFile())
+        assertEquals(29, newLog().size)
+    }
+
+    @Test
+    fun testTornLineIsDroppedOnLoad() {
+        val log = newLog()
+        listOf("a", "b").forEach { log.add(entry(it)) }
+        log.flush()
+        file.appendText("{\"add\":{\"key\":\"ctx c\",\"prior")
+
+        val reloaded = newLog()
+        assertEquals(2, reloaded.size)
+
+        // New records must not end up behind the torn line
+        reloaded.add(entry("d"))
+        reloaded.flush()
+        assertEquals(listOf("a", "b", "d"), wordsInFile())
+    }
+
+    @Test
+    fun testLegacyLogIsMigrated() {
+        legacyFile.writeText(
+            Json.encodeToString(
+                ListSerializer(HistoryLogForTraining.serializer()),
+                listOf(entry("a"), entry("b"))
+            )
+        )
+
+        assertEquals(2, newLog().size)
+        assertFalse(legacyFile.exists())
+        assertEquals(listOf("a", "b"), wordsInFile())
+    }
+
+    @Test
+    fun testClearDeletesFile() {
+        val log = newLog()
+        log.add(entry("a"))
+        log.flush()
+
+        log.clear()
+        assertEquals(0, log.size)
+        assertFalse(file.exists())
+
+        // Nothing from before the clear may be written afterwards
+        log.add(entry("b"))
+        log.flush()
+        assertEquals(listOf("b"), wordsInFile())
+    }
+}
@@ -14,6 +14,8 @@ import android.media.MediaRecorder
 import android.media.MicrophoneDirection
 import android.net.Uri
 import android.os.Build
+import android.os.Handler
+import android.os.Looper
 import android.provider.Settings
 import android.util.Log
 import androidx.lifecycle.LifecycleCoroutineScope
@@ -45,6 +47,7 @@ import org.futo.voiceinput.shared.whisper.MultiModelRunner
 import org.futo.voiceinput.shared.whisper.isBlankResult
 import java.nio.FloatBuffer
 import java.nio.ShortBuffer
+import java.util.concurrent.atomic.AtomicBoolean
 import kotlin.math.min
 import kotlin.math.pow
 import kotlin.math.sqrt
@@ -81,9 +84,46 @@ data class RecordingSettings(
     val preferBluetoothMic: Boolean,
     val requestAudioFocus: Boolean,
     val canExpandSpace: Boolean,
-    val useVADAutoStop: Boolean
+    val useVADAutoStop: Boolean,
+
+    // Transcribe audio in chunks while still recording, so only the last chunk is left to
+    // transcribe once recording stops
+    val useStreaming: Boolean = false
 )
 
+// A streaming chunk ends at a pause in speech once it's at least this long...
+private const val StreamingMinChunkSamples = 16000 * 3
+// ...or regardless of pauses once it gets this long
+private const val StreamingMaxChunkSamples = 16000 * 15
+// Consecutive 30ms VAD frames without speech that count as a pause
+private const val StreamingPauseFrames = 10
+// A chunk needs some speech to be worth transcribing, otherwise it's dropped
+private const val StreamingMinSpeechFrames = 5
+// Shorter audio left over at the end is too short to contain a word
+private const val StreamingMinFinalSamples = 16000 / 4
+
+private const val PcmToFloatScale = 1.0f / Short.MAX_VALUE
+
+/**
+ * Converts [count] 16-bit PCM samples from [src] to floats and appends them to [dst], without
+ * allocating.
+ * @return the sum of squares of the converted samples, for computing the RMS
+ */
+private fun appendPcm16AsFloat(src: ShortArray, count: Int, dst: FloatBuffer): Double {
+    val array = dst.array()
+    val offset = dst.arrayOffset() + dst.position()
+
+    var sumOfSquares = 0.0
+    for (i in 0 until count) {
+        val value = src[i] * PcmToFloatScale
+        array[offset + i] = value
+        sumOfSquares += value * value
+    }
+
+    dst.position(dst.position() + count)
+    return sumOfSquares
+}
+
 data class AudioRecognizerSettings(
     val modelRunConfiguration: MultiModelRunConfiguration,
     val decodingConfiguration: DecodingConfiguration,
@@ -106,12 +146,45 @@ class AudioRecognizer(
 
     private val canExpandSpace = settings.recordingConfiguration.canExpandSpace
     private val useVAD = settings.recordingConfiguration.useVADAutoStop
+    private val useStreaming = settings.recordingConfiguration.useStreaming
 
     private var floatSamples: FloatBuffer = FloatBuffer.allocate(16000 * 30)
     private var recorderJob: Job? = null
     private var modelJob: Job? = null
     private var loadModelJob: Job? = null
 
+    // Streaming state. Audio before committedSamples has been transcribed into committedText,
+    // and at most one chunk is transcribed at a time by streamingJob
+    @Volatile
+    private var streamingJob: Job? = null
+    private val streamingLock = Any()
+    private var committedSamples = 0
+    private val committedText = StringBuilder()
+
+    // Magnitude updates are coalesced, so the UI only sees the latest value and the recording
+    // loop never waits for the main thread
+    private val mainHandler = Handler(Looper.getMainLooper())
+    @Volatile private var pendingMagnitude = 0.0f
+    @Volatile private var pendingMagnitudeState = MagnitudeState.NOT_TALKED_YET
+    private val magnitudeUpdatePending = AtomicBoolean(false)
+    private val magnitudeUpdater = Runnable {
+        magnitudeUpdatePending.set(false)
+        if (isRecording) listener.updateMagnitude(pendingMagnitude, pendingMagnitudeState)
+    }
+
+    private fun postMagnitude(magnitude: Float, state: MagnitudeState) {
+        pendingMagnitude = magnitude
+        pendingMagnitudeState = state
+        if (magnitudeUpdatePending.compareAndSet(false, true)) {
+            mainHandler.post(magnitudeUpdater)
+        }
+    }
+
+    private fun cancelMagnitudeUpdates() {
+        mainHandler.removeCallbacks(magnitudeUpdater)
+        magnitudeUpdatePending.set(false)
+    }
+
     private var focusRequest: AudioFocusRequest? = null
 
     private var communicationDevice = "unknown"
@@ -223,10 +296,18 @@ class AudioRecognizer(
         recorder = null
 
         modelJob?.cancel()
+        streamingJob?.cancel()
+        streamingJob = null
         isRecording = false
+        cancelMagnitudeUpdates()
 
         modelRunner.cancelAll()
 
+        synchronized(streamingLock) {
+            committedSamples = 0
+            committedText.clear()
+        }
+
         unfocusAudio()
 
         clearCommunicationDevice()
@@ -324,6 +405,7 @@ class AudioRecognizer(
         val vadSampleBuffer = ShortBuffer.allocate(480)
         var numConsecutiveNonSpeech = 0
         var numConsecutiveSpeech = 0
+        var numSpeechFramesInChunk = 0
 
         val samples = ShortArray(1600)
 
@@ -345,7 +427,7 @@ class AudioRecognizer(
             }
 
             // Run VAD
-            if(useVAD && vad != null) {
+            if(vad != null) {
                 var remainingSamples = nRead
                 var offset = 0
                 while (remainingSamples > 0) {
@@ -360,21 +442,18 @@ class AudioRecognizer(
                         } else {
                             numConsecutiveNonSpeech = 0
                             numConsecutiveSpeech++
+                            numSpeechFramesInChunk++
                         }
                     }
 
                     val samplesToRead = min(min(remainingSamples, 480), vadSampleBuffer.remaining())
-                    for (i in 0 until samplesToRead) {
-                        vadSampleBuffer.put(
-                            samples[offset]
-                        )
-                        offset += 1
-                        remainingSamples -= 1
-                    }
+                    vadSampleBuffer.put(samples, offset, samplesToRead)
+                    offset += samplesToRead
+                    remainingSamples -= samplesToRead
                 }
             }
 
-            floatSamples.put(samples.sliceArray(0 until nRead).map { it.toFloat() / Short.MAX_VALUE.toFloat() }.toFloatArray())
+            val sumOfSquares = appendPcm16AsFloat(samples, nRead, floatSamples)
 
             // Don't set hasTalked if the start sound may still be playing, otherwise on some
             // devices the rms just explodes and `hasTalked` is always true
@@ -384,7 +463,7 @@ class AudioRecognizer(
                 numConsecutiveNonSpeech = 0
             }
 
-            val rms = sqrt(samples.sumOf { (it.toFloat() / Short.MAX_VALUE.toFloat()).pow(2).toDouble() } / samples.size).toFloat()
+            val rms = sqrt(sumOfSquares / nRead).toFloat()
 
             if (startSoundPassed && ((rms > 0.01) || (numConsecutiveSpeech > 8))) {
                 hasTalked = true
@@ -401,6 +480,13 @@ class AudioRecognizer(
                 isMicBlocked = true
             }
 
+            if (useStreaming && startSoundPassed) {
+                val isPaused = numConsecutiveNonSpeech >= StreamingPauseFrames
+                if (maybeStartStreamingChunk(isPaused, vad != null, numSpeechFramesInChunk)) {
+                    numSpeechFramesInChunk = 0
+                }
+            }
+
             val magnitude = (1.0f - 0.1f.pow(24.0f * rms))
 
             val state = if (hasTalked) {
@@ -411,10 +497,7 @@ class AudioRecognizer(
                 MagnitudeState.NOT_TALKED_YET
             }
 
-            yield()
-            withContext(Dispatchers.Main) {
-                listener.updateMagnitude(magnitude, state)
-            }
+            postMagnitude(magnitude, state)
 
             // Skip ahead as much as possible, in case we are behind (taking more than
             // 100ms to process 100ms)
@@ -431,7 +514,7 @@ class AudioRecognizer(
                         }
                         break
                     }
-                    floatSamples.put(samples.sliceArray(0 until nRead2).map { it.toFloat() / Short.MAX_VALUE.toFloat() }.toFloatArray())
+                    appendPcm16AsFloat(samples, nRead2, floatSamples)
                 } else {
                     break
                 }
@@ -465,7 +548,7 @@ class AudioRecognizer(
 
             recorderJob = lifecycleScope.launch {
                 withContext(Dispatchers.Default) {
-                    if(useVAD) {
+                    if(useVAD || useStreaming) {
                         createVad().use { vad ->
                             recordingJob(recorder, vad)
                         }
@@ -536,8 +619,92 @@ class AudioRecognizer(
 
         override fun partialResult(string: String) {
             if(isBlankResult(string)) return
-            listener.partialResult(string)
+            listener.partialResult(if(useStreaming) appendToCommittedText(string) else string)
+        }
+    }
+
+    private fun appendToCommittedText(text: String): String = synchronized(streamingLock) {
+        when {
+            committedText.isEmpty() -> text
+            text.isEmpty() -> committedText.toString()
+            else -> "$committedText $text"
+        }
+    }
+
+    private val streamingCallback: ModelInferenceCallback = object : ModelInferenceCallback {
+        // The recording UI stays up while chunks are transcribed
+        override fun updateStatus(state: InferenceState) { }
+
+        override fun languageDetected(language: Language) {
+            listener.languageDetected(language)
+        }
+
+        override fun partialResult(string: String) {
+            if(isBlankResult(string)) return
+            listener.partialResult(appendToCommittedText(string))
+        }
+    }
+
+    /**
+     * Starts transcribing the audio recorded since the last chunk, if it ends at a pause or has
+     * grown too long, and no other chunk is being transcribed. Called from the recording job.
+     * @return whether a new chunk was started
+     */
+    private fun maybeStartStreamingChunk(isPaused: Boolean, hasVad: Boolean, numSpeechFrames: Int): Boolean {
+        if(streamingJob?.isActive == true) return false
+
+        val start = synchronized(streamingLock) { committedSamples }
+        val end = floatSamples.position()
+        val length = end - start
+
+        val shouldEnd = (isPaused && length >= StreamingMinChunkSamples) || length >= StreamingMaxChunkSamples
+        if(!shouldEnd) return false
+
+        // Nothing was said, skip the chunk instead of letting the model hallucinate on silence
+        if(hasVad && numSpeechFrames < StreamingMinSpeechFrames) {
+            synchronized(streamingLock) { committedSamples = end }
+            return true
+        }
+
+        val chunk = floatSamples.array().copyOfRange(start, end)
+        streamingJob = lifecycleScope.launch(Dispatchers.Default) {
+            transcribeChunk(chunk, end)
         }
+        return true
+    }
+
+    private suspend fun transcribeChunk(samples: FloatArray, endPosition: Int) {
+        loadModelJob?.join()
+
+        val priorText = synchronized(streamingLock) { committedText.toString() }
+
+        yield()
+        val text = try {
+            modelRunner.run(
+                samples,
+                settings.modelRunConfiguration,
+                settings.decodingConfiguration,
+                streamingCallback,
+                priorText
+            ).trim()
+        } catch(e: InferenceCancelledException) {
+            return
+        } catch(e: InvalidModelException) {
+            // Reported by the preload job, the remaining audio is retried when recording stops
+            return
+        }
+
+        yield()
+        val fullText = synchronized(streamingLock) {
+            if(!isBlankResult(text) && text.isNotEmpty()) {
+                if(committedText.isNotEmpty()) committedText.append(' ')
+                committedText.append(text)
+            }
+            committedSamples = endPosition
+            committedText.toString()
+        }
+
+        if(fullText.isNotEmpty()) listener.partialResult(fullText)
     }
 
     private suspend fun runModel() {
@@ -548,6 +715,11 @@ class AudioRecognizer(
             }
         }
 
+        if(useStreaming) {
+            runModelOnRemainingAudio()
+            return
+        }
+
         val floatArray = floatSamples.array().sliceArray(0 until floatSamples.position())
 
         yield()
@@ -577,6 +749,52 @@ class AudioRecognizer(
         }
     }
 
+    // With streaming, most of the audio has already been transcribed in chunks, so only the
+    // audio since the last chunk is left
+    private suspend fun runModelOnRemainingAudio() {
+        streamingJob?.join()
+
+        val (start, priorText) = synchronized(streamingLock) {
+            committedSamples to committedText.toString()
+        }
+        val end = floatSamples.position()
+
+        val remainingText = if(end - start >= StreamingMinFinalSamples) {
+            val floatArray = floatSamples.array().sliceArray(start until end)
+
+            yield()
+            try {
+                modelRunner.run(
+                    floatArray,
+                    settings.modelRunConfiguration,
+                    settings.decodingConfiguration,
+                    runnerCallback,
+                    priorText
+                ).trim()
+            } catch(e: InferenceCancelledException) {
+                yield()
+                return
+            }
+        } else {
+            ""
+        }
+
+        val text = appendToCommittedText(
+            when {
+                isBlankResult(remainingText) -> ""
+                else -> remainingText
+            }
+        )
+
+        yield()
+        lifecycleScope.launch {
+            withContext(Dispatchers.Main) {
+                yield()
+                listener.finished(text)
+            }
+        }
+    }
+
     private fun onFinishRecording() {
         recorderJob?.cancel()
 
@@ -586,6 +804,7 @@ class AudioRecognizer(
 
         isRecording = false
         recorder?.stop()
+        cancelMagnitudeUpdates()
 
         listener.processing()
 
@@ -23,12 +23,18 @@ class WhisperGGML(
     modelBuffer: Buffer
 ) {
     private var handle: Long = 0L
+
+    /** Native memory used by the model weights and inference buffers */
+    val nativeBytes: Long
+
     init {
         handle = openFromBufferNative(modelBuffer)
 
         if(handle == 0L) {
             throw InvalidModelException()
         }
+
+        nativeBytes = getMemoryUsageNative(handle)
     }
 
     private var partialResultCallback: (String) -> Unit = { }
@@ -73,6 +79,23 @@ class WhisperGGML(
         }
     }
 
+    /**
+     * Detects the language spoken in [samples] without transcribing them. Meant for a few seconds
+     * of audio, as the cost grows with its length like [infer].
+     * @return the detected language out of [languages] (or any language if empty), or null if
+     * detection failed
+     */
+    suspend fun detectLanguage(
+        samples: FloatArray,
+        languages: Array<String>
+    ): String? = withContext(inferenceContext) {
+        if(handle == 0L) {
+            throw IllegalStateException("WhisperGGML has already been closed, cannot detect language")
+        }
+
+        detectLanguageNative(handle, samples, languages).ifEmpty { null }
+    }
+
     fun cancel() {
         if(handle == 0L) return
         cancelNative(handle)
@@ -88,6 +111,8 @@ class WhisperGGML(
     private external fun openNative(path: String): Long
     private external fun openFromBufferNative(buffer: Buffer): Long
     private external fun inferNative(handle: Long, samples: FloatArray, prompt: String, languages: Array<String>, bailLanguages: Array<String>, decodingMode: Int, suppressNonSpeechTokens: Boolean): String
+    private external fun detectLanguageNative(handle: Long, samples: FloatArray, languages: Array<String>): String
     private external fun cancelNative(handle: Long)
     private external fun closeNative(handle: Long)
+    private external fun getMemoryUsageNative(handle: Long): Long
 }
\ No newline at end of file
@@ -1,36 +1,138 @@
 package org.futo.voiceinput.shared.whisper
 
 import android.content.Context
+import kotlinx.coroutines.NonCancellable
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+import kotlinx.coroutines.withContext
 import org.futo.voiceinput.shared.ggml.WhisperGGML
 import org.futo.voiceinput.shared.types.ModelLoader
 
+private const val DefaultMemoryBudgetBytes = 384L * 1024L * 1024L
 
+data class LoadedModelStats(
+    val key: String,
+    val nativeBytes: Long,
+    val inUse: Boolean
+)
+
+/**
+ * Keeps Whisper models loaded between uses. Once the native memory of all loaded models exceeds
+ * [memoryBudgetBytes], the least recently used ones are closed, except for models that are
+ * currently in use, the most recently used one and the ones passed to [pinModels].
+ */
 class ModelManager(
-    val context: Context
+    val context: Context,
+    private val memoryBudgetBytes: () -> Long = { DefaultMemoryBudgetBytes }
 ) {
-    private val loadedModels: HashMap<Any, WhisperGGML> = hashMapOf()
+    private class LoadedModel(val key: Any, val model: WhisperGGML) {
+        var uses = 0
+    }
+
+    private val lock = Any()
+
+    // Access order, so the least recently used model comes first
+    private val loadedModels = LinkedHashMap<Any, LoadedModel>(4, 0.75f, true)
+
+    // Loading one model at a time keeps the budget from being overshot by concurrent loads
+    private val loadMutex = Mutex()
+
+    // Keys of the models of the current run configuration
+    private var pinnedKeys: Set<Any> = emptySet()
+
+    /**
+     * Never evicts [models], in place of any models pinned before. A run configuration switches
+     * between its models for every utterance, so evicting one of them would reload it each time.
+     */
+    fun pinModels(models: Collection<ModelLoader>) {
+        val keys = models.map { it.key(context) }.toSet()
+        synchronized(lock) { pinnedKeys = keys }
+    }
+
+    private fun updateStats() {
+        loadedModelStats = synchronized(lock) {
+            loadedModels.values.map {
+                LoadedModelStats(it.key.toString(), it.model.nativeBytes, it.uses > 0)
+            }
+        }
+    }
 
-    fun obtainModel(model: ModelLoader): WhisperGGML {
+    private suspend fun obtain(model: ModelLoader, use: Boolean): LoadedModel {
         val key = model.key(context)
-        if (!loadedModels.contains(key)) {
-            loadedModels[key] = model.loadGGML(context)
+
+        val loaded = loadMutex.withLock {
+            synchronized(lock) {
+                loadedModels[key]?.also { if (use) it.uses++ }
+            } ?: LoadedModel(key, model.loadGGML(context)).also {
+                if (use) it.uses++
+                synchronized(lock) { loadedModels[key] = it }
+            }
         }
 
-        return loadedModels[key]!!
+        evictOverBudget()
+        return loaded
+    }
+
+    suspend fun obtainModel(model: ModelLoader): WhisperGGML {
+        return obtain(model, use = false).model
+    }
+
+    /** Runs [block] with the model loaded, which can't be evicted until [block] returns */
+    suspend fun <T> useModel(model: ModelLoader, block: suspend (WhisperGGML) -> T): T {
+        val loaded = obtain(model, use = true)
+        try {
+            return block(loaded.model)
+        } finally {
+            synchronized(lock) { loaded.uses-- }
+            withContext(NonCancellable) { evictOverBudget() }
+        }
+    }
+
+    private suspend fun evictOverBudget() {
+        val budget = memoryBudgetBytes()
+
+        val evicted = synchronized(lock) {
+            var usedBytes = loadedModels.values.sumOf { it.model.nativeBytes }
+            val mostRecent = loadedModels.values.lastOrNull()
+
+            loadedModels.values.filter {
+                if (usedBytes <= budget || it === mostRecent || it.uses > 0 || it.key in pinnedKeys) {
+                    return@filter false
+                }
+                usedBytes -= it.model.nativeBytes
+                true
+            }.onEach { loadedModels.remove(it.key) }
+        }
+
+        evicted.forEach { it.model.close() }
+        updateStats()
     }
 
     fun cancelAll() {
-        loadedModels.forEach {
-            it.value.cancel()
+        synchronized(lock) {
+            loadedModels.values.forEach {
+                it.model.cancel()
+            }
         }
     }
 
     suspend fun cleanUp() {
-        for (model in loadedModels.entries) {
-            model.value.cancel()
-            model.value.close()
+        val models = synchronized(lock) {
+            loadedModels.values.toList().also { loadedModels.clear() }
+        }
+
+        for (model in models) {
+            model.model.cancel()
+            model.model.close()
         }
 
-        loadedModels.clear()
+        updateStats()
+    }
+
+    companion object {
+        /** Models that are currently loaded, for debugging */
+        @Volatile
+        var loadedModelStats: List<LoadedModelStats> = emptyList()
+            private set
     }
 }
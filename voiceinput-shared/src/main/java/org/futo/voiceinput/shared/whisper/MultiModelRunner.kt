@@ -1,5 +1,7 @@
 package org.futo.voiceinput.shared.whisper
 
+import android.os.SystemClock
+import android.util.Log
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.Job
 import kotlinx.coroutines.coroutineScope
@@ -26,10 +28,42 @@ data class DecodingConfiguration(
     val suppressSymbols: Boolean
 )
 
+private const val MaxPriorTextLength = 200
+
+// Audio used to decide whether to switch to a language-specific model before transcribing
+private const val LanguageDetectionSamples = 16000 * 4
+
+private const val TAG = "MultiModelRunner"
+
+/**
+ * How long the steps of the last run took, for debugging. [primaryMs] is the full transcription
+ * by the primary model, or the time until it bailed to another language, and [specificMs] is
+ * the transcription by the language-specific model after bailing.
+ */
+data class MultiModelRunTimings(
+    val audioMs: Long,
+    val detectionMs: Long?,
+    val primaryMs: Long?,
+    val bailLanguage: String?,
+    val specificMs: Long?
+) {
+    /** Whether the language was only found once the primary model had encoded all of the audio */
+    val bailedLate: Boolean
+        get() = bailLanguage != null && primaryMs != null
+}
+
 class MultiModelRunner(
     private val modelManager: ModelManager
 ) {
+    private fun pinModels(runConfiguration: MultiModelRunConfiguration) {
+        modelManager.pinModels(
+            listOf(runConfiguration.primaryModel) + runConfiguration.languageSpecificModels.values
+        )
+    }
+
     suspend fun preload(runConfiguration: MultiModelRunConfiguration) = coroutineScope {
+        pinModels(runConfiguration)
+
         val jobs = mutableListOf<Job>()
 
         jobs.add(launch(Dispatchers.Default) {
@@ -47,15 +81,20 @@ class MultiModelRunner(
         jobs.forEach { it.join() }
     }
 
+    /**
+     * @param priorText text that was already transcribed right before [samples], used as context
+     * when the audio is transcribed in several chunks
+     */
     @Throws(InferenceCancelledException::class)
     suspend fun run(
         samples: FloatArray,
         runConfiguration: MultiModelRunConfiguration,
         decodingConfiguration: DecodingConfiguration,
-        callback: ModelInferenceCallback
+        callback: ModelInferenceCallback,
+        priorText: String = ""
     ): String = coroutineScope {
         callback.updateStatus(InferenceState.LoadingModel)
-        val primaryModel = modelManager.obtainModel(runConfiguration.primaryModel)
+        pinModels(runConfiguration)
 
         val allowedLanguages = decodingConfiguration.languages.map { it.toWhisperString() }.toTypedArray()
         val bailLanguages = runConfiguration.languageSpecificModels.filter { it.value != runConfiguration.primaryModel }.keys.map { it.toWhisperString() }.toTypedArray()
@@ -66,43 +105,104 @@ class MultiModelRunner(
             ""
         }
 
+        // Whisper only keeps the end of the prompt, so the prior text goes last
+        val prompt = listOf(glossary, priorText.takeLast(MaxPriorTextLength).trim())
+            .filter { it.isNotEmpty() }
+            .joinToString(separator = " ")
+
+        var detectionMs: Long? = null
+        var primaryMs: Long? = null
+        var specificMs: Long? = null
+        var bailLanguage: String? = null
+
         val result = try {
-            callback.updateStatus(InferenceState.Encoding)
-            primaryModel.infer(
-                samples = samples,
-                prompt = glossary,
-                languages = allowedLanguages,
-                bailLanguages = bailLanguages,
-                decodingMode = DecodingMode.BeamSearch5,
-                suppressNonSpeechTokens = decodingConfiguration.suppressSymbols,
-                partialResultCallback = {
-                    callback.partialResult(it)
+            modelManager.useModel(runConfiguration.primaryModel) { primaryModel ->
+                // Bailing only after the primary model encoded all of the audio would encode it
+                // twice, so the language is detected from the start of the audio first. Audio
+                // that fits in the prefix is encoded in full either way, so infer bails for it.
+                if(bailLanguages.isNotEmpty()) {
+                    val language = if(allowedLanguages.size == 1) {
+                        allowedLanguages[0]
+                    } else if(samples.size > LanguageDetectionSamples) {
+                        callback.updateStatus(InferenceState.DecodingLanguage)
+                        val start = SystemClock.elapsedRealtime()
+                        primaryModel.detectLanguage(
+                            samples = samples.copyOf(LanguageDetectionSamples),
+                            languages = allowedLanguages
+                        ).also { detectionMs = SystemClock.elapsedRealtime() - start }
+                    } else {
+                        null
+                    }
+
+                    if(language != null && language in bailLanguages) {
+                        throw BailLanguageException(language)
+                    }
+                }
+
+                callback.updateStatus(InferenceState.Encoding)
+                val start = SystemClock.elapsedRealtime()
+                try {
+                    primaryModel.infer(
+                        samples = samples,
+                        prompt = prompt,
+                        languages = allowedLanguages,
+                        bailLanguages = bailLanguages,
+                        decodingMode = DecodingMode.BeamSearch5,
+                        suppressNonSpeechTokens = decodingConfiguration.suppressSymbols,
+                        partialResultCallback = {
+                            callback.partialResult(it)
+                        }
+                    )
+                } finally {
+                    primaryMs = SystemClock.elapsedRealtime() - start
                 }
-            )
+            }
         } catch(e: BailLanguageException) {
+            bailLanguage = e.language
             callback.updateStatus(InferenceState.SwitchingModel)
             val language = getLanguageFromWhisperString(e.language)
+            language?.let { callback.languageDetected(it) }
 
             val specificModelLoader = runConfiguration.languageSpecificModels[language]!!
-            val specificModel = modelManager.obtainModel(specificModelLoader)
-
-            specificModel.infer(
-                samples = samples,
-                prompt = glossary,
-                languages = arrayOf(e.language),
-                bailLanguages = arrayOf(),
-                decodingMode = DecodingMode.BeamSearch5,
-                suppressNonSpeechTokens = decodingConfiguration.suppressSymbols,
-                partialResultCallback = {
-                    callback.partialResult(it)
+            modelManager.useModel(specificModelLoader) { specificModel ->
+                val start = SystemClock.elapsedRealtime()
+                try {
+                    specificModel.infer(
+                        samples = samples,
+                        prompt = prompt,
+                        languages = arrayOf(e.language),
+                        bailLanguages = arrayOf(),
+                        decodingMode = DecodingMode.BeamSearch5,
+                        suppressNonSpeechTokens = decodingConfiguration.suppressSymbols,
+                        partialResultCallback = {
+                            callback.partialResult(it)
+                        }
+                    )
+                } finally {
+                    specificMs = SystemClock.elapsedRealtime() - start
                 }
-            )
+            }
         }
 
+        lastRunTimings = MultiModelRunTimings(
+            audioMs = samples.size / 16L,
+            detectionMs = detectionMs,
+            primaryMs = primaryMs,
+            bailLanguage = bailLanguage,
+            specificMs = specificMs
+        ).also { Log.d(TAG, "Run timings: $it") }
+
         return@coroutineScope result
     }
 
     fun cancelAll() {
         modelManager.cancelAll()
     }
-}
\ No newline at end of file
+
+    companion object {
+        /** Timings of the last run that finished, for debugging */
+        @Volatile
+        var lastRunTimings: MultiModelRunTimings? = null
+            private set
+    }
+}